@@ -15,6 +15,16 @@
  */
 package com.github.harbby.gadtry.graph;
 
+import com.github.harbby.gadtry.graph.impl.CsrGraph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.base.Strings.isNotBlank;
+import static java.util.Objects.requireNonNull;
+
 public interface ImmutableGraph<E, R>
         extends Graph<E, R>
 {
@@ -22,4 +32,194 @@ public interface ImmutableGraph<E, R>
     {
         return new Graph.GraphBuilder<>();
     }
+
+    /**
+     * Builds a compressed sparse row graph, see {@link ImmutableGraphBuilder}
+     */
+    static <E, R> ImmutableGraphBuilder<E, R> csrBuilder()
+    {
+        return new ImmutableGraphBuilder<>();
+    }
+
+    /**
+     * Interns node ids to ints and collects the edges into int arrays,
+     * {@link #create()} packs them into a {@link CsrGraph}.
+     * Like {@link Graph.GraphBuilder} the first data of a node wins and a repeated edge replaces the old one.
+     */
+    public static class ImmutableGraphBuilder<E, R>
+    {
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+        private final Map<String, Integer> index = new HashMap<>();
+        private String name;
+
+        private String[] ids = new String[16];
+        private Object[] nodeData;
+        private int nodeNumber;
+
+        private int[] edgeIn = new int[16];
+        private int[] edgeOut = new int[16];
+        private Object[] edgeData;
+        private int edgeNumber;
+
+        public ImmutableGraphBuilder<E, R> name(String name)
+        {
+            this.name = name;
+            return this;
+        }
+
+        public ImmutableGraphBuilder<E, R> addNode(String nodeId)
+        {
+            return addNode(nodeId, null);
+        }
+
+        public ImmutableGraphBuilder<E, R> addNode(String nodeId, E data)
+        {
+            checkState(isNotBlank(nodeId), "nodeId is null or empty");
+            if (index.containsKey(nodeId)) {
+                return this;
+            }
+            if (nodeNumber == ids.length) {
+                ids = Arrays.copyOf(ids, grow(ids.length));
+            }
+            if (data != null && nodeData == null) {
+                nodeData = new Object[ids.length];
+            }
+            else if (nodeData != null && nodeData.length < ids.length) {
+                nodeData = Arrays.copyOf(nodeData, ids.length);
+            }
+            ids[nodeNumber] = nodeId;
+            if (nodeData != null) {
+                nodeData[nodeNumber] = data;
+            }
+            index.put(nodeId, nodeNumber++);
+            return this;
+        }
+
+        public ImmutableGraphBuilder<E, R> addEdge(String node1, String node2, R data)
+        {
+            Integer inNode = requireNonNull(index.get(node1), "Unable to create edge because " + node1 + " does not exist");
+            Integer outNode = requireNonNull(index.get(node2), "Unable to create edge because " + node2 + " does not exist");
+            if (edgeNumber == edgeIn.length) {
+                int capacity = grow(edgeIn.length);
+                edgeIn = Arrays.copyOf(edgeIn, capacity);
+                edgeOut = Arrays.copyOf(edgeOut, capacity);
+            }
+            if (data != null && edgeData == null) {
+                edgeData = new Object[edgeIn.length];
+            }
+            else if (edgeData != null && edgeData.length < edgeIn.length) {
+                edgeData = Arrays.copyOf(edgeData, edgeIn.length);
+            }
+            edgeIn[edgeNumber] = inNode;
+            edgeOut[edgeNumber] = outNode;
+            if (edgeData != null) {
+                edgeData[edgeNumber] = data;
+            }
+            edgeNumber++;
+            return this;
+        }
+
+        public ImmutableGraphBuilder<E, R> addEdge(String node1, String node2)
+        {
+            return addEdge(node1, node2, null);
+        }
+
+        private static int grow(int length)
+        {
+            checkState(length < MAX_ARRAY_SIZE, "graph is too large");
+            return (int) Math.min(MAX_ARRAY_SIZE, length * 2L);
+        }
+
+        public ImmutableGraph<E, R> create()
+        {
+            final int root = nodeNumber;
+            //counting sort by in node, the root "/" links every node without in edges
+            int[] offsets = new int[root + 2];
+            boolean[] hasInEdge = new boolean[root];
+            for (int i = 0; i < edgeNumber; i++) {
+                offsets[edgeIn[i] + 1]++;
+                hasInEdge[edgeOut[i]] = true;
+            }
+            for (int node = 0; node < root; node++) {
+                if (!hasInEdge[node]) {
+                    offsets[root + 1]++;
+                }
+            }
+            for (int node = 1; node < offsets.length; node++) {
+                offsets[node] += offsets[node - 1];
+            }
+            checkState(offsets[root + 1] >= 0 && offsets[root + 1] <= MAX_ARRAY_SIZE, "graph is too large");
+
+            int[] targets = new int[offsets[root + 1]];
+            Object[] data = edgeData == null ? null : new Object[targets.length];
+            int[] cursor = Arrays.copyOf(offsets, root + 1);
+            for (int i = 0; i < edgeNumber; i++) {
+                int position = cursor[edgeIn[i]]++;
+                targets[position] = edgeOut[i];
+                if (data != null) {
+                    data[position] = edgeData[i];
+                }
+            }
+            for (int node = 0; node < root; node++) {
+                if (!hasInEdge[node]) {
+                    targets[cursor[root]++] = node;
+                }
+            }
+
+            int size = sortAndDistinct(offsets, targets, data, root);
+            String[] nodeIds = Arrays.copyOf(ids, root + 1);
+            nodeIds[root] = "/";
+            return new CsrGraph<>(name,
+                    nodeIds,
+                    new HashMap<>(index),
+                    nodeData == null ? null : Arrays.copyOf(nodeData, root),
+                    offsets,
+                    size == targets.length ? targets : Arrays.copyOf(targets, size),
+                    data == null ? null : Arrays.copyOf(data, size));
+        }
+
+        /**
+         * Sorts the edges of every node by target and drops repeated edges in place, the last added one wins.
+         *
+         * @return edge number after dropping
+         */
+        private static int sortAndDistinct(int[] offsets, int[] targets, Object[] data, int root)
+        {
+            int maxDegree = 0;
+            for (int node = 0; node <= root; node++) {
+                maxDegree = Math.max(maxDegree, offsets[node + 1] - offsets[node]);
+            }
+            //high 32 bits: target, low 32 bits: insertion order
+            long[] keys = new long[maxDegree];
+            Object[] values = data == null ? null : new Object[maxDegree];
+
+            int write = 0;
+            for (int node = 0; node <= root; node++) {
+                int begin = offsets[node];
+                int degree = offsets[node + 1] - begin;
+                offsets[node] = write;
+                for (int i = 0; i < degree; i++) {
+                    keys[i] = (long) targets[begin + i] << 32 | i;
+                }
+                if (values != null) {
+                    System.arraycopy(data, begin, values, 0, degree);
+                }
+                Arrays.sort(keys, 0, degree);
+                for (int i = 0; i < degree; i++) {
+                    int target = (int) (keys[i] >>> 32);
+                    if (i + 1 < degree && (int) (keys[i + 1] >>> 32) == target) {
+                        continue;
+                    }
+                    targets[write] = target;
+                    if (values != null) {
+                        data[write] = values[(int) keys[i]];
+                    }
+                    write++;
+                }
+            }
+            offsets[root + 1] = write;
+            return write;
+        }
+    }
 }
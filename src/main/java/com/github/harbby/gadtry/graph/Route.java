@@ -28,6 +28,17 @@ public interface Route<E, R>
 
     public Route.Builder<E, R> copy();
 
+    /**
+     * 在路径末尾追加一条边, 返回新路径, 当前路径不变
+     *
+     * @param edge next edge, its in node must be the last node of this route
+     * @return new route
+     */
+    public default Route<E, R> extend(Edge<E, R> edge)
+    {
+        return copy().add(edge).create();
+    }
+
     /**
      * 检测死递归
      *
@@ -35,6 +46,15 @@ public interface Route<E, R>
      */
     public boolean findDeadLoop();
 
+    /**
+     * @param nodeId node id
+     * @return true if the node is on this route
+     */
+    public default boolean contains(String nodeId)
+    {
+        return getIds().contains(nodeId);
+    }
+
     public Deque<Edge<E, R>> getEdges();
 
     public int size();
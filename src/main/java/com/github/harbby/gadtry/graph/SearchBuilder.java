@@ -17,12 +17,15 @@ package com.github.harbby.gadtry.graph;
 
 import com.github.harbby.gadtry.collection.mutable.MutableList;
 
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Objects.requireNonNull;
 
@@ -32,7 +35,16 @@ public class SearchBuilder<E, R>
     {
         RECURSIVE_DEPTH_FIRST, //递归 深度优先 recursive_depth_first
         BREADTH_FIRST,   //广度优先 breadth_first
-        DEPTH_FIRST   //深度优先 depth_first
+        DEPTH_FIRST,   //深度优先 depth_first
+        /**
+         * 并行广度优先: 每一层的路径由 ForkJoinPool 并行扩展, 全部完成后再进入下一层.
+         * nextRule/globalRule 会被多个线程同时调用, 必须线程安全.
+         * 没有提前结束时, 结果及顺序与 BREADTH_FIRST 相同.
+         * globalRule 返回false后, 各线程不再扩展新的边, 也不再进入下一层,
+         * 但其他线程正在检查的路径仍会完成, 所以 getFindNodeNumber 最多多出并行度个,
+         * getLastRoute 是最后一个被检查的路径
+         */
+        PARALLEL_BREADTH_FIRST
     }
 
     private final Graph<E, R> graph;
@@ -42,6 +54,7 @@ public class SearchBuilder<E, R>
     private Node<E, R> endNode;
     private Function<Route<E, R>, Boolean> nextRule;
     private Function<SearchContext<E, R>, Boolean> globalRule = erSearchContext -> true;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
 
     public SearchBuilder(Graph<E, R> graph, Node<E, R> root)
     {
@@ -55,6 +68,16 @@ public class SearchBuilder<E, R>
         return this;
     }
 
+    /**
+     * @param pool pool of {@link Optimizer#PARALLEL_BREADTH_FIRST}, default is {@link ForkJoinPool#commonPool()}
+     * @return this
+     */
+    public SearchBuilder<E, R> pool(ForkJoinPool pool)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        return this;
+    }
+
     public SearchBuilder<E, R> beginNode(String beginNodeId)
     {
         requireNonNull(beginNodeId, "beginNodeId is null");
@@ -81,43 +104,43 @@ public class SearchBuilder<E, R>
         return this;
     }
 
+    /**
+     * Lazy search, routes are expanded only when the iterator is consumed.
+     * The iterator is not thread safe.
+     *
+     * @return routes accepted by nextRule (ending at endNode if set), in the order of the optimizer
+     */
+    public Iterator<Route<E, R>> iterator()
+    {
+        requireNonNull(nextRule, "nextRule is null");
+        return new SearchIterator<>(optimizer, new SearchContext<>(nextRule, globalRule), Route.builder(beginNode).create(), endNode, pool);
+    }
+
+    /**
+     * Lazy search as a sequential stream, short-circuiting operations such as {@code limit(k)} stop the search
+     *
+     * @return stream of {@link #iterator()}
+     */
+    public Stream<Route<E, R>> stream()
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
     public SearchResult<E, R> search()
     {
         requireNonNull(nextRule, "nextRule is null");
 
         SearchContext<E, R> searchContext = new SearchContext<>(nextRule, globalRule);
         Route<E, R> begin = Route.builder(beginNode).create();
-        final Deque<Route<E, R>> routes = new LinkedList<>();
-
-        switch (optimizer) {
-            case DEPTH_FIRST:
-                searchByDepthFirst(routes, searchContext, begin);
-                break;
-            case BREADTH_FIRST:
-                searchByBreadthFirst(routes, searchContext, begin);
-                break;
-            case RECURSIVE_DEPTH_FIRST:
-            default:
-                try {
-                    searchByRecursiveDepthFirst(routes, searchContext, begin);
-                }
-                catch (RecursiveExitException ignored) {
-                }
-        }
+        final List<Route<E, R>> routes = new ArrayList<>();
+        new SearchIterator<>(optimizer, searchContext, begin, endNode, pool).forEachRemaining(routes::add);
 
         return new SearchResult<E, R>()
         {
             @Override
             public List<Route<E, R>> getRoutes()
             {
-                if (endNode != null) {
-                    return routes.stream()
-                            .filter(x -> endNode.getId().equals(x.getLastNodeId()))
-                            .collect(Collectors.toList());
-                }
-                else {
-                    return MutableList.copy(routes);
-                }
+                return MutableList.copy(routes);
             }
 
             @Override
@@ -133,94 +156,4 @@ public class SearchBuilder<E, R>
             }
         };
     }
-
-    /*
-     *  递归 深度优先
-     * */
-    private static <E, R> void searchByRecursiveDepthFirst(
-            Deque<Route<E, R>> routes,
-            SearchContext<E, R> context,
-            Route<E, R> route)
-    {
-        for (Edge<E, R> edge : route.getLastNode().nextNodes()) {   //use stream.parallel();
-            Route<E, R> newRoute = route.copy().add(edge).create();
-            context.setLastRoute(newRoute);
-            boolean next = context.getNextRule().apply(newRoute);
-            if (next) {
-                routes.add(newRoute);
-            }
-            if (!context.getGlobalRule().apply(context)) {
-                throw new RecursiveExitException();
-            }
-
-            if (next) {
-                searchByRecursiveDepthFirst(routes, context, newRoute);
-            }
-        }
-    }
-
-    private static class RecursiveExitException
-            extends RuntimeException
-    {
-    }
-
-    /**
-     * 广度优先 Breadth first
-     */
-    private static <E, R> void searchByBreadthFirst(
-            Deque<Route<E, R>> routes,
-            SearchContext<E, R> context,
-            Route<E, R> beginNode)
-    {
-        final Queue<Route<E, R>> nextNodes = new LinkedList<>();
-        nextNodes.add(beginNode);
-
-        Route<E, R> route;
-        while ((route = nextNodes.poll()) != null) {
-            for (Edge<E, R> edge : route.getLastNode().nextNodes()) {   //use stream.parallel();
-                Route<E, R> newRoute = route.copy().add(edge).create();
-                context.setLastRoute(newRoute);
-
-                if (context.getNextRule().apply(newRoute)) {
-                    routes.add(newRoute);
-                    nextNodes.add(newRoute);
-                }
-
-                if (!context.getGlobalRule().apply(context)) {
-                    nextNodes.clear();
-                    return;
-                }
-            }
-        }
-    }
-
-    /**
-     * 深度优先 Depth first
-     */
-    private static <E, R> void searchByDepthFirst(
-            Deque<Route<E, R>> routes,
-            SearchContext<E, R> context,
-            Route<E, R> beginNode)
-    {
-        final Deque<Route<E, R>> nextNodes = new LinkedList<>();  //Stack
-        nextNodes.add(beginNode);
-
-        Route<E, R> route;
-        while ((route = nextNodes.pollLast()) != null) {
-            for (Edge<E, R> edge : route.getLastNode().nextNodes()) {   //use stream.parallel();
-                Route<E, R> newRoute = route.copy().add(edge).create();
-                context.setLastRoute(newRoute);
-
-                if (context.getNextRule().apply(newRoute)) {
-                    routes.add(newRoute);
-                    nextNodes.add(newRoute);
-                }
-
-                if (!context.getGlobalRule().apply(context)) {
-                    nextNodes.clear();
-                    return;
-                }
-            }
-        }
-    }
 }
@@ -15,6 +15,7 @@
  */
 package com.github.harbby.gadtry.graph;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 public class SearchContext<N, E>
@@ -23,8 +24,9 @@ public class SearchContext<N, E>
     private final Function<SearchContext<N, E>, Boolean> globalRule;
     private final long searchStartTime = System.currentTimeMillis();
 
-    private Route<N, E> lastRoute;
-    private int number = 0;
+    //written by all workers of the parallel optimizer
+    private volatile Route<N, E> lastRoute;
+    private final AtomicInteger number = new AtomicInteger();
 
     public SearchContext(
             Function<Route<N, E>, Boolean> nextRule,
@@ -37,7 +39,7 @@ public class SearchContext<N, E>
     void setLastRoute(Route<N, E> lastRoute)
     {
         this.lastRoute = lastRoute;
-        this.number++;
+        this.number.incrementAndGet();
     }
 
     public Route<N, E> getLastRoute()
@@ -57,7 +59,7 @@ public class SearchContext<N, E>
 
     public int getFindNodeNumber()
     {
-        return number;
+        return number.get();
     }
 
     public Function<Route<N, E>, Boolean> getNextRule()
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Pull based search, {@link #hasNext()} expands routes only until the next route accepted by nextRule.
+ * Only the frontier is kept: the stack of DEPTH_FIRST, the queue of BREADTH_FIRST,
+ * the path being expanded by RECURSIVE_DEPTH_FIRST and the current level of PARALLEL_BREADTH_FIRST.
+ * The iteration ends when the graph is exhausted or globalRule returns false.
+ */
+class SearchIterator<E, R>
+        implements Iterator<Route<E, R>>
+{
+    private final SearchBuilder.Optimizer optimizer;
+    private final SearchContext<E, R> context;
+    private final Node<E, R> endNode;
+    private final ForkJoinPool pool;
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+
+    //DEPTH_FIRST and BREADTH_FIRST: routes to expand, RECURSIVE_DEPTH_FIRST: current path
+    private final Deque<Route<E, R>> routes = new ArrayDeque<>();
+    //RECURSIVE_DEPTH_FIRST: edges left of every route of the path
+    private final Deque<Iterator<Edge<E, R>>> pathEdges = new ArrayDeque<>();
+    private Route<E, R> current;
+    private Iterator<Edge<E, R>> currentEdges;
+    //PARALLEL_BREADTH_FIRST
+    private List<Route<E, R>> level;
+    private int levelIndex;
+
+    private Route<E, R> next;
+    private boolean finished;
+
+    SearchIterator(SearchBuilder.Optimizer optimizer, SearchContext<E, R> context, Route<E, R> begin, Node<E, R> endNode, ForkJoinPool pool)
+    {
+        this.optimizer = requireNonNull(optimizer, "optimizer is null");
+        this.context = requireNonNull(context, "context is null");
+        this.endNode = endNode;
+        this.pool = requireNonNull(pool, "pool is null");
+        switch (optimizer) {
+            case PARALLEL_BREADTH_FIRST:
+                this.level = Collections.singletonList(begin);
+                this.levelIndex = 1;
+                break;
+            case RECURSIVE_DEPTH_FIRST:
+                routes.add(begin);
+                pathEdges.add(begin.getLastNode().nextNodes().iterator());
+                break;
+            default:
+                routes.add(begin);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (next == null && !finished) {
+            Route<E, R> route;
+            switch (optimizer) {
+                case PARALLEL_BREADTH_FIRST:
+                    route = nextByLevel();
+                    break;
+                case RECURSIVE_DEPTH_FIRST:
+                    route = nextByPath();
+                    break;
+                default:
+                    route = nextByQueue();
+            }
+            if (route == null) {
+                finished = true;
+                //release the frontier
+                routes.clear();
+                pathEdges.clear();
+                current = null;
+                currentEdges = null;
+                level = null;
+            }
+            else if (endNode == null || endNode.getId().equals(route.getLastNodeId())) {
+                next = route;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Route<E, R> next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Route<E, R> route = next;
+        next = null;
+        return route;
+    }
+
+    /**
+     * @return nextRule result, stop is set if globalRule returns false
+     */
+    private boolean check(Route<E, R> newRoute)
+    {
+        context.setLastRoute(newRoute);
+        boolean accepted = context.getNextRule().apply(newRoute);
+        if (!context.getGlobalRule().apply(context)) {
+            stop.set(true);
+        }
+        return accepted;
+    }
+
+    /**
+     * 深度优先 Depth first, 广度优先 Breadth first
+     */
+    private Route<E, R> nextByQueue()
+    {
+        while (!stop.get()) {
+            if (currentEdges == null || !currentEdges.hasNext()) {
+                current = optimizer == SearchBuilder.Optimizer.BREADTH_FIRST ? routes.pollFirst() : routes.pollLast();
+                if (current == null) {
+                    return null;
+                }
+                currentEdges = current.getLastNode().nextNodes().iterator();
+                continue;
+            }
+            Route<E, R> newRoute = current.extend(currentEdges.next());
+            if (check(newRoute)) {
+                routes.add(newRoute);
+                return newRoute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 递归 深度优先, the recursion is kept in an explicit stack
+     */
+    private Route<E, R> nextByPath()
+    {
+        while (!stop.get()) {
+            Iterator<Edge<E, R>> edges = pathEdges.peekLast();
+            if (edges == null) {
+                return null;
+            }
+            if (!edges.hasNext()) {
+                pathEdges.pollLast();
+                routes.pollLast();
+                continue;
+            }
+            Route<E, R> newRoute = routes.getLast().extend(edges.next());
+            if (check(newRoute)) {
+                routes.add(newRoute);
+                pathEdges.add(newRoute.getLastNode().nextNodes().iterator());
+                return newRoute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 并行广度优先, the next level is expanded when the current one is consumed
+     */
+    private Route<E, R> nextByLevel()
+    {
+        while (true) {
+            if (levelIndex < level.size()) {
+                return level.get(levelIndex++);
+            }
+            if (level.isEmpty() || stop.get()) {
+                return null;
+            }
+            level = pool.invoke(new ExpandTask<>(context, stop, level, 0, level.size()));
+            levelIndex = 0;
+        }
+    }
+
+    /**
+     * Expands routes [begin, end) of one level, the accepted routes are returned in level order
+     */
+    private static class ExpandTask<E, R>
+            extends RecursiveTask<List<Route<E, R>>>
+    {
+        private static final int SPLIT_THRESHOLD = 16;
+
+        private final SearchContext<E, R> context;
+        private final AtomicBoolean stop;
+        private final List<Route<E, R>> level;
+        private final int begin;
+        private final int end;
+
+        private ExpandTask(SearchContext<E, R> context, AtomicBoolean stop, List<Route<E, R>> level, int begin, int end)
+        {
+            this.context = context;
+            this.stop = stop;
+            this.level = level;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Route<E, R>> compute()
+        {
+            if (end - begin > SPLIT_THRESHOLD) {
+                int middle = (begin + end) >>> 1;
+                ExpandTask<E, R> right = new ExpandTask<>(context, stop, level, middle, end);
+                right.fork();
+                List<Route<E, R>> left = new ExpandTask<>(context, stop, level, begin, middle).compute();
+                left.addAll(right.join());
+                return left;
+            }
+
+            List<Route<E, R>> nextLevel = new ArrayList<>();
+            for (int i = begin; i < end; i++) {
+                for (Edge<E, R> edge : level.get(i).getLastNode().nextNodes()) {
+                    if (stop.get()) {
+                        return nextLevel;
+                    }
+                    Route<E, R> newRoute = level.get(i).extend(edge);
+                    context.setLastRoute(newRoute);
+
+                    if (context.getNextRule().apply(newRoute)) {
+                        nextLevel.add(newRoute);
+                    }
+
+                    if (!context.getGlobalRule().apply(context)) {
+                        stop.set(true);
+                        return nextLevel;
+                    }
+                }
+            }
+            return nextLevel;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph.impl;
+
+import com.github.harbby.gadtry.graph.Edge;
+import com.github.harbby.gadtry.graph.ImmutableGraph;
+import com.github.harbby.gadtry.graph.Node;
+import com.github.harbby.gadtry.graph.Route;
+import com.github.harbby.gadtry.graph.SearchBuilder;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Immutable graph in compressed sparse row layout.
+ * <p>
+ * Node ids are interned to ints once, the edges of node {@code i} are
+ * {@code targets[offsets[i]]..targets[offsets[i + 1] - 1]} sorted by target index, and their data is
+ * kept in {@code edgeData} at the same positions (null if no edge has data).
+ * The virtual root "/" is the last index, its edges point to the nodes without in edges.
+ * {@link Node} and {@link Edge} are flyweights created on demand over these arrays.
+ */
+public class CsrGraph<E, R>
+        implements ImmutableGraph<E, R>
+{
+    private final String name;
+    private final String[] ids;
+    private final Map<String, Integer> index;
+    private final Object[] nodeData;
+    private final int[] offsets;
+    private final int[] targets;
+    private final Object[] edgeData;
+    private final int root;
+
+    /**
+     * @param name graph name
+     * @param ids node ids by index, the root "/" is the last one
+     * @param index node id to index, without the root
+     * @param nodeData node data by index, or null if no node has data
+     * @param offsets edge range of each node, length is {@code ids.length + 1}
+     * @param targets edge targets, sorted and distinct within each node
+     * @param edgeData edge data by edge position, or null if no edge has data
+     */
+    public CsrGraph(
+            String name,
+            String[] ids,
+            Map<String, Integer> index,
+            Object[] nodeData,
+            int[] offsets,
+            int[] targets,
+            Object[] edgeData)
+    {
+        this.name = name;
+        this.ids = requireNonNull(ids, "ids is null");
+        this.index = requireNonNull(index, "index is null");
+        this.nodeData = nodeData;
+        this.offsets = requireNonNull(offsets, "offsets is null");
+        this.targets = requireNonNull(targets, "targets is null");
+        this.edgeData = edgeData;
+        this.root = ids.length - 1;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getNodeNumber()
+    {
+        return root;
+    }
+
+    /**
+     * @return edge number, without the edges of the root
+     */
+    public int getEdgeNumber()
+    {
+        return offsets[root];
+    }
+
+    private Node<E, R> node(int nodeIndex)
+    {
+        return new CsrNode(nodeIndex);
+    }
+
+    @Override
+    public Node<E, R> getNode(String id)
+    {
+        Integer nodeIndex = requireNonNull(index.get(id), "NO SUCH Node " + id);
+        return node(nodeIndex);
+    }
+
+    @Override
+    public List<Route<E, R>> searchRuleRoute(String in, Function<Route<E, R>, Boolean> rule)
+    {
+        return new ArrayList<>(new SearchBuilder<>(this, getNode(in))
+                .optimizer(SearchBuilder.Optimizer.DEPTH_FIRST)
+                .nextRule(rule)
+                .search()
+                .getRoutes());
+    }
+
+    @Override
+    public List<Route<E, R>> searchRuleRoute(Function<Route<E, R>, Boolean> rule)
+    {
+        return new ArrayList<>(new SearchBuilder<>(this, node(root))
+                .optimizer(SearchBuilder.Optimizer.DEPTH_FIRST)
+                .nextRule(rule)
+                .search()
+                .getRoutes());
+    }
+
+    @Override
+    public Route<E, R> getRoute(String... nodeIds)
+    {
+        Node<E, R> begin = getNode(nodeIds[0]);
+        Route.Builder<E, R> route = Route.builder(begin);
+        for (int i = 1; i < nodeIds.length; i++) {
+            Edge<E, R> edge = begin.getNextNode(nodeIds[i]).orElseThrow(() -> new IllegalArgumentException("NO SUCH ROUTE"));
+            route.add(edge);
+            begin = edge.getOutNode();
+        }
+        return route.create();
+    }
+
+    @Override
+    public List<String> printShow()
+    {
+        List<String> builder = new ArrayList<>();
+        builder.add("/");
+        List<Node> nodes = node(root).nextNodes().stream().map(Edge::getOutNode).collect(Collectors.toList());
+        GraphUtil.printShow(builder, nodes);
+        return builder;
+    }
+
+    @Override
+    public Iterable<String> printShow(String id)
+    {
+        Node<E, R> firstNode = getNode(id);
+
+        List<String> builder = new ArrayList<>();
+        builder.add("/");
+
+        GraphUtil.printShow(builder, firstNode);
+        return builder;
+    }
+
+    @Override
+    public List<Node<E, R>> findNode(Function<Node<E, R>, Boolean> rule)
+    {
+        List<Node<E, R>> nodes = new ArrayList<>();
+        for (int i = 0; i < root; i++) {
+            Node<E, R> node = node(i);
+            if (rule.apply(node)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public SearchBuilder<E, R> search()
+    {
+        return new SearchBuilder<>(this, node(root));
+    }
+
+    private class CsrNode
+            implements Node<E, R>
+    {
+        private final int nodeIndex;
+
+        private CsrNode(int nodeIndex)
+        {
+            this.nodeIndex = nodeIndex;
+        }
+
+        @Override
+        public String getId()
+        {
+            return ids[nodeIndex];
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E getData()
+        {
+            return nodeData == null ? null : (E) nodeData[nodeIndex];
+        }
+
+        @Override
+        public Collection<Edge<E, R>> nextNodes()
+        {
+            final int begin = offsets[nodeIndex];
+            final int size = offsets[nodeIndex + 1] - begin;
+            return new AbstractList<Edge<E, R>>()
+            {
+                @Override
+                public Edge<E, R> get(int i)
+                {
+                    if (i < 0 || i >= size) {
+                        throw new IndexOutOfBoundsException(String.valueOf(i));
+                    }
+                    return new CsrEdge(nodeIndex, begin + i);
+                }
+
+                @Override
+                public int size()
+                {
+                    return size;
+                }
+            };
+        }
+
+        @Override
+        public Optional<Edge<E, R>> getNextNode(String id)
+        {
+            Integer target = index.get(id);
+            if (target == null) {
+                return Optional.empty();
+            }
+            int position = Arrays.binarySearch(targets, offsets[nodeIndex], offsets[nodeIndex + 1], target);
+            return position < 0 ? Optional.empty() : Optional.of(new CsrEdge(nodeIndex, position));
+        }
+
+        private CsrGraph<E, R> graph()
+        {
+            return CsrGraph.this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return nodeIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CsrGraph.CsrNode)) {
+                return false;
+            }
+            CsrGraph<?, ?>.CsrNode other = (CsrGraph<?, ?>.CsrNode) obj;
+            return this.nodeIndex == other.nodeIndex && graph() == other.graph();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "node:" + getId();
+        }
+    }
+
+    private class CsrEdge
+            implements Edge<E, R>
+    {
+        private final int inNode;
+        private final int position;
+
+        private CsrEdge(int inNode, int position)
+        {
+            this.inNode = inNode;
+            this.position = position;
+        }
+
+        @Override
+        public Node<E, R> getInNode()
+        {
+            return node(inNode);
+        }
+
+        @Override
+        public Node<E, R> getOutNode()
+        {
+            return node(targets[position]);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public R getData()
+        {
+            return edgeData == null ? null : (R) edgeData[position];
+        }
+
+        private CsrGraph<E, R> graph()
+        {
+            return CsrGraph.this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return position;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CsrGraph.CsrEdge)) {
+                return false;
+            }
+            CsrGraph<?, ?>.CsrEdge other = (CsrGraph<?, ?>.CsrEdge) obj;
+            return this.position == other.position && graph() == other.graph();
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("inNode", getInNode())
+                    .add("outNode", getOutNode())
+                    .add("edgeData", getData())
+                    .toString();
+        }
+    }
+}
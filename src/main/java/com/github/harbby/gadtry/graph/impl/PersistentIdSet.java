@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph.impl;
+
+/**
+ * Immutable set of node ids (hash array mapped trie).
+ * {@link #add(String)} copies only the nodes on the path of the id, the rest is shared with the old set.
+ */
+final class PersistentIdSet
+{
+    static final PersistentIdSet EMPTY = new PersistentIdSet(new TrieNode(0, new Object[0]), 0);
+
+    private final TrieNode root;
+    private final int size;
+
+    private PersistentIdSet(TrieNode root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean contains(String id)
+    {
+        return root.contains(id, id.hashCode(), 0);
+    }
+
+    /**
+     * @param id node id
+     * @return new set with the id, or this set itself if the id is already in it
+     */
+    public PersistentIdSet add(String id)
+    {
+        TrieNode newRoot = root.add(id, id.hashCode(), 0);
+        return newRoot == root ? this : new PersistentIdSet(newRoot, size + 1);
+    }
+
+    /**
+     * Children are ids (String), sub nodes, or String[] of ids with the same hash once all 32 bits are used
+     */
+    private static final class TrieNode
+    {
+        private final int bitmap;
+        private final Object[] array;
+
+        private TrieNode(int bitmap, Object[] array)
+        {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private boolean contains(String id, int hash, int shift)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return false;
+            }
+            Object child = array[Integer.bitCount(bitmap & (bit - 1))];
+            if (child instanceof TrieNode) {
+                return ((TrieNode) child).contains(id, hash, shift + 5);
+            }
+            else if (child instanceof String[]) {
+                return indexOf((String[]) child, id) >= 0;
+            }
+            else {
+                return id.equals(child);
+            }
+        }
+
+        private TrieNode add(String id, int hash, int shift)
+        {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 1];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = id;
+                System.arraycopy(array, index, newArray, index + 1, array.length - index);
+                return new TrieNode(bitmap | bit, newArray);
+            }
+
+            Object child = array[index];
+            Object newChild;
+            if (child instanceof TrieNode) {
+                newChild = ((TrieNode) child).add(id, hash, shift + 5);
+            }
+            else if (child instanceof String[]) {
+                String[] ids = (String[]) child;
+                if (indexOf(ids, id) >= 0) {
+                    return this;
+                }
+                String[] newIds = new String[ids.length + 1];
+                System.arraycopy(ids, 0, newIds, 0, ids.length);
+                newIds[ids.length] = id;
+                newChild = newIds;
+            }
+            else if (id.equals(child)) {
+                return this;
+            }
+            else {
+                String other = (String) child;
+                newChild = merge(other, other.hashCode(), id, hash, shift + 5);
+            }
+            if (newChild == child) {
+                return this;
+            }
+            Object[] newArray = array.clone();
+            newArray[index] = newChild;
+            return new TrieNode(bitmap, newArray);
+        }
+
+        private static Object merge(String id1, int hash1, String id2, int hash2, int shift)
+        {
+            if (shift >= 32) {
+                return new String[] {id1, id2};
+            }
+            int index1 = (hash1 >>> shift) & 31;
+            int index2 = (hash2 >>> shift) & 31;
+            if (index1 == index2) {
+                return new TrieNode(1 << index1, new Object[] {merge(id1, hash1, id2, hash2, shift + 5)});
+            }
+            Object[] array = index1 < index2 ? new Object[] {id1, id2} : new Object[] {id2, id1};
+            return new TrieNode(1 << index1 | 1 << index2, array);
+        }
+
+        private static int indexOf(String[] ids, String id)
+        {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i].equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -15,83 +15,125 @@
  */
 package com.github.harbby.gadtry.graph.impl;
 
-import com.github.harbby.gadtry.base.Iterators;
-import com.github.harbby.gadtry.base.Lazys;
 import com.github.harbby.gadtry.graph.Edge;
 import com.github.harbby.gadtry.graph.Node;
 import com.github.harbby.gadtry.graph.Route;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.function.Supplier;
 
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
 
+/**
+ * 不可变的单链表路径: (parent, edge, size)
+ * 子路径共享父路径, {@link #extend(Edge)} 和 getLastNode/getLastEdge 为O(1),
+ * getIds/getEdges 每次调用时才按需生成.
+ * 路径上的节点id保存在从父路径继承的 {@link PersistentIdSet} 中, findDeadLoop/contains 为O(1)
+ */
 public class RouteImpl<E, R>
         implements Route<E, R>
 {
     private final Node<E, R> begin;
-    private final Deque<Edge<E, R>> edges;
-    private final Supplier<Boolean> findDeadLoop;   //如果出现两次则说明发现循环
-    private final Supplier<List<String>> nodeIds;
+    private final RouteImpl<E, R> parent;
+    private final Edge<E, R> edge;
+    private final int size;
+    private final PersistentIdSet visited;
+    private final boolean deadLoop;
 
     public RouteImpl(Node<E, R> begin, Deque<Edge<E, R>> edges)
+    {
+        RouteImpl<E, R> route = new RouteImpl<>(begin, null, null, 0, PersistentIdSet.EMPTY.add(begin.getId()), false);
+        Edge<E, R> last = null;
+        for (Edge<E, R> erEdge : edges) {
+            if (last != null) {
+                route = route.extend(last);
+            }
+            last = erEdge;
+        }
+        this.begin = begin;
+        this.parent = last == null ? null : route;
+        this.edge = last;
+        this.size = last == null ? 0 : route.size + 1;
+        this.visited = last == null ? route.visited : route.visited.add(last.getOutNode().getId());
+        this.deadLoop = last != null && this.visited == route.visited;
+    }
+
+    private RouteImpl(Node<E, R> begin, RouteImpl<E, R> parent, Edge<E, R> edge, int size, PersistentIdSet visited, boolean deadLoop)
     {
         this.begin = begin;
-        this.edges = edges;
-        this.findDeadLoop = Lazys.goLazy(() -> {
-            Edge<E, R> lastEdge = getLastEdge();
-            return begin.getId().equals(lastEdge.getOutNode().getId()) ||
-                    edges.stream().anyMatch(erEdge -> erEdge != lastEdge && erEdge.getOutNode().getId()
-                            .equals(getLastNode().getId())); //如果出现两次则无须继续递归查找
-        });
-        this.nodeIds = Lazys.goLazy(() -> {
-            List<String> list = new ArrayList<>(this.size() + 1);
-            list.add(begin.getId());
-            this.edges.forEach(erEdge -> {
-                list.add(erEdge.getOutNode().getId());
-            });
-            return list;
-        });
+        this.parent = parent;
+        this.edge = edge;
+        this.size = size;
+        this.visited = visited;
+        this.deadLoop = deadLoop;
+    }
+
+    @Override
+    public RouteImpl<E, R> extend(Edge<E, R> edge)
+    {
+        requireNonNull(edge, "edge is null");
+        PersistentIdSet newVisited = visited.add(edge.getOutNode().getId());
+        //set unchanged: the new last node is already in this route
+        return new RouteImpl<>(begin, this, edge, size + 1, newVisited, newVisited == visited);
     }
 
     @Override
     public Route.Builder<E, R> copy()
     {
-        return Route.builder(begin).addAll(this.edges);
+        return Route.builder(begin).addAll(getEdges());
     }
 
     @Override
     public List<String> getIds()
     {
-        return nodeIds.get();
+        List<String> list = new ArrayList<>(size + 1);
+        for (RouteImpl<E, R> route = this; route.edge != null; route = route.parent) {
+            list.add(route.edge.getOutNode().getId());
+        }
+        list.add(begin.getId());
+        Collections.reverse(list);
+        return list;
     }
 
     /**
      * 检测死递归
      *
-     * @return true不存在死递归
+     * @return true 最后一个节点在路径中出现过两次
      */
     @Override
     public boolean findDeadLoop()
     {
-        return findDeadLoop.get();
+        checkState(edge != null, "this Route only begin node");
+        return deadLoop;
+    }
+
+    @Override
+    public boolean contains(String nodeId)
+    {
+        return visited.contains(nodeId);
     }
 
     @Override
     public Deque<Edge<E, R>> getEdges()
     {
+        LinkedList<Edge<E, R>> edges = new LinkedList<>();
+        for (RouteImpl<E, R> route = this; route.edge != null; route = route.parent) {
+            edges.addFirst(route.edge);
+        }
         return edges;
     }
 
     @Override
     public int size()
     {
-        return edges.size();
+        return size;
     }
 
     /**
@@ -100,32 +142,29 @@ public class RouteImpl<E, R>
     @Override
     public Node<E, R> getLastNode(int index)
     {
-        Iterator<Edge<E, R>> iterator = this.edges.descendingIterator();
-
-        if (this.size() == index) {
-            return begin;
-        }
-        else if (this.size() > index) {
-            return Iterators.getFirst(iterator, index).getOutNode();
-        }
-        else {
+        if (index < 0 || index > size) {
             throw new NoSuchElementException(String.valueOf(index));
         }
+        RouteImpl<E, R> route = this;
+        for (int i = 0; i < index; i++) {
+            route = route.parent;
+        }
+        return route.edge == null ? begin : route.edge.getOutNode();
     }
 
     @Override
     public Edge<E, R> getLastEdge()
     {
-        if (edges.isEmpty()) {
+        if (edge == null) {
             throw new IllegalStateException("this Route only begin node");
         }
-        return edges.getLast();
+        return edge;
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(begin, edges);
+        return Objects.hash(begin, getEdges());
     }
 
     @Override
@@ -139,8 +178,23 @@ public class RouteImpl<E, R>
             return false;
         }
 
-        RouteImpl other = (RouteImpl) obj;
-        return Objects.equals(this.begin, other.begin) && Objects.equals(this.edges, other.edges);
+        RouteImpl<?, ?> other = (RouteImpl<?, ?>) obj;
+        if (this.size != other.size) {
+            return false;
+        }
+        RouteImpl<?, ?> left = this;
+        RouteImpl<?, ?> right = other;
+        while (left.edge != null) {
+            if (left == right) {
+                return true;   //shared parent
+            }
+            if (!Objects.equals(left.edge, right.edge)) {
+                return false;
+            }
+            left = left.parent;
+            right = right.parent;
+        }
+        return Objects.equals(this.begin, other.begin);
     }
 
     @Override
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import sun.misc.Cleaner;
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Size-classed pool of direct ByteBuffers.
+ * <p>
+ * Requests are rounded up to a power of two between {@code minSize} and {@code maxSize}, bigger
+ * requests are not pooled. Every thread first reuses blocks from its own cache, then from a bounded
+ * shared pool of the size class, and only allocates native memory on a miss. The native memory is
+ * accounted in the {@link MemoryPool} of this pool.
+ * <p>
+ * Buffers should be given back by {@link #release(ByteBuffer)}. A buffer that is never released is
+ * recycled into the shared pool by its cleaner once it has been garbage collected, and counted by
+ * {@link #getLeakCount()}. Duplicates and slices keep their buffer reachable but must not be used
+ * after the release.
+ */
+public final class DirectBufferPool
+{
+    public static final int DEFAULT_MIN_SIZE = 4096;
+    public static final int DEFAULT_MAX_SIZE = 4 << 20;
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+    public static final int DEFAULT_SHARED_CACHE_SIZE = 64;
+
+    private final MemoryPool pool;
+    private final int minShift;
+    private final int maxSize;
+    private final int threadCacheSize;
+    private final int sharedCacheSize;
+    private final SizeClass[] sizeClasses;
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+
+    public DirectBufferPool()
+    {
+        this(MemoryManager.getDefaultPool(), DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_CACHE_SIZE);
+    }
+
+    /**
+     * @param pool native memory of the buffers is accounted here
+     * @param minSize smallest size class, power of two
+     * @param maxSize largest pooled size class, power of two
+     * @param threadCacheSize cached blocks per thread and size class
+     * @param sharedCacheSize blocks per size class in the shared pool
+     */
+    public DirectBufferPool(MemoryPool pool, int minSize, int maxSize, int threadCacheSize, int sharedCacheSize)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        checkArgument(minSize > 0 && Integer.bitCount(minSize) == 1, "minSize must be a power of two");
+        checkArgument(maxSize >= minSize && Integer.bitCount(maxSize) == 1, "maxSize must be a power of two and >= minSize");
+        checkArgument(threadCacheSize >= 0, "threadCacheSize must be non-negative");
+        checkArgument(sharedCacheSize >= 0, "sharedCacheSize must be non-negative");
+        this.minShift = Integer.numberOfTrailingZeros(minSize);
+        this.maxSize = maxSize;
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+        this.sizeClasses = new SizeClass[Integer.numberOfTrailingZeros(maxSize) - minShift + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(minSize << i);
+        }
+        this.threadCache = ThreadLocal.withInitial(() -> {
+            ThreadCache cache = new ThreadCache(sizeClasses.length);
+            ArrayDeque<Block>[] caches = cache.caches;
+            Cleaner.create(cache, () -> freeAll(caches));
+            return cache;
+        });
+    }
+
+    /**
+     * @param size buffer capacity, buffers bigger than {@code maxSize} are not pooled
+     * @return direct buffer with capacity and limit {@code size}, its content is not initialized
+     */
+    public ByteBuffer allocate(int size)
+    {
+        checkArgument(size >= 0, "size must be non-negative");
+        if (size > maxSize) {
+            misses.increment();
+            MemoryPool pool = this.pool;
+            long memory = pool.allocateMemory(size);
+            ByteBuffer buffer = UnsafeHelper.wrapDirectBuffer(memory, size, null);
+            UnsafeHelper.setCleaner(buffer, Cleaner.create(buffer, () -> pool.freeMemory(memory, size)));
+            return buffer;
+        }
+        int index = sizeClassIndex(size);
+        Block block = threadCache.get().caches[index].pollFirst();
+        if (block == null) {
+            block = sizeClasses[index].poll();
+        }
+        if (block == null) {
+            misses.increment();
+            block = new Block(pool.allocateMemory(sizeClasses[index].size), index);
+        }
+        else {
+            hits.increment();
+        }
+        outstanding.increment();
+        Lease lease = new Lease(block);
+        ByteBuffer buffer = UnsafeHelper.wrapDirectBuffer(block.address, size, lease);
+        UnsafeHelper.setCleaner(buffer, Cleaner.create(buffer, new LeakRecycler(this, lease)));
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool, unpooled buffers are freed. The buffer and all its views must
+     * not be used afterwards.
+     *
+     * @param buffer buffer returned by {@link #allocate(int)}
+     */
+    public void release(ByteBuffer buffer)
+    {
+        requireNonNull(buffer, "buffer is null");
+        checkArgument(buffer.isDirect(), "buffer is not direct");
+        Object attachment = ((DirectBuffer) buffer).attachment();
+        if (attachment == null) {
+            //not pooled, bigger than maxSize
+            UnsafeHelper.freeDirectBuffer(buffer);
+            return;
+        }
+        checkArgument(attachment instanceof Lease, "buffer is not allocated by this pool");
+        Lease lease = (Lease) attachment;
+        Block block = lease.block;
+        checkArgument(block.sizeClass < sizeClasses.length && sizeClasses[block.sizeClass].size >= buffer.capacity(),
+                "buffer is not allocated by this pool");
+        checkArgument(lease.released.compareAndSet(false, true), "buffer is already released");
+        //deregister the cleaner, it sees the block released and does nothing
+        UnsafeHelper.freeDirectBuffer(buffer);
+        outstanding.decrement();
+        ArrayDeque<Block> cache = threadCache.get().caches[block.sizeClass];
+        if (cache.size() < threadCacheSize) {
+            cache.addFirst(block);
+        }
+        else {
+            recycle(block);
+        }
+    }
+
+    private void recycle(Block block)
+    {
+        if (!sizeClasses[block.sizeClass].offer(block)) {
+            pool.freeMemory(block.address, sizeClasses[block.sizeClass].size);
+        }
+    }
+
+    private int sizeClassIndex(int size)
+    {
+        if (size <= 1 << minShift) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    private void freeAll(ArrayDeque<Block>[] caches)
+    {
+        for (int i = 0; i < caches.length; i++) {
+            Block block;
+            while ((block = caches[i].pollFirst()) != null) {
+                pool.freeMemory(block.address, sizeClasses[i].size);
+            }
+        }
+    }
+
+    /**
+     * Frees the blocks cached by the calling thread and by the shared pool
+     */
+    public void trim()
+    {
+        freeAll(threadCache.get().caches);
+        for (SizeClass sizeClass : sizeClasses) {
+            Block block;
+            while ((block = sizeClass.poll()) != null) {
+                pool.freeMemory(block.address, sizeClass.size);
+            }
+        }
+    }
+
+    public MemoryPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * @return allocations served from a thread cache or the shared pool
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return allocations that needed new native memory
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return pooled buffers allocated and not released yet
+     */
+    public long getOutstandingCount()
+    {
+        return outstanding.sum();
+    }
+
+    /**
+     * @return pooled buffers recycled by their cleaner instead of {@link #release(ByteBuffer)}
+     */
+    public long getLeakCount()
+    {
+        return leaks.sum();
+    }
+
+    /**
+     * @return blocks in the shared pool
+     */
+    public int getSharedCachedCount()
+    {
+        int count = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            count += sizeClass.count.get();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DirectBufferPool{pool=" + pool.getName() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                ", outstanding=" + getOutstandingCount() +
+                ", leaks=" + getLeakCount() + "}";
+    }
+
+    private static final class Block
+    {
+        private final long address;
+        private final int sizeClass;
+
+        private Block(long address, int sizeClass)
+        {
+            this.address = address;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    /**
+     * One allocation of a block, attached to its buffer. The released state belongs to the buffer,
+     * so a stale buffer can not release the block again once it has been reused.
+     */
+    private static final class Lease
+    {
+        private final Block block;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Block block)
+        {
+            this.block = block;
+        }
+    }
+
+    private final class SizeClass
+    {
+        private final int size;
+        private final ConcurrentLinkedQueue<Block> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SizeClass(int size)
+        {
+            this.size = size;
+        }
+
+        private Block poll()
+        {
+            Block block = queue.poll();
+            if (block != null) {
+                count.decrementAndGet();
+            }
+            return block;
+        }
+
+        private boolean offer(Block block)
+        {
+            if (count.incrementAndGet() > sharedCacheSize) {
+                count.decrementAndGet();
+                return false;
+            }
+            queue.offer(block);
+            return true;
+        }
+    }
+
+    /**
+     * Per thread cache, its blocks are freed by a cleaner when the thread has died
+     */
+    private static final class ThreadCache
+    {
+        private final ArrayDeque<Block>[] caches;
+
+        @SuppressWarnings("unchecked")
+        private ThreadCache(int sizeClassNumber)
+        {
+            this.caches = new ArrayDeque[sizeClassNumber];
+            for (int i = 0; i < sizeClassNumber; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * Cleaner action of a pooled buffer, it must not reference the buffer
+     */
+    private static final class LeakRecycler
+            implements Runnable
+    {
+        private final DirectBufferPool bufferPool;
+        private final Lease lease;
+
+        private LeakRecycler(DirectBufferPool bufferPool, Lease lease)
+        {
+            this.bufferPool = bufferPool;
+            this.lease = lease;
+        }
+
+        @Override
+        public void run()
+        {
+            if (lease.released.compareAndSet(false, true)) {
+                bufferPool.leaks.increment();
+                bufferPool.outstanding.decrement();
+                bufferPool.recycle(lease.block);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Detects off-heap blocks that were reclaimed by the garbage collector without being closed.
+ * <p>
+ * Every such block is counted by {@link #getLeakCount()}. For a sampled fraction of blocks the
+ * allocation stack is recorded as well and handed to the leak listener when the block leaks, the
+ * default listener ignores it.
+ * The sample rate defaults to the system property {@value #SAMPLE_RATE_PROPERTY} (0 = disabled).
+ */
+public final class LeakDetector
+{
+    private LeakDetector() {}
+
+    public static final String SAMPLE_RATE_PROPERTY = "gadtry.memory.leakDetector.sampleRate";
+
+    private static final AtomicLong leakCount = new AtomicLong();
+    private static final AtomicLong leakBytes = new AtomicLong();
+    private static volatile double sampleRate = Double.parseDouble(System.getProperty(SAMPLE_RATE_PROPERTY, "0"));
+    private static volatile Consumer<Leak> leakListener = leak -> {};
+
+    /**
+     * @param rate fraction of allocations whose stack is recorded, between 0 and 1
+     */
+    public static void setSampleRate(double rate)
+    {
+        checkArgument(rate >= 0 && rate <= 1, "sample rate must be between 0 and 1");
+        sampleRate = rate;
+    }
+
+    public static double getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * The listener is called on the reference handler thread and must be fast and non-blocking
+     *
+     * @param listener sampled leak listener
+     */
+    public static void setLeakListener(Consumer<Leak> listener)
+    {
+        leakListener = requireNonNull(listener, "listener is null");
+    }
+
+    /**
+     * @return number of blocks reclaimed without close, sampled or not
+     */
+    public static long getLeakCount()
+    {
+        return leakCount.get();
+    }
+
+    public static long getLeakBytes()
+    {
+        return leakBytes.get();
+    }
+
+    static Leak track(long size)
+    {
+        double rate = sampleRate;
+        if (rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)) {
+            return new Leak(size);
+        }
+        return null;
+    }
+
+    static void reportLeak(long size, Leak leak)
+    {
+        leakCount.incrementAndGet();
+        leakBytes.addAndGet(size);
+        if (leak != null) {
+            try {
+                leakListener.accept(leak);
+            }
+            catch (Throwable ignored) {
+                //a cleaner must never throw
+            }
+        }
+    }
+
+    public static final class Leak
+    {
+        private final long size;
+        private final long allocateTime = System.currentTimeMillis();
+        private final Throwable allocation;
+
+        private Leak(long size)
+        {
+            this.size = size;
+            this.allocation = new Throwable("allocated at");
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getAllocateTime()
+        {
+            return allocateTime;
+        }
+
+        public StackTraceElement[] getAllocationStackTrace()
+        {
+            return allocation.getStackTrace();
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder("LEAK: off-heap block of ")
+                    .append(size).append(" bytes was reclaimed by gc without close(), allocated at:");
+            for (StackTraceElement element : allocation.getStackTrace()) {
+                builder.append("\n\tat ").append(element);
+            }
+            return builder.toString();
+        }
+    }
+}
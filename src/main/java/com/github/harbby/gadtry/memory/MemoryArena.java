@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import sun.misc.Unsafe;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Slab allocator for small off-heap values.
+ * <p>
+ * Native memory is requested from the system in large chunks, which are carved into size-classed slots
+ * by bumping a pointer. Freed slots are kept on per-class free-lists (linked through the first 8 bytes of
+ * the slot itself, so the free-lists live in native memory) and are reused by later allocations.
+ * Requests larger than {@link #getMaxSlotSize()} fall back to one {@code allocateMemory} each.
+ * <p>
+ * {@link #close()} releases every chunk at once. Addresses handed out by this arena must not be used
+ * after it has been closed.
+ * <p>
+ * Chunks are reserved from a {@link MemoryPool}, free slots are reported to the pool as not in use.
+ * The arena lock is never held while waiting for the pool, and the frees of {@link MemoryBlock}
+ * cleaners do not take it at all.
+ */
+public final class MemoryArena
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;  //4M
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static final int SMALL_CLASS_NUMBER = 16;  //16, 32 ... 256
+
+    private final MemoryPool pool;
+    private final int chunkSize;
+    private final int maxSlotSize;
+    private final long[] freeLists;
+    private final Map<Long, Long> hugeBlocks = new ConcurrentHashMap<>();
+    private final AtomicLong hugeBytes = new AtomicLong();
+    //[address, size] of slots freed by cleaners, returned to the free-lists under the lock
+    private final Queue<long[]> pendingFrees = new ConcurrentLinkedQueue<>();
+
+    private long[] chunks = new long[8];
+    private int chunkNumber = 0;
+    private long cursor;
+    private long limit;
+
+    private long usedBytes = 0;
+    private volatile boolean closed = false;
+
+    public MemoryArena()
+    {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public MemoryArena(int chunkSize)
+    {
+        this(chunkSize, MemoryManager.getDefaultPool());
+    }
+
+    public MemoryArena(int chunkSize, MemoryPool pool)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        checkArgument(chunkSize >= MIN_CHUNK_SIZE && Integer.bitCount(chunkSize) == 1,
+                "chunkSize must be a power of two and not less than %s", MIN_CHUNK_SIZE);
+        this.chunkSize = chunkSize;
+        this.maxSlotSize = chunkSize >> 2;
+        this.freeLists = new long[sizeClass(maxSlotSize) + 1];
+    }
+
+    /**
+     * Size classes are 16 bytes apart up to 256 bytes, above that every power of two range is split into
+     * four classes, so a slot wastes at most 25% of its size.
+     */
+    static int sizeClass(int size)
+    {
+        if (size <= 256) {
+            return size <= 16 ? 0 : (size - 1) >> 4;
+        }
+        int k = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int sub = (size - 1 - (1 << k)) >> (k - 2);
+        return SMALL_CLASS_NUMBER + ((k - 8) << 2) + sub;
+    }
+
+    static int slotSize(int sizeClass)
+    {
+        if (sizeClass < SMALL_CLASS_NUMBER) {
+            return (sizeClass + 1) << 4;
+        }
+        int k = ((sizeClass - SMALL_CLASS_NUMBER) >> 2) + 8;
+        int sub = (sizeClass - SMALL_CLASS_NUMBER) & 3;
+        return (1 << k) + ((sub + 1) << (k - 2));
+    }
+
+    public MemoryPool getPool()
+    {
+        return pool;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public int getMaxSlotSize()
+    {
+        return maxSlotSize;
+    }
+
+    /**
+     * @param size value size in bytes
+     * @return native address of at least {@code size} bytes
+     */
+    public long allocate(int size)
+    {
+        checkState(!closed, "arena is closed");
+        checkArgument(size >= 0, "size must be non-negative");
+        if (size > maxSlotSize) {
+            long address = pool.allocateMemory(size);
+            hugeBlocks.put(address, (long) size);
+            hugeBytes.addAndGet(size);
+            if (closed) {
+                freeHuge(address);
+                throw new IllegalStateException("arena is closed");
+            }
+            return address;
+        }
+
+        int sizeClass = sizeClass(size);
+        int slotSize = slotSize(sizeClass);
+        while (true) {
+            synchronized (this) {
+                checkState(!closed, "arena is closed");
+                drainPendingFrees();
+                long address = freeLists[sizeClass];
+                if (address != 0) {
+                    freeLists[sizeClass] = unsafe.getLong(address);
+                }
+                else if (limit - cursor >= slotSize) {
+                    address = cursor;
+                    cursor += slotSize;
+                }
+                if (address != 0) {
+                    usedBytes += slotSize;
+                    pool.updateUsed(slotSize);
+                    return address;
+                }
+            }
+            //the pool may block or spill, so the chunk is allocated without holding the lock
+            long chunk = pool.allocateMemory(chunkSize);
+            synchronized (this) {
+                if (closed || limit - cursor >= slotSize) {
+                    //closed meanwhile, or another thread added a chunk
+                    pool.freeMemory(chunk, chunkSize);
+                }
+                else {
+                    addChunk(chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a slot to its free-list. {@code size} must be the value passed to {@link #allocate(int)}.
+     * Freeing after {@link #close()} is a no-op.
+     *
+     * @param address address returned by {@link #allocate(int)}
+     * @param size allocate size
+     */
+    public void free(long address, int size)
+    {
+        if (size > maxSlotSize) {
+            checkState(freeHuge(address) || closed, "address %s not allocate by this arena", address);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            drainPendingFrees();
+            freeSlot(address, size);
+        }
+    }
+
+    /**
+     * Free path of the {@link MemoryBlock} cleaner, it may run on the reference handler thread and
+     * never waits for the arena lock. Slots are queued until the next allocate or free.
+     */
+    void freeFromCleaner(long address, int size)
+    {
+        if (size > maxSlotSize) {
+            freeHuge(address);
+        }
+        else if (!closed) {
+            pendingFrees.add(new long[] {address, size});
+        }
+    }
+
+    private boolean freeHuge(long address)
+    {
+        Long size = hugeBlocks.remove(address);
+        if (size == null) {
+            return false;
+        }
+        hugeBytes.addAndGet(-size);
+        pool.freeMemory(address, size);
+        return true;
+    }
+
+    private void drainPendingFrees()
+    {
+        long[] pending;
+        while ((pending = pendingFrees.poll()) != null) {
+            freeSlot(pending[0], (int) pending[1]);
+        }
+    }
+
+    private void freeSlot(long address, int size)
+    {
+        int sizeClass = sizeClass(size);
+        usedBytes -= slotSize(sizeClass);
+        pool.updateUsed(-slotSize(sizeClass));
+        pushFree(sizeClass, address);
+    }
+
+    private void pushFree(int sizeClass, long address)
+    {
+        unsafe.putLong(address, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    private void addChunk(long address)
+    {
+        //the tail of the old chunk is recycled into the free-lists of the smaller classes
+        for (int sizeClass = freeLists.length - 1; sizeClass >= 0 && limit - cursor >= slotSize(0); sizeClass--) {
+            int slotSize = slotSize(sizeClass);
+            while (limit - cursor >= slotSize) {
+                pushFree(sizeClass, cursor);
+                cursor += slotSize;
+            }
+        }
+
+        pool.updateUsed(-chunkSize);
+        if (chunkNumber == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkNumber << 1);
+        }
+        chunks[chunkNumber++] = address;
+        this.cursor = address;
+        this.limit = address + chunkSize;
+    }
+
+    /**
+     * @return bytes requested from the system
+     */
+    public synchronized long getReservedBytes()
+    {
+        return (long) chunkNumber * chunkSize + hugeBytes.get();
+    }
+
+    /**
+     * @return bytes held by live slots (rounded up to the slot size)
+     */
+    public synchronized long getUsedBytes()
+    {
+        if (!closed) {
+            drainPendingFrees();
+        }
+        return usedBytes + hugeBytes.get();
+    }
+
+    public synchronized int getChunkNumber()
+    {
+        return chunkNumber;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Bulk release all chunks and huge blocks held by this arena
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        this.closed = true;
+        drainPendingFrees();
+        pool.updateUsed((long) chunkNumber * chunkSize - usedBytes);
+        for (int i = 0; i < chunkNumber; i++) {
+            pool.freeMemory(chunks[i], chunkSize);
+        }
+        //a cleaner may free a huge block concurrently, remove() decides who frees it
+        for (Long address : hugeBlocks.keySet()) {
+            freeHuge(address);
+        }
+        Arrays.fill(freeLists, 0);
+        this.chunkNumber = 0;
+        this.usedBytes = 0;
+        this.cursor = 0;
+        this.limit = 0;
+    }
+}
@@ -15,25 +15,72 @@
  */
 package com.github.harbby.gadtry.memory;
 
+import sun.misc.Cleaner;
 import sun.misc.Unsafe;
 
+import java.io.DataInput;
+import java.nio.ByteBuffer;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+
+/**
+ * A value copied into native memory. The memory is released by {@link #close()}, or by a
+ * {@link Cleaner} once the block becomes unreachable without being closed, see {@link LeakDetector}.
+ */
 public final class MemoryBlock
         implements AutoCloseable
 {
     private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
     private final long address;
     private final int maxOffset;
-    private volatile boolean isFree = false;
+    private final Deallocator deallocator;
+    private final Cleaner cleaner;
 
     public MemoryBlock(byte[] value)
     {
-        this.address = unsafe.allocateMemory(value.length);  //2 * 1024 * 1024=2M
-        unsafe.setMemory(address, value.length, (byte) 0xa5);  //init
-        this.maxOffset = value.length;
+        this(null, value.length);
+        UnsafeHelper.copyMemory(value, BYTE_ARRAY_OFFSET, null, address, value.length);
+    }
+
+    /**
+     * Allocate the block from a slab arena. If arena is null, this is the same as {@link #MemoryBlock(byte[])}
+     *
+     * @param arena slab arena, may be null
+     * @param value block value
+     * @return new block
+     */
+    public static MemoryBlock allocate(MemoryArena arena, byte[] value)
+    {
+        MemoryBlock block = new MemoryBlock(arena, value.length);
+        UnsafeHelper.copyMemory(value, BYTE_ARRAY_OFFSET, null, block.address, value.length);
+        return block;
+    }
+
+    /**
+     * Allocate an uninitialized block, the caller writes the value to {@link #getAddress()} directly.
+     *
+     * @param arena slab arena, may be null
+     * @param size block size
+     * @return new block
+     */
+    public static MemoryBlock allocate(MemoryArena arena, int size)
+    {
+        return new MemoryBlock(arena, size);
+    }
 
-        for (int i = 0; i < value.length; i++) {
-            unsafe.putByte(null, address + i, value[i]);
+    //private, the ioc injector requires a single public constructor
+    private MemoryBlock(MemoryArena arena, int size)
+    {
+        if (arena == null) {
+            this.address = MemoryManager.getDefaultPool().allocateMemory(size);  //2 * 1024 * 1024=2M
+            unsafe.setMemory(address, size, (byte) 0xa5);  //init
         }
+        else {
+            this.address = arena.allocate(size);
+        }
+        this.maxOffset = size;
+        this.deallocator = new Deallocator(arena, address, maxOffset, LeakDetector.track(maxOffset));
+        this.cleaner = Cleaner.create(this, deallocator);
     }
 
     public int getSize()
@@ -41,37 +88,87 @@ public final class MemoryBlock
         return maxOffset;
     }
 
+    public long getAddress()
+    {
+        return address;
+    }
+
     public byte[] getByteValue()
     {
         byte[] bytes = new byte[maxOffset];
-        for (int i = 0; i < maxOffset; i++) {
-            bytes[i] = unsafe.getByte(address + i);
-        }
-
+        UnsafeHelper.copyMemory(null, address, bytes, BYTE_ARRAY_OFFSET, maxOffset);
         return bytes;
     }
 
-    private synchronized void free()
+    /**
+     * Zero-copy read only view of this block. The view keeps this block reachable,
+     * but must not be used after {@link #close()}
+     *
+     * @return read only direct ByteBuffer
+     */
+    public ByteBuffer asByteBuffer()
     {
-        if (!isFree) {
-            unsafe.setMemory(address, maxOffset, (byte) 0x5a);  //init
-            unsafe.freeMemory(address);
-            this.isFree = true;
+        return UnsafeHelper.wrapDirectBuffer(address, maxOffset, this).asReadOnlyBuffer();
+    }
+
+    /**
+     * Zero-copy DataInput view of this block, must not be used after {@link #close()}
+     *
+     * @return DataInput
+     */
+    public DataInput getDataInput()
+    {
+        return new NativeDataInput(null, address, maxOffset, this);
+    }
+
+    /**
+     * Must not reference the MemoryBlock, otherwise the block would never become phantom reachable
+     */
+    private static final class Deallocator
+            implements Runnable
+    {
+        private final MemoryArena arena;
+        private final long address;
+        private final int size;
+        private final LeakDetector.Leak leak;
+        private volatile boolean closed = false;
+
+        private Deallocator(MemoryArena arena, long address, int size, LeakDetector.Leak leak)
+        {
+            this.arena = arena;
+            this.address = address;
+            this.size = size;
+            this.leak = leak;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!closed) {
+                LeakDetector.reportLeak(size, leak);
+            }
+            if (arena != null) {
+                arena.freeFromCleaner(address, size);
+            }
+            else {
+                unsafe.setMemory(address, size, (byte) 0x5a);  //init
+                MemoryManager.getDefaultPool().freeMemory(address, size);
+            }
         }
     }
 
-    @Override
-    protected void finalize()
-            throws Throwable
+    /**
+     * Runs the cleaner like the gc does for an unreachable block, lets tests report a leak without gc
+     */
+    void cleanAsUnreachable()
     {
-        this.free();
-        super.finalize();
-        //System.out.println(this.getClass() + "[time:" + System.currentTimeMillis() + "] finalize. gc 释放堆外内存" + address);
+        cleaner.clean();
     }
 
     @Override
     public void close()
     {
-        this.free();
+        deallocator.closed = true;
+        cleaner.clean();
     }
 }
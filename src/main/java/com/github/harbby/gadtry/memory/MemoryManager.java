@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Registry of the off-heap {@link MemoryPool}s. Every native allocation of this package goes through a pool,
+ * by default the pool named {@value #DEFAULT_POOL} whose budget is read from the system property
+ * {@value #MAX_OFF_HEAP_PROPERTY} (unlimited if not set).
+ */
+public final class MemoryManager
+{
+    private MemoryManager() {}
+
+    public static final String DEFAULT_POOL = "default";
+    public static final String MAX_OFF_HEAP_PROPERTY = "gadtry.memory.maxOffHeapBytes";
+
+    private static final ConcurrentMap<String, MemoryPool> pools = new ConcurrentHashMap<>();
+    private static final MemoryPool defaultPool = new MemoryPool(DEFAULT_POOL,
+            Long.parseLong(System.getProperty(MAX_OFF_HEAP_PROPERTY, String.valueOf(Long.MAX_VALUE))),
+            MemoryPool.Policy.FAIL_FAST);
+
+    static {
+        pools.put(DEFAULT_POOL, defaultPool);
+    }
+
+    public static MemoryPool getDefaultPool()
+    {
+        return defaultPool;
+    }
+
+    public static MemoryPool createPool(String name, long budget, MemoryPool.Policy policy)
+    {
+        MemoryPool pool = new MemoryPool(name, budget, policy);
+        checkState(pools.putIfAbsent(name, pool) == null, "memory pool %s already exists", name);
+        return pool;
+    }
+
+    public static MemoryPool getPool(String name)
+    {
+        return requireNonNull(pools.get(name), "NO SUCH memory pool " + name);
+    }
+
+    /**
+     * Unregister a pool, its memory is still accounted until freed
+     *
+     * @param name pool name
+     */
+    public static void removePool(String name)
+    {
+        checkState(!DEFAULT_POOL.equals(name), "default pool can not be removed");
+        pools.remove(name);
+    }
+
+    public static Collection<MemoryPool> getPools()
+    {
+        return Collections.unmodifiableCollection(pools.values());
+    }
+
+    public static long getReservedBytes()
+    {
+        return pools.values().stream().mapToLong(MemoryPool::getReservedBytes).sum();
+    }
+
+    public static long getUsedBytes()
+    {
+        return pools.values().stream().mapToLong(MemoryPool::getUsedBytes).sum();
+    }
+}
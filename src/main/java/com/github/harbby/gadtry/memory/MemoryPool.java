@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import sun.misc.Unsafe;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Accounting and budget of a group of native allocations, see {@link MemoryManager}.
+ * <p>
+ * reserved bytes are bytes taken from the system through this pool, the budget applies to them.
+ * used bytes are the part handed out to values, sub allocators such as {@link MemoryArena} report
+ * their free space with {@link #updateUsed(long)}.
+ */
+public final class MemoryPool
+{
+    public enum Policy
+    {
+        FAIL_FAST,  //throw MemoryBudgetException
+        BLOCK,      //wait for other threads to free memory, at most maxWaitMillis
+        SPILL       //ask the registered Spillable to release memory
+    }
+
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    private final String name;
+    private final Policy policy;
+    private final List<Spillable> spillables = new CopyOnWriteArrayList<>();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong blockCount = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private final Object lock = new Object();
+
+    private volatile long budget;
+    private volatile long maxWaitMillis = 30_000;
+    private volatile int waiters = 0;
+
+    MemoryPool(String name, long budget, Policy policy)
+    {
+        checkArgument(budget >= 0, "budget must be non-negative");
+        this.name = requireNonNull(name, "name is null");
+        this.budget = budget;
+        this.policy = requireNonNull(policy, "policy is null");
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    public void setBudget(long budget)
+    {
+        checkArgument(budget >= 0, "budget must be non-negative");
+        this.budget = budget;
+        this.signalWaiters();
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis)
+    {
+        checkArgument(maxWaitMillis >= 0, "maxWaitMillis must be non-negative");
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public long getReservedBytes()
+    {
+        return reservedBytes.get();
+    }
+
+    public long getUsedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    public long getBlockCount()
+    {
+        return blockCount.get();
+    }
+
+    public long getPeakBytes()
+    {
+        return peakBytes.get();
+    }
+
+    public void addSpillable(Spillable spillable)
+    {
+        spillables.add(requireNonNull(spillable, "spillable is null"));
+    }
+
+    public void removeSpillable(Spillable spillable)
+    {
+        spillables.remove(spillable);
+    }
+
+    /**
+     * @param size bytes
+     * @return native address
+     * @throws MemoryBudgetException if the budget can not be satisfied under the pool policy
+     */
+    public long allocateMemory(long size)
+    {
+        reserve(size);
+        long address;
+        try {
+            address = unsafe.allocateMemory(size);
+        }
+        catch (OutOfMemoryError e) {
+            release(size);
+            throw e;
+        }
+        blockCount.incrementAndGet();
+        usedBytes.addAndGet(size);
+        return address;
+    }
+
+    public void freeMemory(long address, long size)
+    {
+        unsafe.freeMemory(address);
+        blockCount.decrementAndGet();
+        usedBytes.addAndGet(-size);
+        release(size);
+    }
+
+    public long reallocateMemory(long address, long oldSize, long newSize)
+    {
+        long newAddress = allocateMemory(newSize);
+        UnsafeHelper.copyMemory(null, address, null, newAddress, Math.min(oldSize, newSize));
+        freeMemory(address, oldSize);
+        return newAddress;
+    }
+
+    /**
+     * @param delta used bytes change of a sub allocator, negative for memory that is reserved but free
+     */
+    public void updateUsed(long delta)
+    {
+        usedBytes.addAndGet(delta);
+    }
+
+    /**
+     * Reserve budget without allocating, for memory managed elsewhere (e.g. direct buffers)
+     *
+     * @param size bytes
+     */
+    public void reserve(long size)
+    {
+        checkArgument(size >= 0, "size must be non-negative");
+        long deadline = 0;
+        while (!tryReserve(size)) {
+            switch (policy) {
+                case SPILL:
+                    if (!trySpill(size)) {
+                        throw exhausted(size);
+                    }
+                    break;
+                case BLOCK:
+                    if (deadline == 0) {
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                    }
+                    if (!await(size, deadline)) {
+                        throw exhausted(size);
+                    }
+                    break;
+                case FAIL_FAST:
+                default:
+                    throw exhausted(size);
+            }
+        }
+    }
+
+    public void release(long size)
+    {
+        reservedBytes.addAndGet(-size);
+        signalWaiters();
+    }
+
+    private boolean tryReserve(long size)
+    {
+        while (true) {
+            long reserved = reservedBytes.get();
+            long newReserved = reserved + size;
+            if (newReserved > budget || newReserved < 0) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(reserved, newReserved)) {
+                peakBytes.accumulateAndGet(newReserved, Math::max);
+                return true;
+            }
+        }
+    }
+
+    private boolean trySpill(long size)
+    {
+        long required = reservedBytes.get() + size - budget;
+        if (required <= 0) {
+            //released by another thread meanwhile, reserve again
+            return true;
+        }
+        long released = 0;
+        for (Spillable spillable : spillables) {
+            released += spillable.spill(required - released);
+            if (released >= required) {
+                break;
+            }
+        }
+        return released > 0;
+    }
+
+    private boolean await(long size, long deadline)
+    {
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (reservedBytes.get() + size > budget) {
+                    long waitNanos = deadline - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+                }
+                return true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                waiters--;
+            }
+        }
+    }
+
+    private void signalWaiters()
+    {
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private MemoryBudgetException exhausted(long size)
+    {
+        return new MemoryBudgetException(String.format("memory pool [%s] can not reserve %s bytes, reserved %s of budget %s",
+                name, size, reservedBytes.get(), budget));
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("name", name)
+                .add("policy", policy)
+                .add("budget", budget)
+                .add("reserved", reservedBytes.get())
+                .add("used", usedBytes.get())
+                .add("blocks", blockCount.get())
+                .add("peak", peakBytes.get())
+                .toString();
+    }
+}
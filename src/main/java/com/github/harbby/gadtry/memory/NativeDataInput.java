@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import sun.misc.Unsafe;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Big-endian {@link DataInput} that decodes in place from a heap array or native memory,
+ * addressed as (base, offset) like {@link Unsafe}. For native memory base is null.
+ */
+public final class NativeDataInput
+        implements DataInput
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private final Object base;
+    private final long limit;
+    @SuppressWarnings("unused")
+    private final Object owner;  //keep the memory owner reachable
+    private long position;
+
+    public NativeDataInput(Object base, long offset, int length)
+    {
+        this(base, offset, length, null);
+    }
+
+    NativeDataInput(Object base, long offset, int length, Object owner)
+    {
+        this.base = base;
+        this.position = offset;
+        this.limit = offset + length;
+        this.owner = owner;
+    }
+
+    public int available()
+    {
+        return (int) (limit - position);
+    }
+
+    private long require(int size)
+            throws EOFException
+    {
+        if (limit - position < size) {
+            throw new EOFException();
+        }
+        long offset = position;
+        position += size;
+        return offset;
+    }
+
+    @Override
+    public void readFully(byte[] b)
+            throws IOException
+    {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len)
+            throws IOException
+    {
+        requireNonNull(b, "b is null");
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        long offset = require(len);
+        UnsafeHelper.copyMemory(base, offset, b, BYTE_ARRAY_OFFSET + off, len);
+    }
+
+    @Override
+    public int skipBytes(int n)
+    {
+        int skip = Math.max(0, Math.min(n, available()));
+        position += skip;
+        return skip;
+    }
+
+    @Override
+    public boolean readBoolean()
+            throws IOException
+    {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte()
+            throws IOException
+    {
+        return unsafe.getByte(base, require(1));
+    }
+
+    @Override
+    public int readUnsignedByte()
+            throws IOException
+    {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort()
+            throws IOException
+    {
+        short value = unsafe.getShort(base, require(2));
+        return BIG_ENDIAN ? value : Short.reverseBytes(value);
+    }
+
+    @Override
+    public int readUnsignedShort()
+            throws IOException
+    {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar()
+            throws IOException
+    {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt()
+            throws IOException
+    {
+        int value = unsafe.getInt(base, require(4));
+        return BIG_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    @Override
+    public long readLong()
+            throws IOException
+    {
+        long value = unsafe.getLong(base, require(8));
+        return BIG_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    @Override
+    public float readFloat()
+            throws IOException
+    {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble()
+            throws IOException
+    {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readLine()
+    {
+        if (position >= limit) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        while (position < limit) {
+            int c = unsafe.getByte(base, position++) & 0xFF;
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (position < limit && unsafe.getByte(base, position) == '\n') {
+                    position++;
+                }
+                break;
+            }
+            builder.append((char) c);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String readUTF()
+            throws IOException
+    {
+        return DataInputStream.readUTF(this);
+    }
+}
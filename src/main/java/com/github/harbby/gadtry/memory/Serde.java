@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+
+/**
+ * Codec that writes values straight into native (or heap) memory and reads them back without an
+ * intermediate {@code byte[]}. Memory is addressed the {@link sun.misc.Unsafe} way: a null base with
+ * an absolute address, or an array base with an offset.
+ * <p>
+ * Built-in codecs are in {@link Serdes}.
+ *
+ * @param <E> value type
+ */
+public interface Serde<E>
+{
+    /**
+     * @param value value
+     * @return exact number of bytes {@link #write(Object, Object, long)} writes for the value
+     */
+    int sizeOf(E value);
+
+    /**
+     * Write {@link #sizeOf(Object)} bytes
+     *
+     * @param value value
+     * @param base array base, null for native memory
+     * @param offset array offset or native address
+     */
+    void write(E value, Object base, long offset);
+
+    /**
+     * @param base array base, null for native memory
+     * @param offset array offset or native address
+     * @param length bytes written by {@link #write(Object, Object, long)}
+     * @return value
+     */
+    E read(Object base, long offset, int length);
+
+    /**
+     * Write at the buffer position and advance it
+     *
+     * @param value value
+     * @param buffer heap or direct ByteBuffer
+     */
+    default void write(E value, ByteBuffer buffer)
+    {
+        int size = sizeOf(value);
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        if (buffer.isDirect()) {
+            write(value, null, UnsafeHelper.getDirectBufferAddress(buffer) + buffer.position());
+        }
+        else if (buffer.hasArray()) {
+            write(value, buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + buffer.position());
+        }
+        else {
+            buffer.put(serialize(value));
+            return;
+        }
+        buffer.position(buffer.position() + size);
+    }
+
+    /**
+     * Read {@code length} bytes at the buffer position and advance it
+     *
+     * @param buffer heap or direct ByteBuffer
+     * @param length value size in bytes
+     * @return value
+     */
+    default E read(ByteBuffer buffer, int length)
+    {
+        if (buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        E value;
+        if (buffer.isDirect()) {
+            value = read(null, UnsafeHelper.getDirectBufferAddress(buffer) + buffer.position(), length);
+        }
+        else if (buffer.hasArray()) {
+            value = read(buffer.array(), BYTE_ARRAY_OFFSET + buffer.arrayOffset() + buffer.position(), length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            value = deserialize(bytes);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    default byte[] serialize(E value)
+    {
+        byte[] bytes = new byte[sizeOf(value)];
+        write(value, bytes, BYTE_ARRAY_OFFSET);
+        return bytes;
+    }
+
+    default E deserialize(byte[] bytes)
+    {
+        return read(bytes, BYTE_ARRAY_OFFSET, bytes.length);
+    }
+}
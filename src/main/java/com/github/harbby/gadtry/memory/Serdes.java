@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple;
+import com.github.harbby.gadtry.collection.tuple.Tuple1;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.collection.tuple.Tuple3;
+import com.github.harbby.gadtry.collection.tuple.Tuple4;
+import com.github.harbby.gadtry.collection.tuple.Tuple5;
+import sun.misc.Unsafe;
+
+import java.util.function.Function;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Built-in {@link Serde} codecs. Primitives are stored in native byte order, Strings are stored
+ * as one byte per char when every char is Latin-1, otherwise as UTF-8.
+ * Null values are only supported as tuple fields.
+ */
+public final class Serdes
+{
+    private Serdes() {}
+
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    private static final byte LATIN1 = 0;
+    private static final byte UTF8 = 1;
+
+    private static final Serde<Boolean> BOOLEAN_SERDE = new FixedSizeSerde<Boolean>(1)
+    {
+        @Override
+        public void write(Boolean value, Object base, long offset)
+        {
+            unsafe.putByte(base, offset, value ? (byte) 1 : 0);
+        }
+
+        @Override
+        public Boolean read(Object base, long offset, int length)
+        {
+            return unsafe.getByte(base, offset) != 0;
+        }
+    };
+
+    private static final Serde<Byte> BYTE_SERDE = new FixedSizeSerde<Byte>(1)
+    {
+        @Override
+        public void write(Byte value, Object base, long offset)
+        {
+            unsafe.putByte(base, offset, value);
+        }
+
+        @Override
+        public Byte read(Object base, long offset, int length)
+        {
+            return unsafe.getByte(base, offset);
+        }
+    };
+
+    private static final Serde<Short> SHORT_SERDE = new FixedSizeSerde<Short>(2)
+    {
+        @Override
+        public void write(Short value, Object base, long offset)
+        {
+            unsafe.putShort(base, offset, value);
+        }
+
+        @Override
+        public Short read(Object base, long offset, int length)
+        {
+            return unsafe.getShort(base, offset);
+        }
+    };
+
+    private static final Serde<Character> CHAR_SERDE = new FixedSizeSerde<Character>(2)
+    {
+        @Override
+        public void write(Character value, Object base, long offset)
+        {
+            unsafe.putChar(base, offset, value);
+        }
+
+        @Override
+        public Character read(Object base, long offset, int length)
+        {
+            return unsafe.getChar(base, offset);
+        }
+    };
+
+    private static final Serde<Integer> INT_SERDE = new FixedSizeSerde<Integer>(4)
+    {
+        @Override
+        public void write(Integer value, Object base, long offset)
+        {
+            unsafe.putInt(base, offset, value);
+        }
+
+        @Override
+        public Integer read(Object base, long offset, int length)
+        {
+            return unsafe.getInt(base, offset);
+        }
+    };
+
+    private static final Serde<Float> FLOAT_SERDE = new FixedSizeSerde<Float>(4)
+    {
+        @Override
+        public void write(Float value, Object base, long offset)
+        {
+            unsafe.putFloat(base, offset, value);
+        }
+
+        @Override
+        public Float read(Object base, long offset, int length)
+        {
+            return unsafe.getFloat(base, offset);
+        }
+    };
+
+    private static final Serde<Long> LONG_SERDE = new FixedSizeSerde<Long>(8)
+    {
+        @Override
+        public void write(Long value, Object base, long offset)
+        {
+            unsafe.putLong(base, offset, value);
+        }
+
+        @Override
+        public Long read(Object base, long offset, int length)
+        {
+            return unsafe.getLong(base, offset);
+        }
+    };
+
+    private static final Serde<Double> DOUBLE_SERDE = new FixedSizeSerde<Double>(8)
+    {
+        @Override
+        public void write(Double value, Object base, long offset)
+        {
+            unsafe.putDouble(base, offset, value);
+        }
+
+        @Override
+        public Double read(Object base, long offset, int length)
+        {
+            return unsafe.getDouble(base, offset);
+        }
+    };
+
+    private static final Serde<byte[]> BYTE_ARRAY_SERDE = new Serde<byte[]>()
+    {
+        @Override
+        public int sizeOf(byte[] value)
+        {
+            return value.length;
+        }
+
+        @Override
+        public void write(byte[] value, Object base, long offset)
+        {
+            UnsafeHelper.copyMemory(value, BYTE_ARRAY_OFFSET, base, offset, value.length);
+        }
+
+        @Override
+        public byte[] read(Object base, long offset, int length)
+        {
+            byte[] bytes = new byte[length];
+            UnsafeHelper.copyMemory(base, offset, bytes, BYTE_ARRAY_OFFSET, length);
+            return bytes;
+        }
+    };
+
+    private static final Serde<String> STRING_SERDE = new Serde<String>()
+    {
+        @Override
+        public int sizeOf(String value)
+        {
+            int length = value.length();
+            int i = 0;
+            while (i < length && value.charAt(i) <= 0xFF) {
+                i++;
+            }
+            if (i == length) {
+                return 1 + length;
+            }
+            int size = 1 + utf8Length(value, 0, i);
+            return size + utf8Length(value, i, length);
+        }
+
+        @Override
+        public void write(String value, Object base, long offset)
+        {
+            int length = value.length();
+            int i = 0;
+            while (i < length && value.charAt(i) <= 0xFF) {
+                i++;
+            }
+            if (i == length) {
+                unsafe.putByte(base, offset++, LATIN1);
+                for (i = 0; i < length; i++) {
+                    unsafe.putByte(base, offset + i, (byte) value.charAt(i));
+                }
+            }
+            else {
+                unsafe.putByte(base, offset++, UTF8);
+                writeUtf8(value, base, offset);
+            }
+        }
+
+        @Override
+        public String read(Object base, long offset, int length)
+        {
+            byte coder = unsafe.getByte(base, offset++);
+            char[] chars = new char[length - 1];
+            if (coder == LATIN1) {
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) (unsafe.getByte(base, offset + i) & 0xFF);
+                }
+                return new String(chars);
+            }
+            return new String(chars, 0, readUtf8(base, offset, length - 1, chars));
+        }
+    };
+
+    private static int utf8Length(String value, int from, int to)
+    {
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            }
+            else if (c < 0x800) {
+                size += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            }
+            else {
+                //lone surrogates are kept as 3 bytes so that the string round-trips
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static void writeUtf8(String value, Object base, long offset)
+    {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                unsafe.putByte(base, offset++, (byte) c);
+            }
+            else if (c < 0x800) {
+                unsafe.putByte(base, offset++, (byte) (0xC0 | (c >> 6)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                unsafe.putByte(base, offset++, (byte) (0xF0 | (codePoint >> 18)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else {
+                unsafe.putByte(base, offset++, (byte) (0xE0 | (c >> 12)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                unsafe.putByte(base, offset++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int readUtf8(Object base, long offset, int length, char[] chars)
+    {
+        long end = offset + length;
+        int n = 0;
+        while (offset < end) {
+            int b0 = unsafe.getByte(base, offset++) & 0xFF;
+            if (b0 < 0x80) {
+                chars[n++] = (char) b0;
+            }
+            else if (b0 < 0xE0) {
+                chars[n++] = (char) (((b0 & 0x1F) << 6) | (unsafe.getByte(base, offset++) & 0x3F));
+            }
+            else if (b0 < 0xF0) {
+                int b1 = unsafe.getByte(base, offset++) & 0x3F;
+                int b2 = unsafe.getByte(base, offset++) & 0x3F;
+                chars[n++] = (char) (((b0 & 0x0F) << 12) | (b1 << 6) | b2);
+            }
+            else {
+                int b1 = unsafe.getByte(base, offset++) & 0x3F;
+                int b2 = unsafe.getByte(base, offset++) & 0x3F;
+                int b3 = unsafe.getByte(base, offset++) & 0x3F;
+                int codePoint = ((b0 & 0x07) << 18) | (b1 << 12) | (b2 << 6) | b3;
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return n;
+    }
+
+    public static Serde<Boolean> booleanSerde()
+    {
+        return BOOLEAN_SERDE;
+    }
+
+    public static Serde<Byte> byteSerde()
+    {
+        return BYTE_SERDE;
+    }
+
+    public static Serde<Short> shortSerde()
+    {
+        return SHORT_SERDE;
+    }
+
+    public static Serde<Character> charSerde()
+    {
+        return CHAR_SERDE;
+    }
+
+    public static Serde<Integer> intSerde()
+    {
+        return INT_SERDE;
+    }
+
+    public static Serde<Float> floatSerde()
+    {
+        return FLOAT_SERDE;
+    }
+
+    public static Serde<Long> longSerde()
+    {
+        return LONG_SERDE;
+    }
+
+    public static Serde<Double> doubleSerde()
+    {
+        return DOUBLE_SERDE;
+    }
+
+    public static Serde<byte[]> byteArraySerde()
+    {
+        return BYTE_ARRAY_SERDE;
+    }
+
+    public static Serde<String> stringSerde()
+    {
+        return STRING_SERDE;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <F1> Serde<Tuple1<F1>> tuple1Serde(Serde<F1> f1)
+    {
+        return new TupleSerde<>(fields -> Tuple1.of((F1) fields[0]), f1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <F1, F2> Serde<Tuple2<F1, F2>> tuple2Serde(Serde<F1> f1, Serde<F2> f2)
+    {
+        return new TupleSerde<>(fields -> Tuple2.of((F1) fields[0], (F2) fields[1]), f1, f2);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <F1, F2, F3> Serde<Tuple3<F1, F2, F3>> tuple3Serde(Serde<F1> f1, Serde<F2> f2, Serde<F3> f3)
+    {
+        return new TupleSerde<>(fields -> Tuple3.of((F1) fields[0], (F2) fields[1], (F3) fields[2]), f1, f2, f3);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <F1, F2, F3, F4> Serde<Tuple4<F1, F2, F3, F4>> tuple4Serde(
+            Serde<F1> f1, Serde<F2> f2, Serde<F3> f3, Serde<F4> f4)
+    {
+        return new TupleSerde<>(fields -> Tuple4.of((F1) fields[0], (F2) fields[1], (F3) fields[2], (F4) fields[3]),
+                f1, f2, f3, f4);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <F1, F2, F3, F4, F5> Serde<Tuple5<F1, F2, F3, F4, F5>> tuple5Serde(
+            Serde<F1> f1, Serde<F2> f2, Serde<F3> f3, Serde<F4> f4, Serde<F5> f5)
+    {
+        return new TupleSerde<>(fields -> Tuple5.of((F1) fields[0], (F2) fields[1], (F3) fields[2], (F4) fields[3], (F5) fields[4]),
+                f1, f2, f3, f4, f5);
+    }
+
+    private abstract static class FixedSizeSerde<E>
+            implements Serde<E>
+    {
+        private final int size;
+
+        private FixedSizeSerde(int size)
+        {
+            this.size = size;
+        }
+
+        @Override
+        public int sizeOf(E value)
+        {
+            return size;
+        }
+    }
+
+    /**
+     * Every field is [length int][bytes], length -1 is a null field
+     */
+    private static final class TupleSerde<T extends Tuple>
+            implements Serde<T>
+    {
+        private final Serde<Object>[] fieldSerdes;
+        private final Function<Object[], T> creator;
+
+        @SuppressWarnings("unchecked")
+        private TupleSerde(Function<Object[], T> creator, Serde<?>... fieldSerdes)
+        {
+            this.creator = creator;
+            this.fieldSerdes = (Serde<Object>[]) fieldSerdes;
+            for (Serde<?> serde : fieldSerdes) {
+                requireNonNull(serde, "field serde is null");
+            }
+        }
+
+        @Override
+        public int sizeOf(T value)
+        {
+            int size = 0;
+            for (int i = 0; i < fieldSerdes.length; i++) {
+                Object field = value.getField(i + 1);
+                size += 4 + (field == null ? 0 : fieldSerdes[i].sizeOf(field));
+            }
+            return size;
+        }
+
+        @Override
+        public void write(T value, Object base, long offset)
+        {
+            for (int i = 0; i < fieldSerdes.length; i++) {
+                Object field = value.getField(i + 1);
+                if (field == null) {
+                    unsafe.putInt(base, offset, -1);
+                    offset += 4;
+                    continue;
+                }
+                int size = fieldSerdes[i].sizeOf(field);
+                unsafe.putInt(base, offset, size);
+                fieldSerdes[i].write(field, base, offset + 4);
+                offset += 4 + size;
+            }
+        }
+
+        @Override
+        public T read(Object base, long offset, int length)
+        {
+            Object[] fields = new Object[fieldSerdes.length];
+            for (int i = 0; i < fieldSerdes.length; i++) {
+                int size = unsafe.getInt(base, offset);
+                offset += 4;
+                if (size >= 0) {
+                    fields[i] = fieldSerdes[i].read(base, offset, size);
+                    offset += size;
+                }
+            }
+            return creator.apply(fields);
+        }
+    }
+}
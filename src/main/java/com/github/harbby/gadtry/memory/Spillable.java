@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+/**
+ * Consumer of a {@link MemoryPool} that can give memory back when the pool budget is exceeded
+ */
+@FunctionalInterface
+public interface Spillable
+{
+    /**
+     * Called by the allocating thread when the pool runs out of budget. Implementations should write
+     * their data somewhere else and free native memory through the same pool.
+     *
+     * @param requiredBytes bytes the pool is short of
+     * @return bytes released, 0 if nothing could be spilled
+     */
+    long spill(long requiredBytes);
+}
@@ -17,13 +17,16 @@ package com.github.harbby.gadtry.memory;
 
 import sun.misc.Cleaner;
 import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
 import sun.reflect.ReflectionFactory;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
 import static java.util.Objects.requireNonNull;
 
 public final class UnsafeHelper
@@ -68,24 +71,18 @@ public final class UnsafeHelper
     /**
      * Uses internal JDK APIs to allocate a DirectByteBuffer while ignoring the JVM's
      * MaxDirectMemorySize limit (the default limit is too low and we do not want to require users
-     * to increase it).
+     * to increase it). The memory is accounted in {@link MemoryManager#getDefaultPool()} instead.
      *
      * @param size allocate mem size
      * @return ByteBuffer
      */
-    @SuppressWarnings("unchecked")
     public static ByteBuffer allocateDirectBuffer(int size)
     {
         try {
-            Class<?> cls = Class.forName("java.nio.DirectByteBuffer");
-            Constructor<?> constructor = cls.getDeclaredConstructor(Long.TYPE, Integer.TYPE);
-            constructor.setAccessible(true);
-            Field cleanerField = cls.getDeclaredField("cleaner");
-            cleanerField.setAccessible(true);
-            long memory = _UNSAFE.allocateMemory(size);
-            ByteBuffer buffer = (ByteBuffer) constructor.newInstance(memory, size);
-            Cleaner cleaner = Cleaner.create(buffer, () -> _UNSAFE.freeMemory(memory));
-            cleanerField.set(buffer, cleaner);
+            MemoryPool pool = MemoryManager.getDefaultPool();
+            long memory = pool.allocateMemory(size);
+            ByteBuffer buffer = (ByteBuffer) DirectBufferHolder.CONSTRUCTOR.newInstance(memory, size);
+            setCleaner(buffer, Cleaner.create(buffer, () -> pool.freeMemory(memory, size)));
             return buffer;
         }
         catch (Exception e) {
@@ -94,6 +91,67 @@ public final class UnsafeHelper
         throw new IllegalStateException("unreachable");
     }
 
+    /**
+     * Replace the cleaner of a direct buffer created by {@link #wrapDirectBuffer(long, int, Object)}
+     *
+     * @param buffer direct ByteBuffer
+     * @param cleaner cleaner, runs when the buffer becomes phantom reachable or is freed by {@link #freeDirectBuffer(ByteBuffer)}
+     */
+    static void setCleaner(ByteBuffer buffer, Cleaner cleaner)
+    {
+        try {
+            DirectBufferHolder.CLEANER_FIELD.set(buffer, cleaner);
+        }
+        catch (IllegalAccessException e) {
+            throwException(e);
+        }
+    }
+
+    /**
+     * Wraps existing native memory as a DirectByteBuffer without copying and without a cleaner.
+     * The attachment is kept reachable by the buffer (and by its duplicates and slices).
+     *
+     * @param address native memory address
+     * @param size memory size
+     * @param attachment owner of the memory, may be null
+     * @return ByteBuffer
+     */
+    public static ByteBuffer wrapDirectBuffer(long address, int size, Object attachment)
+    {
+        try {
+            return (ByteBuffer) DirectBufferHolder.WRAP_CONSTRUCTOR.newInstance(address, size, attachment);
+        }
+        catch (Exception e) {
+            throwException(e);
+        }
+        throw new IllegalStateException("unreachable");
+    }
+
+    /**
+     * @param buffer direct or mapped ByteBuffer
+     * @return native address of the buffer's first byte
+     */
+    public static long getDirectBufferAddress(ByteBuffer buffer)
+    {
+        checkArgument(buffer.isDirect(), "buffer is not direct");
+        return ((DirectBuffer) buffer).address();
+    }
+
+    /**
+     * Frees (or unmaps) a direct buffer now instead of waiting for gc.
+     * The buffer and all its views must not be used afterwards.
+     *
+     * @param buffer direct or mapped ByteBuffer
+     */
+    public static void freeDirectBuffer(ByteBuffer buffer)
+    {
+        checkArgument(buffer.isDirect(), "buffer is not direct");
+        Cleaner cleaner = ((DirectBuffer) buffer).cleaner();
+        if (cleaner != null) {
+            cleaner.clean();
+        }
+    }
+
     public static <T> T allocateInstance(Class<T> tClass)
             throws InstantiationException
     {
@@ -136,6 +194,182 @@ public final class UnsafeHelper
         }
     }
 
+    /**
+     * xxHash64 of a heap array region or native memory, read a word at a time. Gives the same
+     * result as the reference implementation on any platform.
+     *
+     * @param base heap array or null for native memory
+     * @param offset array offset (e.g. {@link #BYTE_ARRAY_OFFSET}) or native address
+     * @param length bytes to hash
+     * @param seed hash seed
+     * @return 64-bit hash
+     */
+    public static long xxHash64(Object base, long offset, int length, long seed)
+    {
+        long end = offset + length;
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+            long limit = end - 32;
+            do {
+                v1 = xxRound(v1, getLongLE(base, offset));
+                v2 = xxRound(v2, getLongLE(base, offset + 8));
+                v3 = xxRound(v3, getLongLE(base, offset + 16));
+                v4 = xxRound(v4, getLongLE(base, offset + 24));
+                offset += 32;
+            }
+            while (offset <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = xxMergeRound(hash, v1);
+            hash = xxMergeRound(hash, v2);
+            hash = xxMergeRound(hash, v3);
+            hash = xxMergeRound(hash, v4);
+        }
+        else {
+            hash = seed + PRIME64_5;
+        }
+        hash += length;
+        for (; offset + 8 <= end; offset += 8) {
+            hash ^= xxRound(0, getLongLE(base, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (offset + 4 <= end) {
+            hash ^= (getIntLE(base, offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        for (; offset < end; offset++) {
+            hash ^= (_UNSAFE.getByte(base, offset) & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    public static long xxHash64(Object base, long offset, int length)
+    {
+        return xxHash64(base, offset, length, 0);
+    }
+
+    private static long xxRound(long acc, long input)
+    {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long xxMergeRound(long acc, long value)
+    {
+        acc ^= xxRound(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    /**
+     * MurmurHash3 x86_32 of a heap array region or native memory, same result as the reference
+     * implementation (and Guava {@code murmur3_32}) on any platform.
+     *
+     * @param base heap array or null for native memory
+     * @param offset array offset or native address
+     * @param length bytes to hash
+     * @param seed hash seed
+     * @return 32-bit hash
+     */
+    public static int murmur3Hash32(Object base, long offset, int length, int seed)
+    {
+        int h1 = seed;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            h1 ^= murmur3MixK1(getIntLE(base, offset + i));
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        int k1 = 0;
+        for (int shift = 0; i < length; i++, shift += 8) {
+            k1 ^= (_UNSAFE.getByte(base, offset + i) & 0xFF) << shift;
+        }
+        h1 ^= murmur3MixK1(k1);
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    private static int murmur3MixK1(int k1)
+    {
+        k1 *= 0xcc9e2d51;
+        k1 = Integer.rotateLeft(k1, 15);
+        return k1 * 0x1b873593;
+    }
+
+    /**
+     * Lexicographic comparison of two regions as unsigned bytes, a word at a time. A region that is a
+     * prefix of the other is smaller.
+     *
+     * @return negative, zero or positive like {@link java.util.Comparator#compare(Object, Object)}
+     */
+    public static int compare(Object leftBase, long leftOffset, int leftLength, Object rightBase, long rightOffset, int rightLength)
+    {
+        int length = Math.min(leftLength, rightLength);
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long left = _UNSAFE.getLong(leftBase, leftOffset + i);
+            long right = _UNSAFE.getLong(rightBase, rightOffset + i);
+            if (left != right) {
+                //the first differing byte must be the most significant one
+                return LITTLE_ENDIAN ? Long.compareUnsigned(Long.reverseBytes(left), Long.reverseBytes(right)) : Long.compareUnsigned(left, right);
+            }
+        }
+        for (; i < length; i++) {
+            int left = _UNSAFE.getByte(leftBase, leftOffset + i) & 0xFF;
+            int right = _UNSAFE.getByte(rightBase, rightOffset + i) & 0xFF;
+            if (left != right) {
+                return left - right;
+            }
+        }
+        return Integer.compare(leftLength, rightLength);
+    }
+
+    /**
+     * @return true if the two regions of {@code length} bytes are equal, compared a word at a time
+     */
+    public static boolean equals(Object leftBase, long leftOffset, Object rightBase, long rightOffset, int length)
+    {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (_UNSAFE.getLong(leftBase, leftOffset + i) != _UNSAFE.getLong(rightBase, rightOffset + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (_UNSAFE.getByte(leftBase, leftOffset + i) != _UNSAFE.getByte(rightBase, rightOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getLongLE(Object base, long offset)
+    {
+        long value = _UNSAFE.getLong(base, offset);
+        return LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private static int getIntLE(Object base, long offset)
+    {
+        int value = _UNSAFE.getInt(base, offset);
+        return LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
     /**
      * Raises an exception bypassing compiler checks for checked exceptions.
      *
@@ -152,6 +386,13 @@ public final class UnsafeHelper
      */
     private static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
 
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
     static {
         sun.misc.Unsafe unsafe = null;
         try {
@@ -172,4 +413,38 @@ public final class UnsafeHelper
         FLOAT_ARRAY_OFFSET = _UNSAFE.arrayBaseOffset(float[].class);
         DOUBLE_ARRAY_OFFSET = _UNSAFE.arrayBaseOffset(double[].class);
     }
+
+    /**
+     * DirectByteBuffer internals, loaded on first use so that only the direct buffer methods
+     * fail on jdks that do not open java.nio
+     */
+    private static final class DirectBufferHolder
+    {
+        private DirectBufferHolder() {}
+
+        private static final Constructor<?> WRAP_CONSTRUCTOR;
+        private static final Constructor<?> CONSTRUCTOR;
+        private static final Field CLEANER_FIELD;
+
+        static {
+            Constructor<?> wrapConstructor = null;
+            Constructor<?> constructor = null;
+            Field cleanerField = null;
+            try {
+                Class<?> cls = Class.forName("java.nio.DirectByteBuffer");
+                wrapConstructor = cls.getDeclaredConstructor(Long.TYPE, Integer.TYPE, Object.class);
+                wrapConstructor.setAccessible(true);
+                constructor = cls.getDeclaredConstructor(Long.TYPE, Integer.TYPE);
+                constructor.setAccessible(true);
+                cleanerField = cls.getDeclaredField("cleaner");
+                cleanerField.setAccessible(true);
+            }
+            catch (Throwable cause) {
+                throwException(cause);
+            }
+            WRAP_CONSTRUCTOR = wrapConstructor;
+            CONSTRUCTOR = constructor;
+            CLEANER_FIELD = cleanerField;
+        }
+    }
 }
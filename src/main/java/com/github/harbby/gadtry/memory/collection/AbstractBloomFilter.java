@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Bloom filter over a native {@link LongBitSet}. Values are reduced to one 64-bit hash, the bit
+ * positions are derived from it by the subclass. Concurrent puts are safe.
+ */
+abstract class AbstractBloomFilter
+        implements AutoCloseable
+{
+    private final int type;
+    protected final LongBitSet bitSet;
+    protected final int numHashFunctions;
+
+    protected AbstractBloomFilter(int type, LongBitSet bitSet, int numHashFunctions)
+    {
+        checkArgument(numHashFunctions > 0 && numHashFunctions <= 255, "numHashFunctions must be between 1 and 255");
+        this.type = type;
+        this.bitSet = requireNonNull(bitSet, "bitSet is null");
+        this.numHashFunctions = numHashFunctions;
+    }
+
+    /**
+     * @param expectedInsertions expected number of values
+     * @param fpp desired false positive probability
+     * @return optimal number of bits, m = -n * ln(p) / (ln 2)^2
+     */
+    static long optimalNumOfBits(long expectedInsertions, double fpp)
+    {
+        checkArgument(expectedInsertions > 0, "expectedInsertions must be positive");
+        checkArgument(fpp > 0 && fpp < 1, "fpp must be between 0 and 1");
+        return Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+    }
+
+    /**
+     * @return optimal number of hash functions, k = m / n * ln 2
+     */
+    static int optimalNumOfHashFunctions(long expectedInsertions, long numBits)
+    {
+        return (int) Math.min(255, Math.max(1, Math.round((double) numBits / expectedInsertions * Math.log(2))));
+    }
+
+    protected abstract boolean putHash(long hash);
+
+    protected abstract boolean mightContainHash(long hash);
+
+    /**
+     * @param value value
+     * @return true if any bit changed, so the value was definitely not present before
+     */
+    public boolean put(long value)
+    {
+        return putHash(AbstractOffHeapPrimitiveMap.mix(value));
+    }
+
+    public boolean put(byte[] value)
+    {
+        return putHash(UnsafeHelper.xxHash64(value, BYTE_ARRAY_OFFSET, value.length));
+    }
+
+    /**
+     * @param value value
+     * @return false if the value was definitely never put
+     */
+    public boolean mightContain(long value)
+    {
+        return mightContainHash(AbstractOffHeapPrimitiveMap.mix(value));
+    }
+
+    public boolean mightContain(byte[] value)
+    {
+        return mightContainHash(UnsafeHelper.xxHash64(value, BYTE_ARRAY_OFFSET, value.length));
+    }
+
+    public int getNumHashFunctions()
+    {
+        return numHashFunctions;
+    }
+
+    public long bitSize()
+    {
+        return bitSet.length();
+    }
+
+    /**
+     * @return false positive probability at the current fill, (bitCount / bitSize) ^ k
+     */
+    public double expectedFpp()
+    {
+        return Math.pow((double) bitSet.cardinality() / bitSet.length(), numHashFunctions);
+    }
+
+    void merge(AbstractBloomFilter other)
+    {
+        checkArgument(type == other.type && numHashFunctions == other.numHashFunctions && bitSize() == other.bitSize(),
+                "bloom filters are not compatible");
+        bitSet.or(other.bitSet);
+    }
+
+    /**
+     * Write [type int][numHashFunctions int][bitset] at the channel position
+     *
+     * @param channel file channel
+     * @throws IOException write failed
+     */
+    public void writeTo(FileChannel channel)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(type).putInt(numHashFunctions);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        bitSet.writeTo(channel);
+    }
+
+    /**
+     * @return numHashFunctions written by {@link #writeTo(FileChannel)}
+     */
+    static int readHeader(FileChannel channel, int type)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        LongBitSet.readFully(channel, header);
+        checkState(header.getInt(0) == type, "not support bloom filter type %s", header.getInt(0));
+        return header.getInt(4);
+    }
+
+    @Override
+    public void close()
+    {
+        bitSet.close();
+    }
+}
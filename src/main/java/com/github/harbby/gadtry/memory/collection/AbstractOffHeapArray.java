@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Growable native array of fixed size elements indexed by long.
+ * <p>
+ * Element access is not bounds checked unless assertions are enabled, so it compiles down to one
+ * Unsafe read or write. Not thread-safe, call {@link #close()} to free the memory.
+ */
+abstract class AbstractOffHeapArray
+        implements AutoCloseable
+{
+    protected static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final long DEFAULT_CAPACITY = 16;
+
+    private final MemoryPool pool;
+    private final int elementShift;
+    protected long address;
+    protected long size = 0;
+    private long capacity;
+
+    protected AbstractOffHeapArray(int elementSize, long initialCapacity, MemoryPool pool)
+    {
+        checkArgument(initialCapacity >= 0, "initialCapacity must be non-negative");
+        this.pool = requireNonNull(pool, "pool is null");
+        this.elementShift = Integer.numberOfTrailingZeros(elementSize);
+        this.capacity = Math.max(initialCapacity, DEFAULT_CAPACITY);
+        this.address = pool.allocateMemory(capacity << elementShift);
+    }
+
+    /**
+     * @return native address of element 0, changes when the array grows
+     */
+    public long getAddress()
+    {
+        checkState(address != 0, "array is closed");
+        return address;
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public MemoryPool getPool()
+    {
+        return pool;
+    }
+
+    public void ensureCapacity(long minCapacity)
+    {
+        checkState(address != 0, "array is closed");
+        if (minCapacity > capacity) {
+            long newCapacity = Math.max(minCapacity, capacity + (capacity >> 1));
+            checkState(newCapacity << elementShift > 0, "capacity overflow");
+            this.address = pool.reallocateMemory(address, capacity << elementShift, newCapacity << elementShift);
+            this.capacity = newCapacity;
+        }
+    }
+
+    /**
+     * Grow or shrink the logical size, new elements are zero
+     *
+     * @param newSize new size
+     */
+    public void resize(long newSize)
+    {
+        checkArgument(newSize >= 0, "newSize must be non-negative");
+        ensureCapacity(newSize);
+        if (newSize > size) {
+            unsafe.setMemory(address + (size << elementShift), (newSize - size) << elementShift, (byte) 0);
+        }
+        this.size = newSize;
+    }
+
+    public void clear()
+    {
+        this.size = 0;
+    }
+
+    protected final long elementAddress(long index)
+    {
+        assert index >= 0 && index < size : "index " + index + " out of bounds " + size;
+        return address + (index << elementShift);
+    }
+
+    /**
+     * Reserve one element at the end
+     *
+     * @return address of the new element
+     */
+    protected final long appendAddress()
+    {
+        if (size == capacity) {
+            ensureCapacity(size + 1);
+        }
+        return address + (size++ << elementShift);
+    }
+
+    protected final void checkRange(long from, long to)
+    {
+        checkState(address != 0, "array is closed");
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") out of bounds " + size);
+        }
+    }
+
+    /**
+     * Copy {@code length} elements like {@link System#arraycopy}, the ranges may overlap
+     *
+     * @param srcPos first source index
+     * @param dest destination array of the same element type
+     * @param destPos first destination index
+     * @param length number of elements
+     */
+    protected final void copy0(long srcPos, AbstractOffHeapArray dest, long destPos, long length)
+    {
+        checkArgument(dest.elementShift == elementShift, "element size not match");
+        checkRange(srcPos, srcPos + length);
+        dest.checkRange(destPos, destPos + length);
+        UnsafeHelper.copyMemory(null, address + (srcPos << elementShift), null, dest.address + (destPos << elementShift), length << elementShift);
+    }
+
+    /**
+     * @return file type of {@link #snapshot(Path)}
+     */
+    abstract int snapshotType();
+
+    /**
+     * Writes the elements to a versioned and checksummed file, straight from native memory
+     *
+     * @param path snapshot file, replaced atomically when the snapshot is complete
+     * @throws IOException write failed
+     */
+    public void snapshot(Path path)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        checkState(address != 0, "array is closed");
+        try (SnapshotWriter writer = new SnapshotWriter(path, snapshotType())) {
+            writer.writeMemory(null, address, size << elementShift);
+            writer.finish(size);
+        }
+    }
+
+    /**
+     * Replaces the elements by a snapshot with one sequential read into native memory.
+     * If the snapshot is corrupted the array is left empty.
+     *
+     * @param path snapshot file written by {@link #snapshot(Path)} of the same array type
+     * @throws IOException read failed, or the file is truncated or corrupted
+     */
+    public void restore(Path path)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        checkState(address != 0, "array is closed");
+        this.size = 0;
+        try (SnapshotReader reader = new SnapshotReader(path, snapshotType())) {
+            long newSize = reader.getCount();
+            ensureCapacity(newSize);
+            reader.readMemory(null, address, newSize << elementShift);
+            reader.finish();
+            this.size = newSize;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (address != 0) {
+            pool.freeMemory(address, capacity << elementShift);
+            address = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Shared open addressing layout of the primitive off-heap maps.
+ * <p>
+ * Keys and values are two native arrays indexed by slot, so a lookup is a hash mix and a few
+ * {@link Unsafe} reads. Key 0 marks an empty slot, the entry of key 0 itself is kept in the extra
+ * value slot at index {@code capacity}. Removal uses backward shift, there are no tombstones.
+ */
+abstract class AbstractOffHeapPrimitiveMap
+        implements AutoCloseable
+{
+    protected static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75D;
+
+    private final MemoryPool pool;
+    private final int keySize;
+    protected final int valueSize;
+
+    private long keys;
+    protected long values;
+    private long capacity;
+    private long mask;
+    private long threshold;
+    private boolean hasZeroKey = false;
+    private int size = 0;
+
+    protected AbstractOffHeapPrimitiveMap(int keySize, int valueSize, int initialCapacity, MemoryPool pool)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        checkArgument(keySize == 4 || keySize == 8, "keySize must be 4 or 8");
+        checkArgument(initialCapacity >= 0, "initialCapacity must be non-negative");
+        this.keySize = keySize;
+        this.valueSize = valueSize;
+        long capacity = Long.highestOneBit(Math.max(2L, (long) Math.ceil(Math.max(initialCapacity, DEFAULT_CAPACITY) / LOAD_FACTOR)) - 1) << 1;
+        this.allocate(capacity);
+    }
+
+    private void allocate(long capacity)
+    {
+        this.keys = pool.allocateMemory(capacity * keySize);
+        unsafe.setMemory(keys, capacity * keySize, (byte) 0);
+        this.values = pool.allocateMemory((capacity + 1) * valueSize);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = (long) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * murmur3 fmix64
+     */
+    static long mix(long key)
+    {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long keyAt(long slot)
+    {
+        return keySize == 8 ? unsafe.getLong(keys + (slot << 3)) : unsafe.getInt(keys + (slot << 2));
+    }
+
+    private void setKey(long slot, long key)
+    {
+        if (keySize == 8) {
+            unsafe.putLong(keys + (slot << 3), key);
+        }
+        else {
+            unsafe.putInt(keys + (slot << 2), (int) key);
+        }
+    }
+
+    protected final long valueAddress(long slot)
+    {
+        return values + slot * valueSize;
+    }
+
+    protected final void checkOpen()
+    {
+        checkState(keys != 0, "map is closed");
+    }
+
+    /**
+     * @param key map key
+     * @return slot of the key, or -1 if absent
+     */
+    protected final long findSlot(long key)
+    {
+        checkOpen();
+        if (key == 0) {
+            return hasZeroKey ? capacity : -1;
+        }
+        for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = keyAt(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @param key map key
+     * @return slot of the key if it exists, otherwise {@code -(slot + 1)} of the new slot whose value is
+     * not initialized yet
+     */
+    protected final long findOrInsertSlot(long key)
+    {
+        checkOpen();
+        if (key == 0) {
+            if (hasZeroKey) {
+                return capacity;
+            }
+            hasZeroKey = true;
+            size++;
+            return -capacity - 1;
+        }
+        for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = keyAt(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == 0) {
+                if (size >= threshold) {
+                    this.resize(capacity << 1);
+                    return findOrInsertSlot(key);
+                }
+                setKey(slot, key);
+                size++;
+                return -slot - 1;
+            }
+        }
+    }
+
+    private void resize(long newCapacity)
+    {
+        checkState(newCapacity > 0 && newCapacity * Math.max(keySize, valueSize) > 0, "capacity overflow");
+        long oldKeys = keys;
+        long oldValues = values;
+        long oldCapacity = capacity;
+        this.allocate(newCapacity);
+        for (long oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            long key = keySize == 8 ? unsafe.getLong(oldKeys + (oldSlot << 3)) : unsafe.getInt(oldKeys + (oldSlot << 2));
+            if (key != 0) {
+                long slot = mix(key) & mask;
+                while (keyAt(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                setKey(slot, key);
+                unsafe.copyMemory(oldValues + oldSlot * valueSize, valueAddress(slot), valueSize);
+            }
+        }
+        unsafe.copyMemory(oldValues + oldCapacity * valueSize, valueAddress(capacity), valueSize);
+        pool.freeMemory(oldKeys, oldCapacity * keySize);
+        pool.freeMemory(oldValues, (oldCapacity + 1) * valueSize);
+    }
+
+    /**
+     * Backward shift deletion, the value of the slot must be released by the caller before.
+     *
+     * @param slot slot returned by {@link #findSlot(long)}
+     */
+    protected final void removeSlot(long slot)
+    {
+        size--;
+        if (slot == capacity) {
+            hasZeroKey = false;
+            return;
+        }
+        long hole = slot;
+        for (long next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long key = keyAt(next);
+            if (key == 0) {
+                break;
+            }
+            long home = mix(key) & mask;
+            if (hole <= next ? (home <= hole || home > next) : (home <= hole && home > next)) {
+                setKey(hole, key);
+                unsafe.copyMemory(valueAddress(next), valueAddress(hole), valueSize);
+                hole = next;
+            }
+        }
+        setKey(hole, 0);
+    }
+
+    /**
+     * Visits every slot in use, key 0 last
+     *
+     * @param visitor (key, slot) visitor
+     */
+    protected final void forEachSlot(SlotVisitor visitor)
+    {
+        checkOpen();
+        for (long slot = 0; slot < capacity; slot++) {
+            long key = keyAt(slot);
+            if (key != 0) {
+                visitor.visit(key, slot);
+            }
+        }
+        if (hasZeroKey) {
+            visitor.visit(0, capacity);
+        }
+    }
+
+    /**
+     * Writes the whole table (keys, values and the zero key entry) with two sequential writes
+     * straight from native memory, restore does not need to rehash.
+     *
+     * @param path snapshot file, replaced atomically when the snapshot is complete
+     * @param type file type of the subclass
+     * @throws IOException write failed
+     */
+    protected final void writeSnapshot(Path path, int type)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        checkOpen();
+        try (SnapshotWriter writer = new SnapshotWriter(path, type)) {
+            writer.writeLong(capacity);
+            writer.writeInt(hasZeroKey ? 1 : 0);
+            writer.writeInt(keySize << 8 | valueSize);
+            writer.writeMemory(null, keys, capacity * keySize);
+            writer.writeMemory(null, values, (capacity + 1) * valueSize);
+            writer.finish(size);
+        }
+    }
+
+    /**
+     * Replaces the table by a snapshot of {@link #writeSnapshot(Path, int)}.
+     * If the snapshot is corrupted the map is left empty.
+     *
+     * @param path snapshot file
+     * @param type file type of the subclass
+     * @throws IOException read failed, or the file is truncated or corrupted
+     */
+    protected final void readSnapshot(Path path, int type)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        checkOpen();
+        try (SnapshotReader reader = new SnapshotReader(path, type)) {
+            long newCapacity = reader.readLong();
+            boolean newHasZeroKey = reader.readInt() != 0;
+            if (reader.readInt() != (keySize << 8 | valueSize) || newCapacity < 2 || Long.bitCount(newCapacity) != 1) {
+                throw new IOException("snapshot " + path + " is corrupted");
+            }
+            long oldKeys = keys;
+            long oldValues = values;
+            long oldCapacity = capacity;
+            this.allocate(newCapacity);
+            pool.freeMemory(oldKeys, oldCapacity * keySize);
+            pool.freeMemory(oldValues, (oldCapacity + 1) * valueSize);
+            this.hasZeroKey = false;
+            this.size = 0;
+            reader.readMemory(null, keys, newCapacity * keySize);
+            reader.readMemory(null, values, (newCapacity + 1) * valueSize);
+            reader.finish();
+            this.hasZeroKey = newHasZeroKey;
+            this.size = (int) reader.getCount();
+        }
+        catch (IOException | RuntimeException e) {
+            this.clear();
+            throw e;
+        }
+    }
+
+    protected interface SlotVisitor
+    {
+        void visit(long key, long slot);
+    }
+
+    public MemoryPool getPool()
+    {
+        return pool;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        checkOpen();
+        unsafe.setMemory(keys, capacity * keySize, (byte) 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    /**
+     * Release all native memory, the map can not be used after close
+     */
+    @Override
+    public void close()
+    {
+        if (keys != 0) {
+            pool.freeMemory(keys, capacity * keySize);
+            pool.freeMemory(values, (capacity + 1) * valueSize);
+            keys = 0;
+            values = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cache friendly Bloom filter: the hash picks one 512-bit block (a 64-byte cache line) and all k bits
+ * of the value are set inside that block, so a lookup touches one cache line instead of k.
+ * The false positive rate is slightly higher than {@link BloomFilter} for the same size.
+ */
+public final class BlockedBloomFilter
+        extends AbstractBloomFilter
+{
+    static final int TYPE = 2;
+    private static final int BLOCK_BITS = 512;
+
+    private final long numBlocks;
+
+    public BlockedBloomFilter(long expectedInsertions, double fpp)
+    {
+        this(expectedInsertions, fpp, MemoryManager.getDefaultPool());
+    }
+
+    public BlockedBloomFilter(long expectedInsertions, double fpp, MemoryPool pool)
+    {
+        this(new LongBitSet(roundToBlock(optimalNumOfBits(expectedInsertions, fpp)), pool),
+                optimalNumOfHashFunctions(expectedInsertions, optimalNumOfBits(expectedInsertions, fpp)));
+    }
+
+    private BlockedBloomFilter(LongBitSet bitSet, int numHashFunctions)
+    {
+        super(TYPE, bitSet, numHashFunctions);
+        this.numBlocks = bitSet.length() / BLOCK_BITS;
+    }
+
+    private static long roundToBlock(long numBits)
+    {
+        return (numBits + BLOCK_BITS - 1) / BLOCK_BITS * BLOCK_BITS;
+    }
+
+    @Override
+    protected boolean putHash(long hash)
+    {
+        long block = (hash & Long.MAX_VALUE) % numBlocks * BLOCK_BITS;
+        long h = AbstractOffHeapPrimitiveMap.mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < numHashFunctions; i++) {
+            changed |= bitSet.set(block + ((h1 + i * h2) & (BLOCK_BITS - 1)));
+        }
+        return changed;
+    }
+
+    @Override
+    protected boolean mightContainHash(long hash)
+    {
+        long block = (hash & Long.MAX_VALUE) % numBlocks * BLOCK_BITS;
+        long h = AbstractOffHeapPrimitiveMap.mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            if (!bitSet.get(block + ((h1 + i * h2) & (BLOCK_BITS - 1)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add all values of a filter created with the same parameters
+     *
+     * @param other other filter
+     */
+    public void putAll(BlockedBloomFilter other)
+    {
+        merge(other);
+    }
+
+    public static BlockedBloomFilter readFrom(FileChannel channel)
+            throws IOException
+    {
+        return readFrom(channel, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * Read a filter written by {@link #writeTo(FileChannel)}
+     *
+     * @param channel file channel
+     * @param pool memory pool of the new filter
+     * @return bloom filter
+     * @throws IOException read failed or the bitset is not made of whole blocks
+     */
+    public static BlockedBloomFilter readFrom(FileChannel channel, MemoryPool pool)
+            throws IOException
+    {
+        int numHashFunctions = readHeader(channel, TYPE);
+        LongBitSet bitSet = LongBitSet.readFrom(channel, pool);
+        if (bitSet.length() < BLOCK_BITS || bitSet.length() % BLOCK_BITS != 0) {
+            bitSet.close();
+            throw new IOException("blocked bloom filter has " + bitSet.length() + " bits, not a multiple of " + BLOCK_BITS);
+        }
+        return new BlockedBloomFilter(bitSet, numHashFunctions);
+    }
+}
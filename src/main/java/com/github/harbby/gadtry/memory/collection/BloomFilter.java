@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Standard Bloom filter in native memory, the k bit positions are spread over the whole bit set by
+ * double hashing: h1 + i * h2.
+ *
+ * @see BlockedBloomFilter
+ */
+public final class BloomFilter
+        extends AbstractBloomFilter
+{
+    static final int TYPE = 1;
+
+    public BloomFilter(long expectedInsertions, double fpp)
+    {
+        this(expectedInsertions, fpp, MemoryManager.getDefaultPool());
+    }
+
+    public BloomFilter(long expectedInsertions, double fpp, MemoryPool pool)
+    {
+        this(new LongBitSet(optimalNumOfBits(expectedInsertions, fpp), pool),
+                optimalNumOfHashFunctions(expectedInsertions, optimalNumOfBits(expectedInsertions, fpp)));
+    }
+
+    private BloomFilter(LongBitSet bitSet, int numHashFunctions)
+    {
+        super(TYPE, bitSet, numHashFunctions);
+    }
+
+    @Override
+    protected boolean putHash(long hash)
+    {
+        long h2 = AbstractOffHeapPrimitiveMap.mix(hash) | 1;
+        long numBits = bitSet.length();
+        boolean changed = false;
+        long combined = hash;
+        for (int i = 0; i < numHashFunctions; i++, combined += h2) {
+            changed |= bitSet.set((combined & Long.MAX_VALUE) % numBits);
+        }
+        return changed;
+    }
+
+    @Override
+    protected boolean mightContainHash(long hash)
+    {
+        long h2 = AbstractOffHeapPrimitiveMap.mix(hash) | 1;
+        long numBits = bitSet.length();
+        long combined = hash;
+        for (int i = 0; i < numHashFunctions; i++, combined += h2) {
+            if (!bitSet.get((combined & Long.MAX_VALUE) % numBits)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add all values of a filter created with the same parameters
+     *
+     * @param other other filter
+     */
+    public void putAll(BloomFilter other)
+    {
+        merge(other);
+    }
+
+    public static BloomFilter readFrom(FileChannel channel)
+            throws IOException
+    {
+        return readFrom(channel, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * Read a filter written by {@link #writeTo(FileChannel)}
+     *
+     * @param channel file channel
+     * @param pool memory pool of the new filter
+     * @return bloom filter
+     * @throws IOException read failed
+     */
+    public static BloomFilter readFrom(FileChannel channel, MemoryPool pool)
+            throws IOException
+    {
+        int numHashFunctions = readHeader(channel, TYPE);
+        return new BloomFilter(LongBitSet.readFrom(channel, pool), numHashFunctions);
+    }
+}
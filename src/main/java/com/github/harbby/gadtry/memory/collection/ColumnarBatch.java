@@ -0,0 +1,702 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple;
+import com.github.harbby.gadtry.collection.tuple.Tuple1;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.collection.tuple.Tuple3;
+import com.github.harbby.gadtry.collection.tuple.Tuple4;
+import com.github.harbby.gadtry.collection.tuple.Tuple5;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.Serdes;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Columnar batch of tuple rows in native memory.
+ * <p>
+ * Every field of the schema is one native column of fixed width values plus a null bitmap, strings
+ * are appended to a shared variable length region and their column holds [offset int][length int].
+ * Columns are indexed from 0, so field {@code pos} of a {@link Tuple} is column {@code pos - 1}.
+ * <p>
+ * Rows are appended by {@link #appendRow(Tuple)} or by {@link #addRow()} followed by the typed
+ * setters, read back with the typed getters, the bulk column copies, or as {@link Tuple} views created
+ * on demand. Overwriting a string does not reclaim its old bytes. Not thread-safe, call
+ * {@link #close()} to free the memory.
+ */
+public final class ColumnarBatch
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final Serde<String> STRING_SERDE = Serdes.stringSerde();
+
+    public enum ColumnType
+    {
+        BOOLEAN(1),
+        BYTE(1),
+        SHORT(2),
+        INT(4),
+        LONG(8),
+        FLOAT(4),
+        DOUBLE(8),
+        STRING(8);  //[offset int][length int] into the variable length region
+
+        private final int width;
+
+        ColumnType(int width)
+        {
+            this.width = width;
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+    }
+
+    private final MemoryPool pool;
+    private final ColumnType[] types;
+    private final long[] columns;
+    private final long[] nulls;
+    private int capacity;
+    private int numRows = 0;
+
+    private long varData;
+    private long varCapacity;
+    private long varSize = 0;
+
+    public ColumnarBatch(ColumnType... types)
+    {
+        this(MemoryManager.getDefaultPool(), DEFAULT_CAPACITY, types);
+    }
+
+    /**
+     * @param pool native memory of the columns
+     * @param initialCapacity rows allocated up front, the batch grows when full
+     * @param types one column per tuple field
+     */
+    public ColumnarBatch(MemoryPool pool, int initialCapacity, ColumnType... types)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        requireNonNull(types, "types is null");
+        checkArgument(types.length > 0, "types is empty");
+        checkArgument(initialCapacity >= 0, "initialCapacity must be non-negative");
+        this.types = types.clone();
+        this.columns = new long[types.length];
+        this.nulls = new long[types.length];
+        this.capacity = Math.max(64, (initialCapacity + 63) & ~63);
+        for (int i = 0; i < types.length; i++) {
+            requireNonNull(types[i], "types[" + i + "] is null");
+            columns[i] = pool.allocateMemory((long) capacity * types[i].width);
+            nulls[i] = pool.allocateMemory(capacity >> 3);
+        }
+        if (Arrays.asList(types).contains(ColumnType.STRING)) {
+            this.varCapacity = (long) capacity * 16;
+            this.varData = pool.allocateMemory(varCapacity);
+        }
+    }
+
+    public int numRows()
+    {
+        return numRows;
+    }
+
+    public int numColumns()
+    {
+        return types.length;
+    }
+
+    public ColumnType getColumnType(int column)
+    {
+        return types[column];
+    }
+
+    /**
+     * @return native address of the first value of the column, changes when the batch grows
+     */
+    public long getColumnAddress(int column)
+    {
+        checkOpen();
+        return columns[column];
+    }
+
+    private void checkOpen()
+    {
+        checkState(columns[0] != 0, "batch is closed");
+    }
+
+    /**
+     * Appends a row whose fields are all null
+     *
+     * @return row index
+     */
+    public int addRow()
+    {
+        checkOpen();
+        if (numRows == capacity) {
+            checkState(capacity <= Integer.MAX_VALUE / 2, "too many rows");
+            this.grow(capacity * 2);
+        }
+        int row = numRows++;
+        for (long bitmap : nulls) {
+            long word = bitmap + ((row >>> 6) << 3);
+            long bits = (row & 63) == 0 ? 0 : unsafe.getLong(word);
+            unsafe.putLong(word, bits | (1L << row));
+        }
+        return row;
+    }
+
+    /**
+     * Allocates every new column before releasing any old one, so a failed allocation leaves the batch
+     * unchanged at its old capacity
+     */
+    private void grow(int newCapacity)
+    {
+        long[] newColumns = new long[types.length];
+        long[] newNulls = new long[types.length];
+        try {
+            for (int i = 0; i < types.length; i++) {
+                newColumns[i] = pool.allocateMemory((long) newCapacity * types[i].width);
+                newNulls[i] = pool.allocateMemory(newCapacity >> 3);
+            }
+        }
+        catch (RuntimeException | Error e) {
+            for (int i = 0; i < types.length; i++) {
+                if (newColumns[i] != 0) {
+                    pool.freeMemory(newColumns[i], (long) newCapacity * types[i].width);
+                }
+                if (newNulls[i] != 0) {
+                    pool.freeMemory(newNulls[i], newCapacity >> 3);
+                }
+            }
+            throw e;
+        }
+        for (int i = 0; i < types.length; i++) {
+            UnsafeHelper.copyMemory(null, columns[i], null, newColumns[i], (long) capacity * types[i].width);
+            UnsafeHelper.copyMemory(null, nulls[i], null, newNulls[i], capacity >> 3);
+            pool.freeMemory(columns[i], (long) capacity * types[i].width);
+            pool.freeMemory(nulls[i], capacity >> 3);
+            columns[i] = newColumns[i];
+            nulls[i] = newNulls[i];
+        }
+        this.capacity = newCapacity;
+    }
+
+    /**
+     * Appends the fields of a tuple, boxed numbers are converted to the column type
+     *
+     * @param tuple row, its arity must match the number of columns
+     * @return row index
+     */
+    public int appendRow(Tuple tuple)
+    {
+        requireNonNull(tuple, "tuple is null");
+        checkArgument(tuple.getArity() == types.length, "tuple arity not match columns");
+        int row = this.addRow();
+        for (int column = 0; column < types.length; column++) {
+            Object value = tuple.getField(column + 1);
+            if (value != null) {
+                this.set(row, column, value);
+            }
+        }
+        return row;
+    }
+
+    private void set(int row, int column, Object value)
+    {
+        switch (types[column]) {
+            case BOOLEAN:
+                setBoolean(row, column, (Boolean) value);
+                break;
+            case BYTE:
+                setByte(row, column, ((Number) value).byteValue());
+                break;
+            case SHORT:
+                setShort(row, column, ((Number) value).shortValue());
+                break;
+            case INT:
+                setInt(row, column, ((Number) value).intValue());
+                break;
+            case LONG:
+                setLong(row, column, ((Number) value).longValue());
+                break;
+            case FLOAT:
+                setFloat(row, column, ((Number) value).floatValue());
+                break;
+            case DOUBLE:
+                setDouble(row, column, ((Number) value).doubleValue());
+                break;
+            default:
+                setString(row, column, value.toString());
+        }
+    }
+
+    private long valueAddress(int row, int column, ColumnType type)
+    {
+        if (types[column] != type) {
+            //checkArgument without the varargs array on every get and set
+            throw new IllegalArgumentException("column " + column + " is " + types[column] + ", not " + type);
+        }
+        checkRow(row);
+        return columns[column] + (long) row * type.width;
+    }
+
+    private void checkRow(int row)
+    {
+        if (row < 0 || row >= numRows) {
+            throw new IndexOutOfBoundsException("row " + row + " out of bounds " + numRows);
+        }
+    }
+
+    private void setNotNull(int row, int column)
+    {
+        long word = nulls[column] + ((row >>> 6) << 3);
+        unsafe.putLong(word, unsafe.getLong(word) & ~(1L << row));
+    }
+
+    public void setNull(int row, int column)
+    {
+        checkRow(row);
+        long word = nulls[column] + ((row >>> 6) << 3);
+        unsafe.putLong(word, unsafe.getLong(word) | (1L << row));
+    }
+
+    public boolean isNull(int row, int column)
+    {
+        checkRow(row);
+        return (unsafe.getLong(nulls[column] + ((row >>> 6) << 3)) & (1L << row)) != 0;
+    }
+
+    /**
+     * @return number of null values in the column, counted a word at a time
+     */
+    public int nullCount(int column)
+    {
+        checkOpen();
+        int count = 0;
+        int fullWords = numRows >>> 6;
+        for (int i = 0; i < fullWords; i++) {
+            count += Long.bitCount(unsafe.getLong(nulls[column] + ((long) i << 3)));
+        }
+        if ((numRows & 63) != 0) {
+            count += Long.bitCount(unsafe.getLong(nulls[column] + ((long) fullWords << 3)) & ((1L << numRows) - 1));
+        }
+        return count;
+    }
+
+    public void setBoolean(int row, int column, boolean value)
+    {
+        unsafe.putByte(valueAddress(row, column, ColumnType.BOOLEAN), (byte) (value ? 1 : 0));
+        setNotNull(row, column);
+    }
+
+    public boolean getBoolean(int row, int column)
+    {
+        return unsafe.getByte(valueAddress(row, column, ColumnType.BOOLEAN)) != 0;
+    }
+
+    public void setByte(int row, int column, byte value)
+    {
+        unsafe.putByte(valueAddress(row, column, ColumnType.BYTE), value);
+        setNotNull(row, column);
+    }
+
+    public byte getByte(int row, int column)
+    {
+        return unsafe.getByte(valueAddress(row, column, ColumnType.BYTE));
+    }
+
+    public void setShort(int row, int column, short value)
+    {
+        unsafe.putShort(valueAddress(row, column, ColumnType.SHORT), value);
+        setNotNull(row, column);
+    }
+
+    public short getShort(int row, int column)
+    {
+        return unsafe.getShort(valueAddress(row, column, ColumnType.SHORT));
+    }
+
+    public void setInt(int row, int column, int value)
+    {
+        unsafe.putInt(valueAddress(row, column, ColumnType.INT), value);
+        setNotNull(row, column);
+    }
+
+    public int getInt(int row, int column)
+    {
+        return unsafe.getInt(valueAddress(row, column, ColumnType.INT));
+    }
+
+    public void setLong(int row, int column, long value)
+    {
+        unsafe.putLong(valueAddress(row, column, ColumnType.LONG), value);
+        setNotNull(row, column);
+    }
+
+    public long getLong(int row, int column)
+    {
+        return unsafe.getLong(valueAddress(row, column, ColumnType.LONG));
+    }
+
+    public void setFloat(int row, int column, float value)
+    {
+        unsafe.putFloat(valueAddress(row, column, ColumnType.FLOAT), value);
+        setNotNull(row, column);
+    }
+
+    public float getFloat(int row, int column)
+    {
+        return unsafe.getFloat(valueAddress(row, column, ColumnType.FLOAT));
+    }
+
+    public void setDouble(int row, int column, double value)
+    {
+        unsafe.putDouble(valueAddress(row, column, ColumnType.DOUBLE), value);
+        setNotNull(row, column);
+    }
+
+    public double getDouble(int row, int column)
+    {
+        return unsafe.getDouble(valueAddress(row, column, ColumnType.DOUBLE));
+    }
+
+    /**
+     * @param value string, null sets the field null
+     */
+    public void setString(int row, int column, String value)
+    {
+        long address = valueAddress(row, column, ColumnType.STRING);
+        if (value == null) {
+            setNull(row, column);
+            return;
+        }
+        int length = STRING_SERDE.sizeOf(value);
+        if (varSize + length > varCapacity) {
+            long newCapacity = Math.max(varSize + length, varCapacity * 2);
+            checkState(newCapacity <= Integer.MAX_VALUE, "string data of the batch is bigger than 2G");
+            this.varData = pool.reallocateMemory(varData, varCapacity, newCapacity);
+            this.varCapacity = newCapacity;
+        }
+        STRING_SERDE.write(value, null, varData + varSize);
+        unsafe.putInt(address, (int) varSize);
+        unsafe.putInt(address + 4, length);
+        varSize += length;
+        setNotNull(row, column);
+    }
+
+    /**
+     * @return the string, or null if the field is null
+     */
+    public String getString(int row, int column)
+    {
+        long address = valueAddress(row, column, ColumnType.STRING);
+        if (isNull(row, column)) {
+            return null;
+        }
+        return STRING_SERDE.read(null, varData + unsafe.getInt(address), unsafe.getInt(address + 4));
+    }
+
+    /**
+     * @return boxed value of the field, or null
+     */
+    public Object get(int row, int column)
+    {
+        if (isNull(row, column)) {
+            return null;
+        }
+        switch (types[column]) {
+            case BOOLEAN:
+                return getBoolean(row, column);
+            case BYTE:
+                return getByte(row, column);
+            case SHORT:
+                return getShort(row, column);
+            case INT:
+                return getInt(row, column);
+            case LONG:
+                return getLong(row, column);
+            case FLOAT:
+                return getFloat(row, column);
+            case DOUBLE:
+                return getDouble(row, column);
+            default:
+                return getString(row, column);
+        }
+    }
+
+    private long columnRange(int column, ColumnType type, int fromRow, int length)
+    {
+        checkOpen();
+        checkArgument(types[column] == type, "column " + column + " is " + types[column]);
+        if (fromRow < 0 || length < 0 || fromRow + length > numRows) {
+            throw new IndexOutOfBoundsException("rows [" + fromRow + ", " + (fromRow + length) + ") out of bounds " + numRows);
+        }
+        return columns[column] + (long) fromRow * type.width;
+    }
+
+    /**
+     * Copies {@code length} values of an INT column with one memory copy, null fields copy their
+     * undefined value
+     */
+    public void getInts(int column, int fromRow, int[] dest, int destPos, int length)
+    {
+        checkArgument(destPos >= 0 && destPos + length <= dest.length, "dest is too small");
+        unsafe.copyMemory(null, columnRange(column, ColumnType.INT, fromRow, length), dest, UnsafeHelper.INT_ARRAY_OFFSET + ((long) destPos << 2), (long) length << 2);
+    }
+
+    /**
+     * Copies {@code length} values of a LONG column with one memory copy, null fields copy their
+     * undefined value
+     */
+    public void getLongs(int column, int fromRow, long[] dest, int destPos, int length)
+    {
+        checkArgument(destPos >= 0 && destPos + length <= dest.length, "dest is too small");
+        unsafe.copyMemory(null, columnRange(column, ColumnType.LONG, fromRow, length), dest, UnsafeHelper.LONG_ARRAY_OFFSET + ((long) destPos << 3), (long) length << 3);
+    }
+
+    /**
+     * Copies {@code length} values of a DOUBLE column with one memory copy, null fields copy their
+     * undefined value
+     */
+    public void getDoubles(int column, int fromRow, double[] dest, int destPos, int length)
+    {
+        checkArgument(destPos >= 0 && destPos + length <= dest.length, "dest is too small");
+        unsafe.copyMemory(null, columnRange(column, ColumnType.DOUBLE, fromRow, length), dest, UnsafeHelper.DOUBLE_ARRAY_OFFSET + ((long) destPos << 3), (long) length << 3);
+    }
+
+    /**
+     * @return sum of the non null values of an INT or LONG column
+     */
+    public long sumLong(int column)
+    {
+        checkOpen();
+        ColumnType type = types[column];
+        checkArgument(type == ColumnType.INT || type == ColumnType.LONG, "column " + column + " is " + type);
+        long sum = 0;
+        long address = columns[column];
+        long bitmap = nulls[column];
+        for (int word = 0; word << 6 < numRows; word++) {
+            long nonNull = ~unsafe.getLong(bitmap + ((long) word << 3));
+            int end = Math.min(numRows, (word + 1) << 6);
+            for (int row = word << 6; row < end; row++) {
+                //branch free: null fields add 0
+                long mask = -((nonNull >>> row) & 1L);
+                long value = type == ColumnType.LONG ? unsafe.getLong(address + ((long) row << 3)) : unsafe.getInt(address + ((long) row << 2));
+                sum += value & mask;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return sum of the non null values of a DOUBLE column
+     */
+    public double sumDouble(int column)
+    {
+        checkOpen();
+        checkArgument(types[column] == ColumnType.DOUBLE, "column " + column + " is " + types[column]);
+        double sum = 0;
+        long address = columns[column];
+        long bitmap = nulls[column];
+        for (int word = 0; word << 6 < numRows; word++) {
+            long nonNull = ~unsafe.getLong(bitmap + ((long) word << 3));
+            int end = Math.min(numRows, (word + 1) << 6);
+            for (int row = word << 6; row < end; row++) {
+                if (((nonNull >>> row) & 1L) != 0) {
+                    sum += unsafe.getDouble(address + ((long) row << 3));
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param row row index
+     * @return a new view of the row, its fields are read from the columns on access
+     */
+    public Row getRow(int row)
+    {
+        checkRow(row);
+        return new Row(this, row);
+    }
+
+    /**
+     * Visits every row with one reused view, call {@link Row#copy()} to keep a row
+     *
+     * @param consumer row consumer
+     */
+    public void forEachRow(Consumer<? super Row> consumer)
+    {
+        requireNonNull(consumer, "consumer is null");
+        checkOpen();
+        Row view = new Row(this, 0);
+        for (int row = 0; row < numRows; row++) {
+            view.row = row;
+            consumer.accept(view);
+        }
+    }
+
+    /**
+     * Removes all rows, the memory is kept for reuse
+     */
+    public void clear()
+    {
+        checkOpen();
+        numRows = 0;
+        varSize = 0;
+    }
+
+    /**
+     * @return native bytes of the batch
+     */
+    public long getMemorySize()
+    {
+        long size = varCapacity;
+        for (ColumnType type : types) {
+            size += (long) capacity * type.width + (capacity >> 3);
+        }
+        return size;
+    }
+
+    @Override
+    public void close()
+    {
+        if (columns[0] == 0) {
+            return;
+        }
+        for (int i = 0; i < types.length; i++) {
+            pool.freeMemory(columns[i], (long) capacity * types[i].width);
+            pool.freeMemory(nulls[i], capacity >> 3);
+            columns[i] = 0;
+        }
+        if (varData != 0) {
+            pool.freeMemory(varData, varCapacity);
+            varData = 0;
+        }
+        numRows = 0;
+    }
+
+    /**
+     * Tuple view of one row of the batch. Field {@code pos} is column {@code pos - 1}.
+     */
+    public static final class Row
+            implements Tuple
+    {
+        private static final long serialVersionUID = -1L;
+        private final transient ColumnarBatch batch;
+        private int row;
+
+        private Row(ColumnarBatch batch, int row)
+        {
+            this.batch = batch;
+            this.row = row;
+        }
+
+        public int getRowIndex()
+        {
+            return row;
+        }
+
+        @Override
+        public int getArity()
+        {
+            return batch.types.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getField(int pos)
+        {
+            if (pos < 1 || pos > batch.types.length) {
+                throw new IndexOutOfBoundsException(String.valueOf(pos));
+            }
+            return (T) batch.get(row, pos - 1);
+        }
+
+        public boolean isNull(int pos)
+        {
+            return batch.isNull(row, pos - 1);
+        }
+
+        public long getLong(int pos)
+        {
+            return batch.getLong(row, pos - 1);
+        }
+
+        public int getInt(int pos)
+        {
+            return batch.getInt(row, pos - 1);
+        }
+
+        public double getDouble(int pos)
+        {
+            return batch.getDouble(row, pos - 1);
+        }
+
+        public String getString(int pos)
+        {
+            return batch.getString(row, pos - 1);
+        }
+
+        /**
+         * Materializes the row as a {@link Tuple1} ... {@link Tuple5}
+         *
+         * @return heap tuple
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Tuple> T copy()
+        {
+            switch (batch.types.length) {
+                case 1:
+                    return (T) Tuple1.of(getField(1));
+                case 2:
+                    return (T) Tuple2.of(getField(1), getField(2));
+                case 3:
+                    return (T) Tuple3.of(getField(1), getField(2), getField(3));
+                case 4:
+                    return (T) Tuple4.of(getField(1), getField(2), getField(3), getField(4));
+                case 5:
+                    return (T) Tuple5.of(getField(1), getField(2), getField(3), getField(4), getField(5));
+                default:
+                    throw new UnsupportedOperationException("can not copy a row of " + batch.types.length + " fields");
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder("(");
+            for (int pos = 1; pos <= batch.types.length; pos++) {
+                Object field = getField(pos);
+                builder.append(pos > 1 ? ", " : "").append(field);
+            }
+            return builder.append(")").toString();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Thread-safe off-heap map split into lock striped {@link OffHeapHashMap} segments.
+ * <p>
+ * The key is serialized and hashed once, high bits of the hash select the stripe and the low bits
+ * the slot inside it. Every stripe has its own slot table, its own arena and its own
+ * read-write lock, so writers on different stripes never contend and a stripe resizes alone.
+ * <p>
+ * Writers allocate the new entry before taking the stripe write lock and only link it in under the
+ * lock, a pool that blocks or spills never stalls the stripe. Readers copy the value out of native
+ * memory while holding the stripe read lock, a replaced or removed entry is returned to the arena
+ * under the write lock, so it can not be freed while a reader is still copying it. Iteration is weakly consistent, one stripe is copied at a time.
+ * Null keys and values are not supported.
+ */
+public class ConcurrentOffHeapHashMap<K, V>
+        extends AbstractMap<K, V>
+        implements ConcurrentMap<K, V>, AutoCloseable
+{
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+    private static final int STRIPE_HASH_SHIFT = 40;
+    private static final int STRIPE_CHUNK_SIZE = 256 * 1024;  //256K
+
+    private final Function<K, byte[]> keySerialization;
+    private final Function<V, byte[]> valueSerialization;
+    private final OffHeapHashMap<K, V>[] stripes;
+    private final ReentrantReadWriteLock[] locks;
+    private final int stripeMask;
+    private volatile boolean closed = false;
+
+    public ConcurrentOffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization)
+    {
+        this(keySerialization, keyDeserialization, valueSerialization, valueDeserialization, DEFAULT_CONCURRENCY_LEVEL, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * @param concurrencyLevel number of stripes, rounded up to a power of two
+     * @param pool slot tables and entries of all stripes are allocated from this pool
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentOffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization,
+            int concurrencyLevel,
+            MemoryPool pool)
+    {
+        checkArgument(concurrencyLevel > 0 && concurrencyLevel <= 1 << 16, "concurrencyLevel must be between 1 and 65536");
+        this.keySerialization = requireNonNull(keySerialization, "keySerialization is null");
+        this.valueSerialization = requireNonNull(valueSerialization, "valueSerialization is null");
+        int stripeNumber = Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        stripeNumber = Math.max(1, stripeNumber);
+        this.stripes = new OffHeapHashMap[stripeNumber];
+        this.locks = new ReentrantReadWriteLock[stripeNumber];
+        this.stripeMask = stripeNumber - 1;
+        for (int i = 0; i < stripeNumber; i++) {
+            stripes[i] = new OffHeapHashMap<>(keySerialization, keyDeserialization, valueSerialization, valueDeserialization,
+                    16, pool, STRIPE_CHUNK_SIZE);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public int getStripeNumber()
+    {
+        return stripes.length;
+    }
+
+    private int stripeOf(long hash)
+    {
+        return (int) (hash >>> STRIPE_HASH_SHIFT) & stripeMask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeKey(Object key)
+    {
+        return keySerialization.apply((K) requireNonNull(key, "key is null"));
+    }
+
+    private static long hash(byte[] keyBytes)
+    {
+        return OffHeapHashMap.hash(keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length);
+    }
+
+    private Lock readLock(int stripe)
+    {
+        Lock lock = locks[stripe].readLock();
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            throw new IllegalStateException("map is closed");
+        }
+        return lock;
+    }
+
+    private Lock writeLock(int stripe)
+    {
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        if (closed) {
+            lock.unlock();
+            throw new IllegalStateException("map is closed");
+        }
+        return lock;
+    }
+
+    private long newEntry(int stripe, byte[] keyBytes, byte[] valueBytes)
+    {
+        checkState(!closed, "map is closed");
+        return stripes[stripe].newEntry(keyBytes, valueBytes);
+    }
+
+    @Override
+    public int size()
+    {
+        long size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            Lock lock = readLock(i);
+            try {
+                size += stripes[i].size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        Lock lock = readLock(stripe);
+        try {
+            return stripes[stripe].containsKey(keyBytes, hash);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        Lock lock = readLock(stripe);
+        try {
+            return stripes[stripe].get(keyBytes, hash);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        byte[] keyBytes = serializeKey(key);
+        byte[] valueBytes = valueSerialization.apply(requireNonNull(value, "value is null"));
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        long entry = newEntry(stripe, keyBytes, valueBytes);
+        //a closed map fails here, the entry was released with the stripe arena
+        Lock lock = writeLock(stripe);
+        boolean linked = false;
+        try {
+            V old = stripes[stripe].putEntry(keyBytes, hash, entry);
+            linked = true;
+            return old;
+        }
+        finally {
+            if (!linked) {
+                stripes[stripe].freeEntry(entry);
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value)
+    {
+        byte[] keyBytes = serializeKey(key);
+        byte[] valueBytes = valueSerialization.apply(requireNonNull(value, "value is null"));
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        long entry = newEntry(stripe, keyBytes, valueBytes);
+        Lock lock = writeLock(stripe);
+        boolean linked = false;
+        try {
+            V old = stripes[stripe].get(keyBytes, hash);
+            if (old == null) {
+                stripes[stripe].putEntry(keyBytes, hash, entry);
+                linked = true;
+            }
+            return old;
+        }
+        finally {
+            if (!linked) {
+                stripes[stripe].freeEntry(entry);
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        Lock lock = writeLock(stripe);
+        try {
+            return stripes[stripe].remove(keyBytes, hash);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value)
+    {
+        if (value == null) {
+            return false;
+        }
+        byte[] keyBytes = serializeKey(key);
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        Lock lock = writeLock(stripe);
+        try {
+            if (Objects.equals(stripes[stripe].get(keyBytes, hash), value)) {
+                stripes[stripe].remove(keyBytes, hash);
+                return true;
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        requireNonNull(oldValue, "oldValue is null");
+        byte[] keyBytes = serializeKey(key);
+        byte[] valueBytes = valueSerialization.apply(requireNonNull(newValue, "newValue is null"));
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        long entry = newEntry(stripe, keyBytes, valueBytes);
+        Lock lock = writeLock(stripe);
+        boolean linked = false;
+        try {
+            if (Objects.equals(stripes[stripe].get(keyBytes, hash), oldValue)) {
+                stripes[stripe].putEntry(keyBytes, hash, entry);
+                linked = true;
+            }
+            return linked;
+        }
+        finally {
+            if (!linked) {
+                stripes[stripe].freeEntry(entry);
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V replace(K key, V value)
+    {
+        byte[] keyBytes = serializeKey(key);
+        byte[] valueBytes = valueSerialization.apply(requireNonNull(value, "value is null"));
+        long hash = hash(keyBytes);
+        int stripe = stripeOf(hash);
+        long entry = newEntry(stripe, keyBytes, valueBytes);
+        Lock lock = writeLock(stripe);
+        boolean linked = false;
+        try {
+            V old = null;
+            if (stripes[stripe].containsKey(keyBytes, hash)) {
+                old = stripes[stripe].putEntry(keyBytes, hash, entry);
+                linked = true;
+            }
+            return old;
+        }
+        finally {
+            if (!linked) {
+                stripes[stripe].freeEntry(entry);
+            }
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int i = 0; i < stripes.length; i++) {
+            Lock lock = writeLock(i);
+            try {
+                stripes[i].clear();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent view, the iterator copies the entries of one stripe at a time
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Entry<K, V>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return ConcurrentOffHeapHashMap.this.size();
+            }
+
+            @Override
+            public void clear()
+            {
+                ConcurrentOffHeapHashMap.this.clear();
+            }
+        };
+    }
+
+    private class EntryIterator
+            implements Iterator<Entry<K, V>>
+    {
+        private int stripe = 0;
+        private Iterator<Entry<K, V>> current = Collections.emptyIterator();
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!current.hasNext() && stripe < stripes.length) {
+                List<Entry<K, V>> entries = new ArrayList<>();
+                Lock lock = readLock(stripe);
+                try {
+                    entries.addAll(stripes[stripe].entrySet());
+                }
+                finally {
+                    lock.unlock();
+                }
+                stripe++;
+                current = entries.iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Entry<K, V> next()
+        {
+            hasNext();
+            this.last = current.next();
+            return last;
+        }
+
+        @Override
+        public void remove()
+        {
+            checkState(last != null, "next() has not been called");
+            ConcurrentOffHeapHashMap.this.remove(last.getKey(), last.getValue());
+            last = null;
+        }
+    }
+
+    /**
+     * Release the native memory of all stripes, waits for running operations to finish
+     */
+    @Override
+    public void close()
+    {
+        for (int i = 0; i < stripes.length; i++) {
+            Lock lock = locks[i].writeLock();
+            lock.lock();
+            try {
+                closed = true;
+                stripes[i].close();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.DOUBLE_ARRAY_OFFSET;
+
+/**
+ * Growable off-heap double array indexed by long, see {@link AbstractOffHeapArray}
+ */
+public final class DoubleArray
+        extends AbstractOffHeapArray
+{
+    public DoubleArray()
+    {
+        this(0);
+    }
+
+    public DoubleArray(long initialCapacity)
+    {
+        this(initialCapacity, MemoryManager.getDefaultPool());
+    }
+
+    public DoubleArray(long initialCapacity, MemoryPool pool)
+    {
+        super(8, initialCapacity, pool);
+    }
+
+    @Override
+    int snapshotType()
+    {
+        return SnapshotWriter.TYPE_DOUBLE_ARRAY;
+    }
+
+    public double get(long index)
+    {
+        return unsafe.getDouble(elementAddress(index));
+    }
+
+    public void set(long index, double value)
+    {
+        unsafe.putDouble(elementAddress(index), value);
+    }
+
+    public void add(double value)
+    {
+        unsafe.putDouble(appendAddress(), value);
+    }
+
+    /**
+     * Append all values with one bulk copy
+     *
+     * @param values values
+     */
+    public void addAll(double[] values)
+    {
+        long from = size;
+        resize(size + values.length);
+        UnsafeHelper.copyMemory(values, DOUBLE_ARRAY_OFFSET, null, elementAddress(from), (long) values.length * 8);
+    }
+
+    /**
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @param value fill value
+     */
+    public void fill(long from, long to, double value)
+    {
+        checkRange(from, to);
+        for (long i = from; i < to; i++) {
+            unsafe.putDouble(address + i * 8, value);
+        }
+    }
+
+    /**
+     * Copy {@code length} elements to {@code dest} like {@link System#arraycopy}, the ranges may overlap
+     *
+     * @param srcPos first source index
+     * @param dest destination array, may be this
+     * @param destPos first destination index
+     * @param length number of elements
+     */
+    public void copy(long srcPos, DoubleArray dest, long destPos, long length)
+    {
+        copy0(srcPos, dest, destPos, length);
+    }
+
+    /**
+     * Copy elements to a heap array
+     *
+     * @param srcPos first source index
+     * @param dest heap array
+     * @param destPos first index in dest
+     * @param length number of elements
+     */
+    public void copyTo(long srcPos, double[] dest, int destPos, int length)
+    {
+        checkRange(srcPos, srcPos + length);
+        if (destPos < 0 || destPos + length > dest.length) {
+            throw new IndexOutOfBoundsException("range [" + destPos + ", " + (destPos + length) + ") out of bounds " + dest.length);
+        }
+        UnsafeHelper.copyMemory(null, address + srcPos * 8, dest, DOUBLE_ARRAY_OFFSET + (long) destPos * 8, (long) length * 8);
+    }
+
+    /**
+     * Search a range sorted in ascending order
+     *
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @param key search key
+     * @return index of the key, or (-(insertion point) - 1)
+     */
+    public long binarySearch(long from, long to, double key)
+    {
+        checkRange(from, to);
+        long low = from;
+        long high = to - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            double midValue = unsafe.getDouble(address + mid * 8);
+            if (Double.compare(midValue, key) < 0) {
+                low = mid + 1;
+            }
+            else if (Double.compare(midValue, key) > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public long binarySearch(double key)
+    {
+        return binarySearch(0, size, key);
+    }
+
+    /**
+     * The iterator sees later writes and must not be used after close
+     *
+     * @return primitive iterator without boxing
+     */
+    public PrimitiveIterator.OfDouble iterator()
+    {
+        return new PrimitiveIterator.OfDouble()
+        {
+            private long index = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @Override
+            public double nextDouble()
+            {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return unsafe.getDouble(address + index++ * 8);
+            }
+        };
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Count-min sketch of 4-bit counters in native memory, the popularity estimate of TinyLFU admission.
+ * <p>
+ * Every long word holds 16 counters, a key updates one counter in each of 4 words. After
+ * {@code 10 * counters / 16} increments all counters are halved, so old popularity fades out.
+ */
+final class FrequencySketch
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final MemoryPool pool;
+    private long table;
+    private int words;
+    private int mask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch(MemoryPool pool, int expectedEntries)
+    {
+        this.pool = requireNonNull(pool, "pool is null");
+        this.ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Grows the table when the expected entries outgrow it. The word of a key is {@code hash & mask},
+     * so the old table is copied into every part of the new one and no estimate is lost.
+     */
+    void ensureCapacity(int expectedEntries)
+    {
+        int newWords = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 30)) - 1) << 1;
+        if (newWords <= words) {
+            return;
+        }
+        long newTable = pool.allocateMemory((long) newWords << 3);
+        if (table == 0) {
+            unsafe.setMemory(newTable, (long) newWords << 3, (byte) 0);
+        }
+        else {
+            for (int i = 0; i < newWords; i += words) {
+                unsafe.copyMemory(table, newTable + ((long) i << 3), (long) words << 3);
+            }
+            pool.freeMemory(table, (long) words << 3);
+        }
+        this.table = newTable;
+        this.words = newWords;
+        this.mask = newWords - 1;
+        this.sampleSize = 10 * newWords;
+    }
+
+    int frequency(int hashCode)
+    {
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            long hash = AbstractOffHeapPrimitiveMap.mix(hashCode + SEEDS[i]);
+            long word = unsafe.getLong(table + ((hash & mask) << 3));
+            frequency = Math.min(frequency, (int) (word >>> counterShift(hash)) & 15);
+        }
+        return frequency;
+    }
+
+    void increment(int hashCode)
+    {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long hash = AbstractOffHeapPrimitiveMap.mix(hashCode + SEEDS[i]);
+            long address = table + ((hash & mask) << 3);
+            long word = unsafe.getLong(address);
+            int shift = counterShift(hash);
+            if (((word >>> shift) & 15) < 15) {
+                unsafe.putLong(address, word + (1L << shift));
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            this.reset();
+        }
+    }
+
+    private static int counterShift(long hash)
+    {
+        return (int) (hash >>> 60) << 2;
+    }
+
+    private void reset()
+    {
+        for (long address = table; address < table + ((long) words << 3); address += 8) {
+            unsafe.putLong(address, (unsafe.getLong(address) >>> 1) & RESET_MASK);
+        }
+        additions /= 2;
+    }
+
+    @Override
+    public void close()
+    {
+        if (table != 0) {
+            pool.freeMemory(table, (long) words << 3);
+            table = 0;
+        }
+    }
+}
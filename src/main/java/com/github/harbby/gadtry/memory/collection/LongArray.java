@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.LONG_ARRAY_OFFSET;
+
+/**
+ * Growable off-heap long array indexed by long, see {@link AbstractOffHeapArray}
+ */
+public final class LongArray
+        extends AbstractOffHeapArray
+{
+    public LongArray()
+    {
+        this(0);
+    }
+
+    public LongArray(long initialCapacity)
+    {
+        this(initialCapacity, MemoryManager.getDefaultPool());
+    }
+
+    public LongArray(long initialCapacity, MemoryPool pool)
+    {
+        super(8, initialCapacity, pool);
+    }
+
+    @Override
+    int snapshotType()
+    {
+        return SnapshotWriter.TYPE_LONG_ARRAY;
+    }
+
+    public long get(long index)
+    {
+        return unsafe.getLong(elementAddress(index));
+    }
+
+    public void set(long index, long value)
+    {
+        unsafe.putLong(elementAddress(index), value);
+    }
+
+    public void add(long value)
+    {
+        unsafe.putLong(appendAddress(), value);
+    }
+
+    /**
+     * Append all values with one bulk copy
+     *
+     * @param values values
+     */
+    public void addAll(long[] values)
+    {
+        long from = size;
+        resize(size + values.length);
+        UnsafeHelper.copyMemory(values, LONG_ARRAY_OFFSET, null, elementAddress(from), (long) values.length * 8);
+    }
+
+    /**
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @param value fill value
+     */
+    public void fill(long from, long to, long value)
+    {
+        checkRange(from, to);
+        for (long i = from; i < to; i++) {
+            unsafe.putLong(address + i * 8, value);
+        }
+    }
+
+    /**
+     * Copy {@code length} elements to {@code dest} like {@link System#arraycopy}, the ranges may overlap
+     *
+     * @param srcPos first source index
+     * @param dest destination array, may be this
+     * @param destPos first destination index
+     * @param length number of elements
+     */
+    public void copy(long srcPos, LongArray dest, long destPos, long length)
+    {
+        copy0(srcPos, dest, destPos, length);
+    }
+
+    /**
+     * Copy elements to a heap array
+     *
+     * @param srcPos first source index
+     * @param dest heap array
+     * @param destPos first index in dest
+     * @param length number of elements
+     */
+    public void copyTo(long srcPos, long[] dest, int destPos, int length)
+    {
+        checkRange(srcPos, srcPos + length);
+        if (destPos < 0 || destPos + length > dest.length) {
+            throw new IndexOutOfBoundsException("range [" + destPos + ", " + (destPos + length) + ") out of bounds " + dest.length);
+        }
+        UnsafeHelper.copyMemory(null, address + srcPos * 8, dest, LONG_ARRAY_OFFSET + (long) destPos * 8, (long) length * 8);
+    }
+
+    /**
+     * Search a range sorted in ascending order
+     *
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @param key search key
+     * @return index of the key, or (-(insertion point) - 1)
+     */
+    public long binarySearch(long from, long to, long key)
+    {
+        checkRange(from, to);
+        long low = from;
+        long high = to - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midValue = unsafe.getLong(address + mid * 8);
+            if (midValue < key) {
+                low = mid + 1;
+            }
+            else if (midValue > key) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public long binarySearch(long key)
+    {
+        return binarySearch(0, size, key);
+    }
+
+    /**
+     * The iterator sees later writes and must not be used after close
+     *
+     * @return primitive iterator without boxing
+     */
+    public PrimitiveIterator.OfLong iterator()
+    {
+        return new PrimitiveIterator.OfLong()
+        {
+            private long index = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @Override
+            public long nextLong()
+            {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return unsafe.getLong(address + index++ * 8);
+            }
+        };
+    }
+}
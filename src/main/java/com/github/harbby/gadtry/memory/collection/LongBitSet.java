@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Fixed size bit set whose words live in native memory, it may hold more than 2^31 bits.
+ * <p>
+ * {@link #set(long)} and {@link #clear(long)} update their word with a CAS and are safe to call
+ * from many threads, the bulk operations are not atomic. Call {@link #close()} to free the memory.
+ */
+public final class LongBitSet
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int IO_CHUNK_SIZE = 1 << 30;
+
+    private final MemoryPool pool;
+    private final long numBits;
+    private final long numWords;
+    private long address;
+
+    public LongBitSet(long numBits)
+    {
+        this(numBits, MemoryManager.getDefaultPool());
+    }
+
+    public LongBitSet(long numBits, MemoryPool pool)
+    {
+        checkArgument(numBits > 0, "numBits must be positive");
+        this.pool = requireNonNull(pool, "pool is null");
+        this.numBits = numBits;
+        this.numWords = (numBits + 63) >>> 6;
+        this.address = pool.allocateMemory(numWords << 3);
+        unsafe.setMemory(address, numWords << 3, (byte) 0);
+    }
+
+    public long length()
+    {
+        return numBits;
+    }
+
+    /**
+     * @return native memory size in bytes
+     */
+    public long getMemorySize()
+    {
+        return numWords << 3;
+    }
+
+    private long wordAddress(long index)
+    {
+        checkState(address != 0, "bitset is closed");
+        if (index < 0 || index >= numBits) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + numBits);
+        }
+        return address + ((index >>> 6) << 3);
+    }
+
+    public boolean get(long index)
+    {
+        return (unsafe.getLongVolatile(null, wordAddress(index)) & (1L << index)) != 0;
+    }
+
+    /**
+     * @param index bit index
+     * @return true if the bit was not set before
+     */
+    public boolean set(long index)
+    {
+        long word = wordAddress(index);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = unsafe.getLongVolatile(null, word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        }
+        while (!unsafe.compareAndSwapLong(null, word, old, old | mask));
+        return true;
+    }
+
+    /**
+     * @param index bit index
+     * @return true if the bit was set before
+     */
+    public boolean clear(long index)
+    {
+        long word = wordAddress(index);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = unsafe.getLongVolatile(null, word);
+            if ((old & mask) == 0) {
+                return false;
+            }
+        }
+        while (!unsafe.compareAndSwapLong(null, word, old, old & ~mask));
+        return true;
+    }
+
+    /**
+     * @param from first bit index to check
+     * @return index of the first set bit at or after {@code from}, or -1
+     */
+    public long nextSetBit(long from)
+    {
+        if (from >= numBits) {
+            return -1;
+        }
+        long wordIndex = (wordAddress(from) - address) >>> 3;
+        long word = unsafe.getLong(address + (wordIndex << 3)) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == numWords) {
+                return -1;
+            }
+            word = unsafe.getLong(address + (wordIndex << 3));
+        }
+    }
+
+    public long cardinality()
+    {
+        checkState(address != 0, "bitset is closed");
+        long count = 0;
+        for (long word = address, end = address + (numWords << 3); word < end; word += 8) {
+            count += Long.bitCount(unsafe.getLong(word));
+        }
+        return count;
+    }
+
+    /**
+     * this |= other, both sets must have the same length
+     *
+     * @param other other bitset
+     */
+    public void or(LongBitSet other)
+    {
+        checkSameLength(other);
+        for (long i = 0, end = numWords << 3; i < end; i += 8) {
+            unsafe.putLong(address + i, unsafe.getLong(address + i) | unsafe.getLong(other.address + i));
+        }
+    }
+
+    /**
+     * this &amp;= other, both sets must have the same length
+     *
+     * @param other other bitset
+     */
+    public void and(LongBitSet other)
+    {
+        checkSameLength(other);
+        for (long i = 0, end = numWords << 3; i < end; i += 8) {
+            unsafe.putLong(address + i, unsafe.getLong(address + i) & unsafe.getLong(other.address + i));
+        }
+    }
+
+    private void checkSameLength(LongBitSet other)
+    {
+        checkState(address != 0 && other.address != 0, "bitset is closed");
+        checkArgument(numBits == other.numBits, "bitset length %s not equal %s", other.numBits, numBits);
+    }
+
+    public void clear()
+    {
+        checkState(address != 0, "bitset is closed");
+        unsafe.setMemory(address, numWords << 3, (byte) 0);
+    }
+
+    /**
+     * Write [numBits long][words] at the channel position, the words are written straight from
+     * native memory in native byte order.
+     *
+     * @param channel file channel
+     * @throws IOException write failed
+     */
+    public void writeTo(FileChannel channel)
+            throws IOException
+    {
+        checkState(address != 0, "bitset is closed");
+        ByteBuffer header = ByteBuffer.allocate(8).putLong(0, numBits);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        for (long offset = 0, size = numWords << 3; offset < size; offset += IO_CHUNK_SIZE) {
+            ByteBuffer buffer = UnsafeHelper.wrapDirectBuffer(address + offset, (int) Math.min(IO_CHUNK_SIZE, size - offset), this);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public static LongBitSet readFrom(FileChannel channel)
+            throws IOException
+    {
+        return readFrom(channel, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * Read a bitset written by {@link #writeTo(FileChannel)} from the channel position
+     *
+     * @param channel file channel
+     * @param pool memory pool of the new bitset
+     * @return bitset
+     * @throws IOException read failed
+     */
+    public static LongBitSet readFrom(FileChannel channel, MemoryPool pool)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(channel, header);
+        LongBitSet bitSet = new LongBitSet(header.getLong(0), pool);
+        try {
+            for (long offset = 0, size = bitSet.numWords << 3; offset < size; offset += IO_CHUNK_SIZE) {
+                readFully(channel, UnsafeHelper.wrapDirectBuffer(bitSet.address + offset, (int) Math.min(IO_CHUNK_SIZE, size - offset), bitSet));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            bitSet.close();
+            throw e;
+        }
+        return bitSet;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (address != 0) {
+            pool.freeMemory(address, numWords << 3);
+            address = 0;
+        }
+    }
+}
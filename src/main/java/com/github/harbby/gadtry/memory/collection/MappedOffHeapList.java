@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Append-only OffHeapList persisted in a memory mapped file, the OS page cache decides what is resident.
+ * <p>
+ * Values are appended as [length int][bytes] to the data file, the offset of every value is kept in
+ * {@code <file>.index} after a small header. Both files are mapped in fixed size regions, a value
+ * never straddles two regions. Reopening the same file makes the list available at once, nothing
+ * is loaded or deserialized. The header is written after the value, so a crash loses at most the
+ * values that were not yet committed.
+ * <p>
+ * Data is stored in native byte order. Only {@link #add(Object)}, {@link #get(int)} and
+ * {@link #clear()} change or read the list, this class is not thread-safe.
+ */
+public class MappedOffHeapList<E>
+        extends AbstractList<E>
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;  //64M
+    private static final int MIN_REGION_SIZE = 4096;
+    private static final int MAGIC = 0x47444C31;  //GDL1
+    private static final int VERSION = 1;
+    //header: [magic int][version int][regionSize int][unused int][size long][dataEnd long]
+    private static final int HEADER_SIZE = 32;
+
+    private final Function<E, byte[]> serialization;
+    private final Function<byte[], E> deserialization;
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final int regionSize;
+
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private long[] dataRegions = new long[4];
+    private long[] indexRegions = new long[4];
+
+    private int size;
+    private long dataEnd;
+    private boolean closed = false;
+
+    public MappedOffHeapList(
+            File file,
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization)
+    {
+        this(file, serialization, deserialization, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * @param file data file, created if absent
+     * @param regionSize mapped region size of a new file, must be a power of two,
+     * an existing file keeps the region size it was created with
+     */
+    public MappedOffHeapList(
+            File file,
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization,
+            int regionSize)
+    {
+        requireNonNull(file, "file is null");
+        this.serialization = requireNonNull(serialization, "serialization is null");
+        this.deserialization = requireNonNull(deserialization, "deserialization is null");
+        checkArgument(regionSize >= MIN_REGION_SIZE && Integer.bitCount(regionSize) == 1,
+                "regionSize must be a power of two and not less than %s", MIN_REGION_SIZE);
+        FileChannel dataChannel = null;
+        FileChannel indexChannel = null;
+        try {
+            dataChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(new File(file.getPath() + ".index").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.dataChannel = dataChannel;
+            this.indexChannel = indexChannel;
+            if (indexChannel.size() >= HEADER_SIZE) {
+                MappedByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                long address = UnsafeHelper.getDirectBufferAddress(header);
+                int magic = unsafe.getInt(address);
+                int version = unsafe.getInt(address + 4);
+                regionSize = unsafe.getInt(address + 8);
+                long count = unsafe.getLong(address + 16);
+                this.dataEnd = unsafe.getLong(address + 24);
+                UnsafeHelper.freeDirectBuffer(header);
+                checkState(magic == MAGIC, "file %s is not a MappedOffHeapList", file);
+                checkState(version == VERSION, "not support MappedOffHeapList version %s", version);
+                checkState(regionSize >= MIN_REGION_SIZE && Integer.bitCount(regionSize) == 1,
+                        "file %s has a bad region size %s", file, regionSize);
+                checkState(count >= 0 && count <= Integer.MAX_VALUE && dataEnd >= 0,
+                        "file %s has a bad header, size %s dataEnd %s", file, count, dataEnd);
+                this.size = (int) count;
+                this.regionSize = regionSize;
+            }
+            else {
+                this.regionSize = regionSize;
+                long header = indexAddress(0);
+                unsafe.putInt(header, MAGIC);
+                unsafe.putInt(header + 4, VERSION);
+                unsafe.putInt(header + 8, regionSize);
+                this.commit();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            //the files are not ours or not opened, leave them untouched
+            this.closed = true;
+            for (MappedByteBuffer region : regions) {
+                UnsafeHelper.freeDirectBuffer(region);
+            }
+            regions.clear();
+            try (FileChannel data = dataChannel; FileChannel index = indexChannel) {
+                //close both channels
+            }
+            catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            if (e instanceof IOException) {
+                throw new UncheckedIOException((IOException) e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    @Override
+    public E get(int index)
+    {
+        checkState(!closed, "list is closed");
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        long position = unsafe.getLong(indexAddress(HEADER_SIZE + 8L * index));
+        long address = dataAddress(position);
+        byte[] bytes = new byte[unsafe.getInt(address)];
+        UnsafeHelper.copyMemory(null, address + 4, bytes, BYTE_ARRAY_OFFSET, bytes.length);
+        return deserialization.apply(bytes);
+    }
+
+    @Override
+    public boolean add(E element)
+    {
+        checkState(!closed, "list is closed");
+        byte[] bytes = serialization.apply(element);
+        checkArgument(bytes.length <= regionSize - 4, "value size %s exceeds region size %s", bytes.length, regionSize);
+        long position = dataEnd;
+        if ((position & (regionSize - 1)) + 4 + bytes.length > regionSize) {
+            //the value does not fit in the rest of this region, start at the next one
+            position = (position | (regionSize - 1)) + 1;
+        }
+        long address = dataAddress(position);
+        unsafe.putInt(address, bytes.length);
+        UnsafeHelper.copyMemory(bytes, BYTE_ARRAY_OFFSET, null, address + 4, bytes.length);
+        unsafe.putLong(indexAddress(HEADER_SIZE + 8L * size), position);
+
+        this.dataEnd = position + 4 + bytes.length;
+        this.size++;
+        this.commit();
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear()
+    {
+        checkState(!closed, "list is closed");
+        this.size = 0;
+        this.dataEnd = 0;
+        this.commit();
+        modCount++;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    private void commit()
+    {
+        long header = indexAddress(0);
+        unsafe.putLong(header + 24, dataEnd);
+        unsafe.putLong(header + 16, size);
+    }
+
+    private long dataAddress(long position)
+    {
+        int region = (int) (position / regionSize);
+        if (region >= dataRegions.length || dataRegions[region] == 0) {
+            dataRegions = mapRegion(dataChannel, dataRegions, region);
+        }
+        return dataRegions[region] + (position & (regionSize - 1));
+    }
+
+    private long indexAddress(long position)
+    {
+        int region = (int) (position / regionSize);
+        if (region >= indexRegions.length || indexRegions[region] == 0) {
+            indexRegions = mapRegion(indexChannel, indexRegions, region);
+        }
+        return indexRegions[region] + (position & (regionSize - 1));
+    }
+
+    private long[] mapRegion(FileChannel channel, long[] addresses, int region)
+    {
+        try {
+            //a read-write mapping past the end of file grows the file
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long) region * regionSize, regionSize);
+            regions.add(buffer);
+            if (region >= addresses.length) {
+                addresses = Arrays.copyOf(addresses, Math.max(region + 1, addresses.length << 1));
+            }
+            addresses[region] = UnsafeHelper.getDirectBufferAddress(buffer);
+            return addresses;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Force written values to the storage device, the values are already visible to a reopened
+     * list without this.
+     */
+    public void flush()
+    {
+        checkState(!closed, "list is closed");
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * Unmap the file and trim it to the used length
+     */
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        this.closed = true;
+        for (MappedByteBuffer region : regions) {
+            UnsafeHelper.freeDirectBuffer(region);
+        }
+        regions.clear();
+        try (FileChannel data = dataChannel; FileChannel index = indexChannel) {
+            data.truncate(dataEnd);
+            index.truncate(HEADER_SIZE + 8L * size);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Size bounded off-heap cache with CLOCK (second chance) eviction, TinyLFU admission and optional
+ * expire after write.
+ * <p>
+ * Values are serialized into native memory by a {@link Serde}, the cache keeps the sum of the
+ * serialized sizes under {@code maximumBytes}. The eviction metadata of every entry (value address,
+ * size, expire time and reference bit) lives in a native slot table, only the key and its slot index
+ * are kept on heap. A hit just sets the reference bit; on insert the clock hand sweeps the slots,
+ * clears set bits and picks the first entry that was not referenced since the last sweep. The victim
+ * is only evicted if the new key is at least as popular in a native {@link FrequencySketch}, otherwise
+ * the new value is rejected, so one scan over cold keys can not flush the entries that are read
+ * repeatedly.
+ * <p>
+ * The cache is thread safe. Removal listeners are called by the thread that caused the removal after
+ * the cache lock is released.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class OffHeapCache<K, V>
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    //slot layout: [value address long][expire at nanos long][value size int][referenced int]
+    private static final int SLOT_SIZE = 24;
+    private static final int EXPIRE_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int REFERENCED_OFFSET = 20;
+    private static final int INITIAL_SLOTS = 16;
+
+    public enum RemovalCause
+    {
+        EXPLICIT,   //remove() or clear()
+        REPLACED,   //put() over an existing key
+        EXPIRED,    //expire after write elapsed
+        SIZE        //evicted to stay under maximumBytes
+    }
+
+    public interface RemovalListener<K, V>
+    {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    private final Serde<V> serde;
+    private final MemoryPool pool;
+    private final long maximumBytes;
+    private final long expireAfterWriteNanos;
+    private final LongSupplier ticker;
+    private final RemovalListener<K, V> removalListener;
+
+    private final Map<K, Integer> slotMap = new HashMap<>();
+    private final FrequencySketch sketch;
+    private Object[] keys;
+    private long slots;
+    private int slotCapacity;
+    private int slotLimit = 0;   //slots [0, slotLimit) have been used
+    private int freeSlot = -1;   //free list, linked through the expire field
+    private int clockHand = 0;
+    private long usedBytes = 0;
+    private List<Removal<K, V>> pendingRemovals = new ArrayList<>();
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long expiredCount = 0;
+
+    private OffHeapCache(Builder<K, V> builder)
+    {
+        this.serde = builder.serde;
+        this.pool = builder.pool;
+        this.maximumBytes = builder.maximumBytes;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.ticker = builder.ticker;
+        this.removalListener = builder.removalListener;
+        this.slotCapacity = INITIAL_SLOTS;
+        this.keys = new Object[slotCapacity];
+        this.slots = pool.allocateMemory((long) slotCapacity * SLOT_SIZE);
+        this.sketch = new FrequencySketch(pool, slotCapacity);
+    }
+
+    public static <K, V> Builder<K, V> builder(Serde<V> serde)
+    {
+        return new Builder<>(serde);
+    }
+
+    public V get(K key)
+    {
+        requireNonNull(key, "key is null");
+        V value;
+        synchronized (this) {
+            checkOpen();
+            value = this.getIfPresent(key);
+        }
+        this.notifyRemovals();
+        return value;
+    }
+
+    /**
+     * Returns the cached value or loads and caches it. The loader runs without holding the cache lock,
+     * concurrent misses of the same key may load it more than once.
+     *
+     * @param key cache key
+     * @param loader computes the value of a missing key, a null value is not cached
+     * @return cached or loaded value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader)
+    {
+        requireNonNull(loader, "loader is null");
+        V value = this.get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                this.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    private V getIfPresent(K key)
+    {
+        sketch.increment(key.hashCode());
+        Integer slot = slotMap.get(key);
+        if (slot == null) {
+            missCount++;
+            return null;
+        }
+        long slotAddress = slotAddress(slot);
+        if (isExpired(slotAddress, ticker.getAsLong())) {
+            this.removeSlot(slot, RemovalCause.EXPIRED);
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        unsafe.putInt(slotAddress + REFERENCED_OFFSET, 1);
+        return serde.read(null, unsafe.getLong(slotAddress), unsafe.getInt(slotAddress + SIZE_OFFSET));
+    }
+
+    /**
+     * Caches the value, evicting entries as needed. A value bigger than {@code maximumBytes} or less
+     * popular than the first entry it would evict is not cached (the removal listener sees it as
+     * {@link RemovalCause#SIZE}), and an existing entry of the key is removed.
+     *
+     * @param key cache key
+     * @param value cache value
+     */
+    public void put(K key, V value)
+    {
+        requireNonNull(key, "key is null");
+        requireNonNull(value, "value is null");
+        int size = serde.sizeOf(value);
+        synchronized (this) {
+            checkOpen();
+            Integer old = slotMap.get(key);
+            if (old != null) {
+                this.removeSlot(old, RemovalCause.REPLACED);
+            }
+            sketch.increment(key.hashCode());
+            if (size > maximumBytes || !this.evict(key, size)) {
+                evictionCount++;
+                if (removalListener != null) {
+                    pendingRemovals.add(new Removal<>(key, value, RemovalCause.SIZE));
+                }
+            }
+            else {
+                long address = this.allocateValue(size);
+                int slot;
+                try {
+                    serde.write(value, null, address);
+                    slot = this.newSlot();
+                }
+                catch (RuntimeException | Error e) {
+                    pool.freeMemory(address, Math.max(size, 1));
+                    throw e;
+                }
+                long slotAddress = slotAddress(slot);
+                unsafe.putLong(slotAddress, address);
+                unsafe.putLong(slotAddress + EXPIRE_OFFSET, expireAfterWriteNanos > 0 ? ticker.getAsLong() + expireAfterWriteNanos : 0);
+                unsafe.putInt(slotAddress + SIZE_OFFSET, size);
+                unsafe.putInt(slotAddress + REFERENCED_OFFSET, 0);
+                keys[slot] = key;
+                slotMap.put(key, slot);
+                usedBytes += size;
+            }
+        }
+        this.notifyRemovals();
+    }
+
+    /**
+     * Allocates the value memory, the pool budget may be smaller than {@code maximumBytes}
+     */
+    private long allocateValue(int size)
+    {
+        while (true) {
+            try {
+                return pool.allocateMemory(Math.max(size, 1));
+            }
+            catch (MemoryBudgetException e) {
+                if (slotMap.isEmpty()) {
+                    throw e;
+                }
+                this.evictOne();
+            }
+        }
+    }
+
+    public boolean remove(K key)
+    {
+        requireNonNull(key, "key is null");
+        boolean removed;
+        synchronized (this) {
+            checkOpen();
+            Integer slot = slotMap.get(key);
+            removed = slot != null;
+            if (removed) {
+                this.removeSlot(slot, RemovalCause.EXPLICIT);
+            }
+        }
+        this.notifyRemovals();
+        return removed;
+    }
+
+    public synchronized boolean containsKey(K key)
+    {
+        checkOpen();
+        Integer slot = slotMap.get(key);
+        return slot != null && !isExpired(slotAddress(slot), ticker.getAsLong());
+    }
+
+    /**
+     * Removes all entries, the removal listener sees them as {@link RemovalCause#EXPLICIT}
+     */
+    public void clear()
+    {
+        synchronized (this) {
+            checkOpen();
+            for (int slot = 0; slot < slotLimit; slot++) {
+                if (keys[slot] != null) {
+                    this.removeSlot(slot, RemovalCause.EXPLICIT);
+                }
+            }
+        }
+        this.notifyRemovals();
+    }
+
+    /**
+     * Removes the expired entries now instead of waiting for them to be read or swept by the clock
+     */
+    public void cleanUp()
+    {
+        synchronized (this) {
+            checkOpen();
+            if (expireAfterWriteNanos > 0) {
+                long now = ticker.getAsLong();
+                for (int slot = 0; slot < slotLimit; slot++) {
+                    if (keys[slot] != null && isExpired(slotAddress(slot), now)) {
+                        this.removeSlot(slot, RemovalCause.EXPIRED);
+                    }
+                }
+            }
+        }
+        this.notifyRemovals();
+    }
+
+    /**
+     * TinyLFU admission, the candidate only competes with the first victim so nothing is evicted
+     * for a rejected key
+     *
+     * @return false if the first victim is more popular than the candidate key
+     */
+    private boolean evict(K candidate, int required)
+    {
+        int candidateFrequency = sketch.frequency(candidate.hashCode());
+        boolean admitted = false;
+        while (usedBytes + required > maximumBytes) {
+            int victim = this.nextVictim();
+            if (victim >= 0) {
+                if (!admitted && sketch.frequency(keys[victim].hashCode()) > candidateFrequency) {
+                    return false;
+                }
+                admitted = true;
+                this.removeSlot(victim, RemovalCause.SIZE);
+            }
+        }
+        return true;
+    }
+
+    private void evictOne()
+    {
+        int victim = this.nextVictim();
+        if (victim >= 0) {
+            this.removeSlot(victim, RemovalCause.SIZE);
+        }
+    }
+
+    /**
+     * Moves the clock hand to the next entry not referenced since the last sweep, expired entries
+     * on the way are removed.
+     *
+     * @return victim slot, or -1 if an expired entry was removed instead
+     */
+    private int nextVictim()
+    {
+        long now = ticker.getAsLong();
+        //two sweeps at most, the first one clears every reference bit
+        for (int i = 0; i < slotLimit * 2 + 1; i++) {
+            int slot = clockHand;
+            clockHand = clockHand + 1 >= slotLimit ? 0 : clockHand + 1;
+            if (keys[slot] == null) {
+                continue;
+            }
+            long slotAddress = slotAddress(slot);
+            if (isExpired(slotAddress, now)) {
+                this.removeSlot(slot, RemovalCause.EXPIRED);
+                return -1;
+            }
+            if (unsafe.getInt(slotAddress + REFERENCED_OFFSET) != 0) {
+                unsafe.putInt(slotAddress + REFERENCED_OFFSET, 0);
+                continue;
+            }
+            return slot;
+        }
+        throw new IllegalStateException("no entry to evict");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeSlot(int slot, RemovalCause cause)
+    {
+        long slotAddress = slotAddress(slot);
+        long address = unsafe.getLong(slotAddress);
+        int size = unsafe.getInt(slotAddress + SIZE_OFFSET);
+        K key = (K) keys[slot];
+        if (removalListener != null) {
+            pendingRemovals.add(new Removal<>(key, serde.read(null, address, size), cause));
+        }
+        if (cause == RemovalCause.SIZE) {
+            evictionCount++;
+        }
+        else if (cause == RemovalCause.EXPIRED) {
+            expiredCount++;
+        }
+        pool.freeMemory(address, Math.max(size, 1));
+        usedBytes -= size;
+        slotMap.remove(key);
+        keys[slot] = null;
+        unsafe.putLong(slotAddress, 0);
+        unsafe.putLong(slotAddress + EXPIRE_OFFSET, freeSlot);
+        freeSlot = slot;
+    }
+
+    private int newSlot()
+    {
+        if (freeSlot >= 0) {
+            int slot = freeSlot;
+            freeSlot = (int) unsafe.getLong(slotAddress(slot) + EXPIRE_OFFSET);
+            return slot;
+        }
+        if (slotLimit == slotCapacity) {
+            checkState(slotCapacity <= Integer.MAX_VALUE / 2, "too many entries");
+            int newCapacity = slotCapacity * 2;
+            this.slots = pool.reallocateMemory(slots, (long) slotCapacity * SLOT_SIZE, (long) newCapacity * SLOT_SIZE);
+            Object[] newKeys = new Object[newCapacity];
+            System.arraycopy(keys, 0, newKeys, 0, slotCapacity);
+            this.keys = newKeys;
+            this.slotCapacity = newCapacity;
+            sketch.ensureCapacity(newCapacity);
+        }
+        return slotLimit++;
+    }
+
+    private long slotAddress(int slot)
+    {
+        return slots + (long) slot * SLOT_SIZE;
+    }
+
+    private boolean isExpired(long slotAddress, long now)
+    {
+        long expireAt = unsafe.getLong(slotAddress + EXPIRE_OFFSET);
+        return expireAt != 0 && now - expireAt >= 0;
+    }
+
+    private void checkOpen()
+    {
+        checkState(slots != 0, "cache is closed");
+    }
+
+    private void notifyRemovals()
+    {
+        if (removalListener == null) {
+            return;
+        }
+        List<Removal<K, V>> removals;
+        synchronized (this) {
+            if (pendingRemovals.isEmpty()) {
+                return;
+            }
+            removals = pendingRemovals;
+            pendingRemovals = new ArrayList<>();
+        }
+        for (Removal<K, V> removal : removals) {
+            removalListener.onRemoval(removal.key, removal.value, removal.cause);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return slotMap.size();
+    }
+
+    /**
+     * @return serialized bytes of the cached values
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    public long getMaximumBytes()
+    {
+        return maximumBytes;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return entries evicted and new values rejected by size
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    public synchronized long getExpiredCount()
+    {
+        return expiredCount;
+    }
+
+    public synchronized double getHitRate()
+    {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0D : (double) hitCount / requests;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "OffHeapCache{size=" + slotMap.size() +
+                ", usedBytes=" + usedBytes +
+                ", maximumBytes=" + maximumBytes +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", evictions=" + evictionCount +
+                ", expired=" + expiredCount + "}";
+    }
+
+    /**
+     * Release all native memory without calling the removal listener, the cache can not be used after close
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (slots == 0) {
+            return;
+        }
+        for (int slot = 0; slot < slotLimit; slot++) {
+            if (keys[slot] != null) {
+                long slotAddress = slotAddress(slot);
+                pool.freeMemory(unsafe.getLong(slotAddress), Math.max(unsafe.getInt(slotAddress + SIZE_OFFSET), 1));
+            }
+        }
+        pool.freeMemory(slots, (long) slotCapacity * SLOT_SIZE);
+        sketch.close();
+        slots = 0;
+        keys = null;
+        usedBytes = 0;
+        slotMap.clear();
+        pendingRemovals = Collections.emptyList();
+    }
+
+    private static final class Removal<K, V>
+    {
+        private final K key;
+        private final V value;
+        private final RemovalCause cause;
+
+        private Removal(K key, V value, RemovalCause cause)
+        {
+            this.key = key;
+            this.value = value;
+            this.cause = cause;
+        }
+    }
+
+    public static final class Builder<K, V>
+    {
+        private final Serde<V> serde;
+        private MemoryPool pool = MemoryManager.getDefaultPool();
+        private long maximumBytes = Long.MAX_VALUE;
+        private long expireAfterWriteNanos = 0;
+        private LongSupplier ticker = System::nanoTime;
+        private RemovalListener<K, V> removalListener;
+
+        private Builder(Serde<V> serde)
+        {
+            this.serde = requireNonNull(serde, "serde is null");
+        }
+
+        public Builder<K, V> memoryPool(MemoryPool pool)
+        {
+            this.pool = requireNonNull(pool, "pool is null");
+            return this;
+        }
+
+        /**
+         * @param maximumBytes limit of the serialized bytes of all values
+         * @return this builder
+         */
+        public Builder<K, V> maximumBytes(long maximumBytes)
+        {
+            checkArgument(maximumBytes >= 0, "maximumBytes must be non-negative");
+            this.maximumBytes = maximumBytes;
+            return this;
+        }
+
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit)
+        {
+            checkArgument(duration > 0, "duration must be positive");
+            this.expireAfterWriteNanos = requireNonNull(unit, "unit is null").toNanos(duration);
+            return this;
+        }
+
+        /**
+         * @param ticker nano time source, for tests
+         * @return this builder
+         */
+        public Builder<K, V> ticker(LongSupplier ticker)
+        {
+            this.ticker = requireNonNull(ticker, "ticker is null");
+            return this;
+        }
+
+        public Builder<K, V> removalListener(RemovalListener<K, V> removalListener)
+        {
+            this.removalListener = requireNonNull(removalListener, "removalListener is null");
+            return this;
+        }
+
+        public OffHeapCache<K, V> build()
+        {
+            return new OffHeapCache<>(this);
+        }
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Open addressing hash map whose keys and values are both serialized into native memory.
+ * <p>
+ * The slot table is a native array of (64-bit key hash, entry address) pairs probed linearly,
+ * removal uses backward shift so there are no tombstones. Each entry is
+ * [keyLength int][valueLength int][key bytes][value bytes] allocated from a {@link MemoryArena}
+ * owned by this map. The heap footprint does not grow with the number of entries.
+ * <p>
+ * Not thread-safe. Call {@link #close()} to release the native memory.
+ */
+public class OffHeapHashMap<K, V>
+        extends AbstractMap<K, V>
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int SLOT_SIZE = 16;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75D;
+
+    private final Function<K, byte[]> keySerialization;
+    private final Function<byte[], K> keyDeserialization;
+    private final Function<V, byte[]> valueSerialization;
+    private final Function<byte[], V> valueDeserialization;
+    private final MemoryPool pool;
+    private final MemoryArena arena;
+
+    private long table;
+    private long capacity;
+    private long mask;
+    private long threshold;
+    private int size = 0;
+    private int modCount = 0;
+
+    public OffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization)
+    {
+        this(keySerialization, keyDeserialization, valueSerialization, valueDeserialization, DEFAULT_CAPACITY);
+    }
+
+    public OffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization,
+            int initialCapacity)
+    {
+        this(keySerialization, keyDeserialization, valueSerialization, valueDeserialization, initialCapacity, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * @param pool the slot table and the entries are allocated from this pool
+     */
+    public OffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization,
+            int initialCapacity,
+            MemoryPool pool)
+    {
+        this(keySerialization, keyDeserialization, valueSerialization, valueDeserialization, initialCapacity, pool, MemoryArena.DEFAULT_CHUNK_SIZE);
+    }
+
+    OffHeapHashMap(
+            Function<K, byte[]> keySerialization,
+            Function<byte[], K> keyDeserialization,
+            Function<V, byte[]> valueSerialization,
+            Function<byte[], V> valueDeserialization,
+            int initialCapacity,
+            MemoryPool pool,
+            int arenaChunkSize)
+    {
+        checkArgument(initialCapacity > 0, "initialCapacity must be positive");
+        this.keySerialization = requireNonNull(keySerialization, "keySerialization is null");
+        this.keyDeserialization = requireNonNull(keyDeserialization, "keyDeserialization is null");
+        this.valueSerialization = requireNonNull(valueSerialization, "valueSerialization is null");
+        this.valueDeserialization = requireNonNull(valueDeserialization, "valueDeserialization is null");
+        this.pool = requireNonNull(pool, "pool is null");
+        this.arena = new MemoryArena(arenaChunkSize, pool);
+        this.allocateTable(tableSizeFor(initialCapacity));
+    }
+
+    private static long tableSizeFor(long expected)
+    {
+        long capacity = Long.highestOneBit(Math.max(2L, (long) Math.ceil(expected / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(capacity, 2L);
+    }
+
+    private void allocateTable(long capacity)
+    {
+        long bytes = capacity * SLOT_SIZE;
+        this.table = pool.allocateMemory(bytes);
+        unsafe.setMemory(table, bytes, (byte) 0);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = (long) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * xxHash64 over the key bytes, see {@link UnsafeHelper#xxHash64(Object, long, int)}
+     */
+    static long hash(Object base, long offset, int length)
+    {
+        return UnsafeHelper.xxHash64(base, offset, length);
+    }
+
+    private static boolean keyEquals(long entry, byte[] key)
+    {
+        return unsafe.getInt(entry) == key.length && UnsafeHelper.equals(key, BYTE_ARRAY_OFFSET, null, entry + ENTRY_HEADER_SIZE, key.length);
+    }
+
+    private long slotHash(long slot)
+    {
+        return unsafe.getLong(table + slot * SLOT_SIZE);
+    }
+
+    private long slotEntry(long slot)
+    {
+        return unsafe.getLong(table + slot * SLOT_SIZE + 8);
+    }
+
+    private void setSlot(long slot, long hash, long entry)
+    {
+        long address = table + slot * SLOT_SIZE;
+        unsafe.putLong(address, hash);
+        unsafe.putLong(address + 8, entry);
+    }
+
+    private void checkOpen()
+    {
+        checkState(table != 0, "map is closed");
+    }
+
+    /**
+     * @return slot index of the key, or -1 if absent
+     */
+    private long findSlot(byte[] key, long hash)
+    {
+        checkOpen();
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = slotEntry(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if (slotHash(slot) == hash && keyEquals(entry, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private static byte[] readKey(long entry)
+    {
+        byte[] bytes = new byte[unsafe.getInt(entry)];
+        UnsafeHelper.copyMemory(null, entry + ENTRY_HEADER_SIZE, bytes, BYTE_ARRAY_OFFSET, bytes.length);
+        return bytes;
+    }
+
+    private static byte[] readValue(long entry)
+    {
+        int keyLength = unsafe.getInt(entry);
+        byte[] bytes = new byte[unsafe.getInt(entry + 4)];
+        UnsafeHelper.copyMemory(null, entry + ENTRY_HEADER_SIZE + keyLength, bytes, BYTE_ARRAY_OFFSET, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Allocate and fill an entry that is not linked yet, safe to call without external locking
+     */
+    long newEntry(byte[] key, byte[] value)
+    {
+        long entry = arena.allocate(ENTRY_HEADER_SIZE + key.length + value.length);
+        unsafe.putInt(entry, key.length);
+        unsafe.putInt(entry + 4, value.length);
+        UnsafeHelper.copyMemory(key, BYTE_ARRAY_OFFSET, null, entry + ENTRY_HEADER_SIZE, key.length);
+        UnsafeHelper.copyMemory(value, BYTE_ARRAY_OFFSET, null, entry + ENTRY_HEADER_SIZE + key.length, value.length);
+        return entry;
+    }
+
+    void freeEntry(long entry)
+    {
+        arena.free(entry, ENTRY_HEADER_SIZE + unsafe.getInt(entry) + unsafe.getInt(entry + 4));
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeKey(Object key)
+    {
+        return keySerialization.apply((K) key);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        return containsKey(keyBytes, hash(keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length));
+    }
+
+    boolean containsKey(byte[] keyBytes, long hash)
+    {
+        return findSlot(keyBytes, hash) != -1;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        return get(keyBytes, hash(keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length));
+    }
+
+    /**
+     * @param keyBytes serialized key
+     * @param hash {@link #hash(Object, long, int)} of the key bytes
+     * @return value or null
+     */
+    V get(byte[] keyBytes, long hash)
+    {
+        long slot = findSlot(keyBytes, hash);
+        if (slot == -1) {
+            return null;
+        }
+        return valueDeserialization.apply(readValue(slotEntry(slot)));
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        byte[] keyBytes = keySerialization.apply(key);
+        return put(keyBytes, hash(keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length), valueSerialization.apply(value));
+    }
+
+    V put(byte[] keyBytes, long hash, byte[] valueBytes)
+    {
+        long entry = newEntry(keyBytes, valueBytes);
+        try {
+            return putEntry(keyBytes, hash, entry);
+        }
+        catch (RuntimeException | Error e) {
+            freeEntry(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Link an entry made by {@link #newEntry(byte[], byte[])}, the replaced entry is freed.
+     * The new entry is not linked if this throws.
+     */
+    V putEntry(byte[] keyBytes, long hash, long entry)
+    {
+        long slot = findSlot(keyBytes, hash);
+        if (slot != -1) {
+            long oldEntry = slotEntry(slot);
+            V oldValue = valueDeserialization.apply(readValue(oldEntry));
+            setSlot(slot, hash, entry);
+            freeEntry(oldEntry);
+            return oldValue;
+        }
+
+        if (size >= threshold) {
+            this.resize(capacity << 1);
+        }
+        insert(hash, entry);
+        size++;
+        modCount++;
+        return null;
+    }
+
+    private void insert(long hash, long entry)
+    {
+        long slot = hash & mask;
+        while (slotEntry(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        setSlot(slot, hash, entry);
+    }
+
+    /**
+     * Rehash every slot into a new native table, the stored hashes are reused so no key is read
+     */
+    private void resize(long newCapacity)
+    {
+        checkState(newCapacity > 0 && newCapacity * SLOT_SIZE > 0, "capacity overflow");
+        long oldTable = table;
+        long oldCapacity = capacity;
+        this.allocateTable(newCapacity);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            long address = oldTable + slot * SLOT_SIZE;
+            long entry = unsafe.getLong(address + 8);
+            if (entry != 0) {
+                insert(unsafe.getLong(address), entry);
+            }
+        }
+        pool.freeMemory(oldTable, oldCapacity * SLOT_SIZE);
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        byte[] keyBytes = serializeKey(key);
+        return remove(keyBytes, hash(keyBytes, BYTE_ARRAY_OFFSET, keyBytes.length));
+    }
+
+    V remove(byte[] keyBytes, long hash)
+    {
+        long slot = findSlot(keyBytes, hash);
+        if (slot == -1) {
+            return null;
+        }
+        long entry = slotEntry(slot);
+        V oldValue = valueDeserialization.apply(readValue(entry));
+        removeSlot(slot, null);
+        return oldValue;
+    }
+
+    /**
+     * Backward shift deletion. Every moved entry is reported to {@code iterator}, the shift can carry
+     * entries across its cursor when the probe run wraps around the end of the table.
+     */
+    private void removeSlot(long slot, EntryIterator iterator)
+    {
+        freeEntry(slotEntry(slot));
+        long hole = slot;
+        for (long next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long entry = slotEntry(next);
+            if (entry == 0) {
+                break;
+            }
+            long hash = slotHash(next);
+            long home = hash & mask;
+            //move the entry into the hole if its home is not in (hole, next]
+            if (hole <= next ? (home <= hole || home > next) : (home <= hole && home > next)) {
+                if (iterator != null) {
+                    iterator.moved(entry, next, hole);
+                }
+                setSlot(hole, hash, entry);
+                hole = next;
+            }
+        }
+        setSlot(hole, 0, 0);
+        size--;
+        modCount++;
+    }
+
+    @Override
+    public void clear()
+    {
+        checkOpen();
+        for (long slot = 0; slot < capacity; slot++) {
+            long entry = slotEntry(slot);
+            if (entry != 0) {
+                freeEntry(entry);
+            }
+        }
+        unsafe.setMemory(table, capacity * SLOT_SIZE, (byte) 0);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Entry<K, V>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public void clear()
+            {
+                OffHeapHashMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Iterates the table from the last slot to the first, see {@link #removeSlot(long, EntryIterator)}
+     */
+    private class EntryIterator
+            implements Iterator<Entry<K, V>>
+    {
+        private final List<Long> wrapped = new ArrayList<>();
+        private final Set<Long> returned = new HashSet<>();
+        private long slot = capacity;
+        private int wrappedIndex = 0;
+        private int expectedModCount = modCount;
+        private long lastEntry = 0;
+        private long nextEntry = 0;
+
+        private EntryIterator()
+        {
+            checkOpen();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (nextEntry != 0) {
+                return true;
+            }
+            while (slot > 0) {
+                long entry = slotEntry(--slot);
+                if (entry != 0 && !returned.remove(entry)) {
+                    nextEntry = entry;
+                    return true;
+                }
+            }
+            if (wrappedIndex < wrapped.size()) {
+                nextEntry = wrapped.get(wrappedIndex++);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<K, V> next()
+        {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastEntry = nextEntry;
+            nextEntry = 0;
+            return new SimpleImmutableEntry<>(
+                    keyDeserialization.apply(readKey(lastEntry)),
+                    valueDeserialization.apply(readValue(lastEntry)));
+        }
+
+        @Override
+        public void remove()
+        {
+            checkState(lastEntry != 0, "next() has not been called");
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (nextEntry != 0) {
+                //undo the look ahead of hasNext(), the shift may move the pending entry
+                if (wrappedIndex > 0) {
+                    wrappedIndex--;
+                }
+                else {
+                    slot++;
+                }
+                nextEntry = 0;
+            }
+            byte[] key = readKey(lastEntry);
+            removeSlot(findSlot(key, hash(key, BYTE_ARRAY_OFFSET, key.length)), this);
+            lastEntry = 0;
+            expectedModCount = modCount;
+        }
+
+        /**
+         * Slots below the cursor have not been visited yet. An entry shifted from there to the visited
+         * part is returned later from {@code wrapped}, a returned entry shifted back is skipped.
+         */
+        private void moved(long entry, long from, long to)
+        {
+            if (from < slot && to >= slot) {
+                if (!returned.remove(entry)) {
+                    wrapped.add(entry);
+                }
+            }
+            else if (from >= slot && to < slot) {
+                if (!wrapped.remove(Long.valueOf(entry))) {
+                    returned.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release all native memory, the map can not be used after close
+     */
+    @Override
+    public void close()
+    {
+        if (table != 0) {
+            pool.freeMemory(table, capacity * SLOT_SIZE);
+            table = 0;
+            arena.close();
+            size = 0;
+        }
+    }
+}
@@ -15,8 +15,12 @@
  */
 package com.github.harbby.gadtry.memory.collection;
 
+import com.github.harbby.gadtry.memory.MemoryArena;
 import com.github.harbby.gadtry.memory.MemoryBlock;
+import com.github.harbby.gadtry.memory.Serde;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,8 +33,9 @@ public class OffHeapList<E>
         extends AbstractList<E>
 {
     private final List<MemoryBlock> list;
-    private final Function<E, byte[]> serialization;
-    private final Function<byte[], E> deserialization;
+    private final Function<E, MemoryBlock> encoder;
+    private final Function<MemoryBlock, E> decoder;
+    private final MemoryArena arena;
 
     public OffHeapList(
             Function<E, byte[]> serialization,
@@ -40,37 +45,95 @@ public class OffHeapList<E>
         this(serialization, deserialization, ArrayList::new);
     }
 
-    @SuppressWarnings("unchecked")
     public OffHeapList(
             Function<E, byte[]> serialization,
             Function<byte[], E> deserialization,
             Supplier<List<?>> listSupplier
     )
     {
-        this.serialization = requireNonNull(serialization, "serialization is null");
-        this.deserialization = requireNonNull(deserialization, "serialization is null");
+        this(serialization, deserialization, listSupplier, null);
+    }
+
+    public OffHeapList(
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization,
+            MemoryArena arena
+    )
+    {
+        this(serialization, deserialization, ArrayList::new, requireNonNull(arena, "arena is null"));
+    }
+
+    /**
+     * @param arena values are allocated from this arena, if null every value is one allocateMemory
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapList(
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization,
+            Supplier<List<?>> listSupplier,
+            MemoryArena arena
+    )
+    {
+        requireNonNull(serialization, "serialization is null");
+        requireNonNull(deserialization, "deserialization is null");
+        this.encoder = element -> MemoryBlock.allocate(arena, serialization.apply(element));
+        this.decoder = block -> deserialization.apply(block.getByteValue());
         this.list = (List<MemoryBlock>) listSupplier.get();
+        this.arena = arena;
+    }
+
+    public OffHeapList(Serde<E> serde)
+    {
+        this(serde, ArrayList::new, null);
+    }
+
+    public OffHeapList(Serde<E> serde, MemoryArena arena)
+    {
+        this(serde, ArrayList::new, requireNonNull(arena, "arena is null"));
+    }
+
+    /**
+     * Values are written to and read from native memory by the serde directly, without a byte[] copy.
+     *
+     * @param arena values are allocated from this arena, if null every value is one allocateMemory
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapList(
+            Serde<E> serde,
+            Supplier<List<?>> listSupplier,
+            MemoryArena arena
+    )
+    {
+        requireNonNull(serde, "serde is null");
+        this.encoder = element -> {
+            MemoryBlock block = MemoryBlock.allocate(arena, serde.sizeOf(element));
+            serde.write(element, null, block.getAddress());
+            return block;
+        };
+        this.decoder = block -> serde.read(null, block.getAddress(), block.getSize());
+        this.list = (List<MemoryBlock>) listSupplier.get();
+        this.arena = arena;
     }
 
     @Override
     public E get(int index)
     {
-        return deserialization.apply(list.get(index).getByteValue());
+        return decoder.apply(list.get(index));
     }
 
     @Override
     public void add(int index, E element)
     {
-        MemoryBlock block = new MemoryBlock(serialization.apply(element));
+        MemoryBlock block = encoder.apply(element);
         list.add(index, block);
     }
 
     @Override
     public E set(int index, E element)
     {
-        MemoryBlock block = new MemoryBlock(serialization.apply(element));
+        MemoryBlock block = encoder.apply(element);
         try (MemoryBlock oldBlock = list.set(index, block)) {
-            return deserialization.apply(oldBlock.getByteValue());
+            return decoder.apply(oldBlock);
         }
     }
 
@@ -78,7 +141,7 @@ public class OffHeapList<E>
     public E remove(int index)
     {
         try (MemoryBlock oldBlock = list.remove(index)) {
-            return deserialization.apply(oldBlock.getByteValue());
+            return decoder.apply(oldBlock);
         }
     }
 
@@ -87,4 +150,60 @@ public class OffHeapList<E>
     {
         return list.size();
     }
+
+    @Override
+    public void clear()
+    {
+        for (MemoryBlock block : list) {
+            block.close();
+        }
+        list.clear();
+    }
+
+    /**
+     * Writes the serialized elements to a versioned and checksummed file, straight from native memory
+     *
+     * @param path snapshot file, replaced atomically when the snapshot is complete
+     * @throws IOException write failed
+     */
+    public void snapshot(Path path)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        try (SnapshotWriter writer = new SnapshotWriter(path, SnapshotWriter.TYPE_LIST)) {
+            for (MemoryBlock block : list) {
+                writer.writeInt(block.getSize());
+                writer.writeMemory(null, block.getAddress(), block.getSize());
+            }
+            writer.finish(list.size());
+        }
+    }
+
+    /**
+     * Replaces the elements by a snapshot, the bytes are read straight into native memory without
+     * deserializing. The list must use the same serialization as the list that wrote the snapshot.
+     * If the snapshot is corrupted the list is left empty.
+     *
+     * @param path snapshot file written by {@link #snapshot(Path)}
+     * @throws IOException read failed, or the file is truncated or corrupted
+     */
+    public void restore(Path path)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        this.clear();
+        try (SnapshotReader reader = new SnapshotReader(path, SnapshotWriter.TYPE_LIST)) {
+            for (long i = 0; i < reader.getCount(); i++) {
+                int size = reader.readInt();
+                MemoryBlock block = MemoryBlock.allocate(arena, size);
+                list.add(block);
+                reader.readMemory(null, block.getAddress(), size);
+            }
+            reader.finish();
+        }
+        catch (IOException | RuntimeException e) {
+            this.clear();
+            throw e;
+        }
+    }
 }
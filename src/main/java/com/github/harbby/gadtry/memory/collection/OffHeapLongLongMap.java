@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Off-heap long to long hash map, get/put/addTo never allocate on the heap.
+ * Absent keys return {@link #getNoEntryValue()}. Not thread-safe.
+ */
+public class OffHeapLongLongMap
+        extends AbstractOffHeapPrimitiveMap
+{
+    private final long noEntryValue;
+
+    public OffHeapLongLongMap()
+    {
+        this(0, 0);
+    }
+
+    public OffHeapLongLongMap(int initialCapacity, long noEntryValue)
+    {
+        this(initialCapacity, noEntryValue, MemoryManager.getDefaultPool());
+    }
+
+    public OffHeapLongLongMap(int initialCapacity, long noEntryValue, MemoryPool pool)
+    {
+        super(8, 8, initialCapacity, pool);
+        this.noEntryValue = noEntryValue;
+    }
+
+    public long getNoEntryValue()
+    {
+        return noEntryValue;
+    }
+
+    public boolean containsKey(long key)
+    {
+        return findSlot(key) != -1;
+    }
+
+    public long get(long key)
+    {
+        long slot = findSlot(key);
+        return slot == -1 ? noEntryValue : unsafe.getLong(valueAddress(slot));
+    }
+
+    public long getOrDefault(long key, long defaultValue)
+    {
+        long slot = findSlot(key);
+        return slot == -1 ? defaultValue : unsafe.getLong(valueAddress(slot));
+    }
+
+    /**
+     * @return the previous value, or {@link #getNoEntryValue()} if the key was absent
+     */
+    public long put(long key, long value)
+    {
+        long slot = findOrInsertSlot(key);
+        if (slot < 0) {
+            unsafe.putLong(valueAddress(-slot - 1), value);
+            return noEntryValue;
+        }
+        long address = valueAddress(slot);
+        long oldValue = unsafe.getLong(address);
+        unsafe.putLong(address, value);
+        return oldValue;
+    }
+
+    /**
+     * Adds the increment to the value of the key, an absent key starts from {@link #getNoEntryValue()}.
+     *
+     * @return the previous value
+     */
+    public long addTo(long key, long increment)
+    {
+        long slot = findOrInsertSlot(key);
+        if (slot < 0) {
+            unsafe.putLong(valueAddress(-slot - 1), noEntryValue + increment);
+            return noEntryValue;
+        }
+        long address = valueAddress(slot);
+        long oldValue = unsafe.getLong(address);
+        unsafe.putLong(address, oldValue + increment);
+        return oldValue;
+    }
+
+    /**
+     * @return the removed value, or {@link #getNoEntryValue()} if the key was absent
+     */
+    public long remove(long key)
+    {
+        long slot = findSlot(key);
+        if (slot == -1) {
+            return noEntryValue;
+        }
+        long oldValue = unsafe.getLong(valueAddress(slot));
+        removeSlot(slot);
+        return oldValue;
+    }
+
+    public void forEach(EntryConsumer consumer)
+    {
+        forEachSlot((key, slot) -> consumer.accept(key, unsafe.getLong(valueAddress(slot))));
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer
+    {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Writes the whole table to a versioned and checksummed file, straight from native memory
+     *
+     * @param path snapshot file, replaced atomically when the snapshot is complete
+     * @throws IOException write failed
+     */
+    public void snapshot(Path path)
+            throws IOException
+    {
+        writeSnapshot(path, SnapshotWriter.TYPE_LONG_LONG_MAP);
+    }
+
+    /**
+     * Replaces the entries by a snapshot with sequential reads into native memory, without rehashing.
+     * If the snapshot is corrupted the map is left empty.
+     *
+     * @param path snapshot file written by {@link #snapshot(Path)}
+     * @throws IOException read failed, or the file is truncated or corrupted
+     */
+    public void restore(Path path)
+            throws IOException
+    {
+        readSnapshot(path, SnapshotWriter.TYPE_LONG_LONG_MAP);
+    }
+}
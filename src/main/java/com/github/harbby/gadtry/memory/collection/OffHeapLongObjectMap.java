@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+
+import java.util.function.Function;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Off-heap long to object hash map. The slot value is the address of a [length int][value bytes]
+ * block allocated from a {@link MemoryArena} owned by this map. Not thread-safe.
+ */
+public class OffHeapLongObjectMap<V>
+        extends AbstractOffHeapPrimitiveMap
+{
+    private final Function<V, byte[]> serialization;
+    private final Function<byte[], V> deserialization;
+    private final MemoryArena arena;
+
+    public OffHeapLongObjectMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization)
+    {
+        this(serialization, deserialization, 0);
+    }
+
+    public OffHeapLongObjectMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            int initialCapacity)
+    {
+        this(serialization, deserialization, initialCapacity, MemoryManager.getDefaultPool());
+    }
+
+    public OffHeapLongObjectMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            int initialCapacity,
+            MemoryPool pool)
+    {
+        super(8, 8, initialCapacity, pool);
+        this.arena = new MemoryArena(MemoryArena.DEFAULT_CHUNK_SIZE, pool);
+        this.serialization = requireNonNull(serialization, "serialization is null");
+        this.deserialization = requireNonNull(deserialization, "deserialization is null");
+    }
+
+    private long newBlock(V value)
+    {
+        byte[] bytes = serialization.apply(value);
+        long block = arena.allocate(4 + bytes.length);
+        unsafe.putInt(block, bytes.length);
+        UnsafeHelper.copyMemory(bytes, BYTE_ARRAY_OFFSET, null, block + 4, bytes.length);
+        return block;
+    }
+
+    private V readBlock(long block)
+    {
+        byte[] bytes = new byte[unsafe.getInt(block)];
+        UnsafeHelper.copyMemory(null, block + 4, bytes, BYTE_ARRAY_OFFSET, bytes.length);
+        return deserialization.apply(bytes);
+    }
+
+    private void freeBlock(long block)
+    {
+        arena.free(block, 4 + unsafe.getInt(block));
+    }
+
+    public boolean containsKey(long key)
+    {
+        return findSlot(key) != -1;
+    }
+
+    public V get(long key)
+    {
+        long slot = findSlot(key);
+        return slot == -1 ? null : readBlock(unsafe.getLong(valueAddress(slot)));
+    }
+
+    /**
+     * @return the previous value, or null if the key was absent
+     */
+    public V put(long key, V value)
+    {
+        long block = newBlock(value);
+        long slot;
+        try {
+            slot = findOrInsertSlot(key);
+        }
+        catch (RuntimeException | Error e) {
+            freeBlock(block);
+            throw e;
+        }
+        if (slot < 0) {
+            unsafe.putLong(valueAddress(-slot - 1), block);
+            return null;
+        }
+        long address = valueAddress(slot);
+        long oldBlock = unsafe.getLong(address);
+        unsafe.putLong(address, block);
+        V oldValue = readBlock(oldBlock);
+        freeBlock(oldBlock);
+        return oldValue;
+    }
+
+    /**
+     * @return the removed value, or null if the key was absent
+     */
+    public V remove(long key)
+    {
+        long slot = findSlot(key);
+        if (slot == -1) {
+            return null;
+        }
+        long block = unsafe.getLong(valueAddress(slot));
+        V oldValue = readBlock(block);
+        freeBlock(block);
+        removeSlot(slot);
+        return oldValue;
+    }
+
+    public void forEach(EntryConsumer<V> consumer)
+    {
+        forEachSlot((key, slot) -> consumer.accept(key, readBlock(unsafe.getLong(valueAddress(slot)))));
+    }
+
+    @Override
+    public void clear()
+    {
+        forEachSlot((key, slot) -> freeBlock(unsafe.getLong(valueAddress(slot))));
+        super.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        super.close();
+        arena.close();
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V>
+    {
+        void accept(long key, V value);
+    }
+}
@@ -15,25 +15,35 @@
  */
 package com.github.harbby.gadtry.memory.collection;
 
+import com.github.harbby.gadtry.memory.MemoryArena;
 import com.github.harbby.gadtry.memory.MemoryBlock;
+import com.github.harbby.gadtry.memory.Serde;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
 
 public class OffHeapMap<K, V>
         extends AbstractMap<K, V>
 {
-    private final Function<V, byte[]> serialization;
-    private final Function<byte[], V> deserialization;
+    private final Function<V, MemoryBlock> encoder;
+    private final Function<MemoryBlock, V> decoder;
     private final Map<K, MemoryBlock> blockMap;
+    private final MemoryArena arena;
 
     public OffHeapMap(
             Function<V, byte[]> serialization,
@@ -42,16 +52,72 @@ public class OffHeapMap<K, V>
         this(serialization, deserialization, HashMap::new);
     }
 
-    @SuppressWarnings("unchecked")
     public OffHeapMap(
             Function<V, byte[]> serialization,
             Function<byte[], V> deserialization,
             Supplier<Map<K, ?>> blockMapSupplier)
     {
-        this.serialization = requireNonNull(serialization, "serialization is null");
-        this.deserialization = requireNonNull(deserialization, "serialization is null");
+        this(serialization, deserialization, blockMapSupplier, null);
+    }
+
+    public OffHeapMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            MemoryArena arena)
+    {
+        this(serialization, deserialization, HashMap::new, requireNonNull(arena, "arena is null"));
+    }
+
+    /**
+     * @param arena values are allocated from this arena, if null every value is one allocateMemory
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            Supplier<Map<K, ?>> blockMapSupplier,
+            MemoryArena arena)
+    {
+        requireNonNull(serialization, "serialization is null");
+        requireNonNull(deserialization, "deserialization is null");
+        requireNonNull(blockMapSupplier, "blockMapClass is null");
+        this.encoder = value -> MemoryBlock.allocate(arena, serialization.apply(value));
+        this.decoder = block -> deserialization.apply(block.getByteValue());
+        this.blockMap = (Map<K, MemoryBlock>) blockMapSupplier.get();
+        this.arena = arena;
+    }
+
+    public OffHeapMap(Serde<V> serde)
+    {
+        this(serde, HashMap::new, null);
+    }
+
+    public OffHeapMap(Serde<V> serde, MemoryArena arena)
+    {
+        this(serde, HashMap::new, requireNonNull(arena, "arena is null"));
+    }
+
+    /**
+     * Values are written to and read from native memory by the serde directly, without a byte[] copy.
+     *
+     * @param arena values are allocated from this arena, if null every value is one allocateMemory
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapMap(
+            Serde<V> serde,
+            Supplier<Map<K, ?>> blockMapSupplier,
+            MemoryArena arena)
+    {
+        requireNonNull(serde, "serde is null");
         requireNonNull(blockMapSupplier, "blockMapClass is null");
+        this.encoder = value -> {
+            MemoryBlock block = MemoryBlock.allocate(arena, serde.sizeOf(value));
+            serde.write(value, null, block.getAddress());
+            return block;
+        };
+        this.decoder = block -> serde.read(null, block.getAddress(), block.getSize());
         this.blockMap = (Map<K, MemoryBlock>) blockMapSupplier.get();
+        this.arena = arena;
     }
 
     @Override
@@ -89,17 +155,15 @@ public class OffHeapMap<K, V>
         if (memoryAddress == null) {
             return null;
         }
-        byte[] bytes = memoryAddress.getByteValue();
-        return deserialization.apply(bytes);
+        return decoder.apply(memoryAddress);
     }
 
     @Override
     public V put(K key, V value)
     {
-        byte[] bytes = serialization.apply(value);
-        try (MemoryBlock old = blockMap.put(key, new MemoryBlock(bytes))) {
+        try (MemoryBlock old = blockMap.put(key, encoder.apply(value))) {
             if (old != null) {
-                return deserialization.apply(old.getByteValue());
+                return decoder.apply(old);
             }
         }
         return null;
@@ -110,7 +174,7 @@ public class OffHeapMap<K, V>
     {
         try (MemoryBlock memoryBlock = blockMap.remove(key)) {
             if (memoryBlock != null) {
-                return deserialization.apply(memoryBlock.getByteValue());
+                return decoder.apply(memoryBlock);
             }
             return null;
         }
@@ -128,51 +192,322 @@ public class OffHeapMap<K, V>
     @Override
     public void clear()
     {
-        for (K k : blockMap.keySet()) {
-            this.remove(k);
+        Iterator<MemoryBlock> iterator = blockMap.values().iterator();
+        while (iterator.hasNext()) {
+            MemoryBlock block = iterator.next();
+            iterator.remove();
+            block.close();
+        }
+    }
+
+    /**
+     * Writes the entries to a versioned and checksummed file, the serialized values are written
+     * straight from native memory
+     *
+     * @param path snapshot file, replaced atomically when the snapshot is complete
+     * @param keySerde serializes the keys
+     * @throws IOException write failed
+     */
+    public void snapshot(Path path, Serde<K> keySerde)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        requireNonNull(keySerde, "keySerde is null");
+        try (SnapshotWriter writer = new SnapshotWriter(path, SnapshotWriter.TYPE_MAP)) {
+            for (Entry<K, MemoryBlock> entry : blockMap.entrySet()) {
+                MemoryBlock block = entry.getValue();
+                writer.writeRecord(keySerde, entry.getKey());
+                writer.writeInt(block.getSize());
+                writer.writeMemory(null, block.getAddress(), block.getSize());
+            }
+            writer.finish(blockMap.size());
+        }
+    }
+
+    /**
+     * Replaces the entries by a snapshot, the values are read straight into native memory without
+     * deserializing. The map must use the same value serialization as the map that wrote the snapshot.
+     * If the snapshot is corrupted the map is left empty.
+     *
+     * @param path snapshot file written by {@link #snapshot(Path, Serde)}
+     * @param keySerde deserializes the keys
+     * @throws IOException read failed, or the file is truncated or corrupted
+     */
+    public void restore(Path path, Serde<K> keySerde)
+            throws IOException
+    {
+        requireNonNull(path, "path is null");
+        requireNonNull(keySerde, "keySerde is null");
+        this.clear();
+        try (SnapshotReader reader = new SnapshotReader(path, SnapshotWriter.TYPE_MAP)) {
+            for (long i = 0; i < reader.getCount(); i++) {
+                K key = reader.readRecord(keySerde);
+                int size = reader.readInt();
+                MemoryBlock block = MemoryBlock.allocate(arena, size);
+                try {
+                    reader.readMemory(null, block.getAddress(), size);
+                }
+                catch (IOException | RuntimeException e) {
+                    block.close();
+                    throw e;
+                }
+                MemoryBlock old = blockMap.put(key, block);
+                if (old != null) {
+                    old.close();
+                }
+            }
+            reader.finish();
+        }
+        catch (IOException | RuntimeException e) {
+            this.clear();
+            throw e;
         }
     }
 
+    /**
+     * Removing a key from this view also releases its value
+     */
     @Override
     public Set<K> keySet()
     {
-        return blockMap.keySet();
+        return new AbstractSet<K>()
+        {
+            @Override
+            public Iterator<K> iterator()
+            {
+                return new ViewIterator<>(blockMap.entrySet().iterator(), Entry::getKey);
+            }
+
+            @Override
+            public Spliterator<K> spliterator()
+            {
+                return blockMap.keySet().spliterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return blockMap.size();
+            }
+
+            @Override
+            public boolean contains(Object o)
+            {
+                return blockMap.containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o)
+            {
+                MemoryBlock block = blockMap.remove(o);
+                if (block != null) {
+                    block.close();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void clear()
+            {
+                OffHeapMap.this.clear();
+            }
+        };
     }
 
     /**
-     * Very expensive
+     * Lazy view, values are deserialized one at a time while iterating
      */
     @Override
     public Collection<V> values()
     {
-        return this.blockMap.values()
-                .stream()
-                .map(block -> deserialization.apply(block.getByteValue()))
-                .collect(Collectors.toList());
+        return new AbstractCollection<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                return new ViewIterator<>(blockMap.entrySet().iterator(), it -> decoder.apply(it.getValue()));
+            }
+
+            @Override
+            public Spliterator<V> spliterator()
+            {
+                return new MappingSpliterator<>(blockMap.values().spliterator(), decoder, Spliterator.DISTINCT);
+            }
+
+            @Override
+            public int size()
+            {
+                return blockMap.size();
+            }
+
+            @Override
+            public void clear()
+            {
+                OffHeapMap.this.clear();
+            }
+        };
     }
 
+    /**
+     * Lazy view, values are deserialized one at a time while iterating. The spliterator is sized
+     * and splits like the spliterator of the key map, so {@code entrySet().parallelStream()}
+     * deserializes in parallel.
+     */
     @Override
     public Set<Entry<K, V>> entrySet()
     {
-        return blockMap.entrySet().stream().map(it -> new Entry<K, V>()
+        return new AbstractSet<Entry<K, V>>()
         {
             @Override
-            public K getKey()
+            public Iterator<Entry<K, V>> iterator()
+            {
+                return new ViewIterator<>(blockMap.entrySet().iterator(), OffHeapMap.this::createEntry);
+            }
+
+            @Override
+            public Spliterator<Entry<K, V>> spliterator()
             {
-                return it.getKey();
+                return new MappingSpliterator<>(blockMap.entrySet().spliterator(), OffHeapMap.this::createEntry, 0);
             }
 
             @Override
-            public V getValue()
+            public int size()
             {
-                return deserialization.apply(it.getValue().getByteValue());
+                return blockMap.size();
             }
 
+            @Override
+            public boolean contains(Object o)
+            {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                Entry<?, ?> entry = (Entry<?, ?>) o;
+                MemoryBlock block = blockMap.get(entry.getKey());
+                return block != null && Objects.equals(decoder.apply(block), entry.getValue());
+            }
+
+            @Override
+            public boolean remove(Object o)
+            {
+                if (this.contains(o)) {
+                    OffHeapMap.this.remove(((Entry<?, ?>) o).getKey());
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void clear()
+            {
+                OffHeapMap.this.clear();
+            }
+        };
+    }
+
+    private Entry<K, V> createEntry(Entry<K, MemoryBlock> it)
+    {
+        return new SimpleEntry<K, V>(it.getKey(), decoder.apply(it.getValue()))
+        {
+            private static final long serialVersionUID = -1L;
+
             @Override
             public V setValue(V value)
             {
-                throw new UnsupportedOperationException("this method have't support!");
+                OffHeapMap.this.put(getKey(), value);
+                return super.setValue(value);
             }
-        }).collect(Collectors.toSet());
+        };
+    }
+
+    /**
+     * Iterator of the views, {@link #remove()} also releases the value
+     */
+    private static class ViewIterator<K, E>
+            implements Iterator<E>
+    {
+        private final Iterator<Entry<K, MemoryBlock>> iterator;
+        private final Function<Entry<K, MemoryBlock>, E> mapper;
+        private MemoryBlock last;
+
+        private ViewIterator(Iterator<Entry<K, MemoryBlock>> iterator, Function<Entry<K, MemoryBlock>, E> mapper)
+        {
+            this.iterator = iterator;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public E next()
+        {
+            Entry<K, MemoryBlock> entry = iterator.next();
+            this.last = entry.getValue();
+            return mapper.apply(entry);
+        }
+
+        @Override
+        public void remove()
+        {
+            iterator.remove();
+            last.close();
+        }
+    }
+
+    private static class MappingSpliterator<T, E>
+            implements Spliterator<E>
+    {
+        private final Spliterator<T> spliterator;
+        private final Function<T, E> mapper;
+        private final int clearCharacteristics;
+
+        private MappingSpliterator(Spliterator<T> spliterator, Function<T, E> mapper, int clearCharacteristics)
+        {
+            this.spliterator = spliterator;
+            this.mapper = mapper;
+            this.clearCharacteristics = clearCharacteristics | Spliterator.SORTED;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action)
+        {
+            return spliterator.tryAdvance(it -> action.accept(mapper.apply(it)));
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action)
+        {
+            spliterator.forEachRemaining(it -> action.accept(mapper.apply(it)));
+        }
+
+        @Override
+        public Spliterator<E> trySplit()
+        {
+            Spliterator<T> split = spliterator.trySplit();
+            return split == null ? null : new MappingSpliterator<>(split, mapper, clearCharacteristics);
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return spliterator.estimateSize();
+        }
+
+        @Override
+        public long getExactSizeIfKnown()
+        {
+            return spliterator.getExactSizeIfKnown();
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return spliterator.characteristics() & ~clearCharacteristics;
+        }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Bounded multi-producer single-consumer queue of byte records in one contiguous native region.
+ * <p>
+ * A record is [length int][type int][payload] aligned to 8 bytes. Producers claim space with a CAS on
+ * the tail sequence, copy the payload and then publish the record with an ordered write of its
+ * length, so the consumer never sees a partially written record. A record that does not fit before
+ * the end of the region is preceded by a padding record and starts again at index 0. The consumer
+ * drains a batch, zeroes the consumed bytes and advances the head once per batch.
+ * No object is allocated per record on either side.
+ */
+public final class OffHeapRingBuffer
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int HEADER_SIZE = 8;
+    private static final int ALIGNMENT = 8;
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_PADDING = 1;
+
+    private final MemoryPool pool;
+    private final int capacity;
+    private final int mask;
+    private final int maxRecordLength;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile long address;
+
+    @FunctionalInterface
+    public interface RecordHandler
+    {
+        /**
+         * @param address native address of the payload, only valid until this method returns
+         * @param length payload length
+         */
+        void onRecord(long address, int length);
+    }
+
+    public OffHeapRingBuffer(int capacity)
+    {
+        this(capacity, MemoryManager.getDefaultPool());
+    }
+
+    /**
+     * @param capacity buffer size in bytes, must be a power of two
+     */
+    public OffHeapRingBuffer(int capacity, MemoryPool pool)
+    {
+        checkArgument(capacity >= 64 && Integer.bitCount(capacity) == 1, "capacity must be a power of two and not less than 64");
+        this.pool = requireNonNull(pool, "pool is null");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxRecordLength = capacity >> 3;
+        this.address = pool.allocateMemory(capacity);
+        unsafe.setMemory(address, capacity, (byte) 0);
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    public int maxRecordLength()
+    {
+        return maxRecordLength;
+    }
+
+    /**
+     * @return bytes claimed by producers and not yet drained, including headers and padding
+     */
+    public int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty()
+    {
+        return tail.get() == head.get();
+    }
+
+    public boolean offer(byte[] record)
+    {
+        return offer(record, BYTE_ARRAY_OFFSET, record.length);
+    }
+
+    /**
+     * Thread-safe, may be called by many producers
+     *
+     * @param base array base, null for native memory
+     * @param offset array offset or native address
+     * @param length record length
+     * @return false if the buffer is full
+     */
+    public boolean offer(Object base, long offset, int length)
+    {
+        checkArgument(length >= 0 && length <= maxRecordLength, "record length %s exceeds max record length %s", length, maxRecordLength);
+        long buffer = checkOpen();
+        int recordLength = HEADER_SIZE + length;
+        int required = align(recordLength);
+        long claimed;
+        int padding;
+        do {
+            long headSequence = head.get();
+            claimed = tail.get();
+            int toEnd = capacity - (int) (claimed & mask);
+            padding = required > toEnd ? toEnd : 0;
+            if (claimed + padding + required - headSequence > capacity) {
+                return false;
+            }
+        }
+        while (!tail.compareAndSet(claimed, claimed + padding + required));
+
+        int index = (int) (claimed & mask);
+        if (padding > 0) {
+            unsafe.putInt(buffer + index + 4, TYPE_PADDING);
+            unsafe.putOrderedInt(null, buffer + index, padding);
+            index = 0;
+        }
+        unsafe.putInt(buffer + index + 4, TYPE_DATA);
+        UnsafeHelper.copyMemory(base, offset, null, buffer + index + HEADER_SIZE, length);
+        unsafe.putOrderedInt(null, buffer + index, recordLength);
+        return true;
+    }
+
+    public int drain(RecordHandler handler)
+    {
+        return drain(handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Consume published records in order, must only be called by one consumer thread.
+     * If the handler throws, the records before it are consumed and the failed record is
+     * delivered again by the next drain.
+     *
+     * @param handler record handler
+     * @param limit max number of records
+     * @return number of records consumed
+     */
+    public int drain(RecordHandler handler, int limit)
+    {
+        requireNonNull(handler, "handler is null");
+        long buffer = checkOpen();
+        long headSequence = head.get();
+        int headIndex = (int) (headSequence & mask);
+        int bytes = 0;
+        int count = 0;
+        try {
+            while (count < limit && bytes < capacity) {
+                int index = (headIndex + bytes) & mask;
+                int recordLength = unsafe.getIntVolatile(null, buffer + index);
+                if (recordLength <= 0) {
+                    break;
+                }
+                if (unsafe.getInt(buffer + index + 4) != TYPE_PADDING) {
+                    handler.onRecord(buffer + index + HEADER_SIZE, recordLength - HEADER_SIZE);
+                    count++;
+                }
+                //consumed only after the handler returned
+                bytes += align(recordLength);
+            }
+        }
+        finally {
+            if (bytes > 0) {
+                //zero the consumed bytes so that producers can publish by writing the length last
+                int toEnd = Math.min(bytes, capacity - headIndex);
+                unsafe.setMemory(buffer + headIndex, toEnd, (byte) 0);
+                unsafe.setMemory(buffer, bytes - toEnd, (byte) 0);
+                head.lazySet(headSequence + bytes);
+            }
+        }
+        return count;
+    }
+
+    private static int align(int length)
+    {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private long checkOpen()
+    {
+        long buffer = address;
+        checkState(buffer != 0, "ring buffer is closed");
+        return buffer;
+    }
+
+    /**
+     * Free the native region, producers and the consumer must be stopped first
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (address != 0) {
+            pool.freeMemory(address, capacity);
+            address = 0;
+        }
+    }
+}
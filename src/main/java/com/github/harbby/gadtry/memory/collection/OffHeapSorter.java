@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * External sorter for serialized records, modeled on Spark's UnsafeExternalSorter.
+ * <p>
+ * Inserted records are serialized into a {@link MemoryArena}, and a native pointer array keeps one
+ * (8-byte key prefix, record address) pair per record. Sorting is an LSD radix sort of the pairs
+ * on the prefix (byte positions equal in every prefix are skipped), records with equal prefixes are
+ * then ordered by the comparator. Prefixes compare as signed longs and must agree with the comparator:
+ * {@code prefix(a) < prefix(b)} implies {@code compare(a, b) < 0}. Like Spark's UnsafeInMemorySorter,
+ * the pointer array keeps its upper half free as the radix sort buffer, so sorting a run before a
+ * spill allocates no memory.
+ * <p>
+ * When the records and the pointer array outgrow {@code maxMemoryBytes} (or the pool budget), the run
+ * is sorted and written to a spill file as [prefix long][length int][bytes]. The sorted output is a
+ * k-way merge of all spill files. Not thread-safe, call {@link #close()} to free memory and delete
+ * the spill files.
+ */
+public class OffHeapSorter<E>
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+    private static final int MAX_ARENA_CHUNK_SIZE = 1024 * 1024;  //1M
+    private static final int IO_BUFFER_SIZE = 64 * 1024;  //64K
+
+    private final Serde<E> serde;
+    private final ToLongFunction<? super E> prefixComputer;
+    private final Comparator<? super E> comparator;
+    private final long maxMemoryBytes;
+    private final MemoryPool pool;
+    private final File spillDir;
+    private final int arenaChunkSize;
+
+    private final List<File> spillFiles = new ArrayList<>();
+    private final List<FileChannel> openChannels = new ArrayList<>();
+    private MemoryArena arena;
+    private LongArray pointers;
+    private long recordNumber = 0;
+    private boolean sorted = false;
+    private boolean closed = false;
+
+    public OffHeapSorter(Serde<E> serde, ToLongFunction<? super E> prefixComputer, Comparator<? super E> comparator, long maxMemoryBytes)
+    {
+        this(serde, prefixComputer, comparator, maxMemoryBytes, MemoryManager.getDefaultPool(), null);
+    }
+
+    /**
+     * @param prefixComputer 8-byte sort key prefix of a record
+     * @param comparator order of records with equal prefixes, may be null if the prefix is the full key
+     * @param maxMemoryBytes a sorted run is spilled when its records and pointers exceed this size
+     * @param spillDir directory of the spill files, if null the system temp directory is used
+     */
+    public OffHeapSorter(
+            Serde<E> serde,
+            ToLongFunction<? super E> prefixComputer,
+            Comparator<? super E> comparator,
+            long maxMemoryBytes,
+            MemoryPool pool,
+            File spillDir)
+    {
+        checkArgument(maxMemoryBytes > 0, "maxMemoryBytes must be positive");
+        this.serde = requireNonNull(serde, "serde is null");
+        this.prefixComputer = requireNonNull(prefixComputer, "prefixComputer is null");
+        this.comparator = comparator;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.pool = requireNonNull(pool, "pool is null");
+        this.spillDir = spillDir;
+        //chunks are small enough that a run holds many of them
+        this.arenaChunkSize = (int) Math.max(4096, Math.min(MAX_ARENA_CHUNK_SIZE, Long.highestOneBit(maxMemoryBytes >>> 3)));
+    }
+
+    /**
+     * Sort an OffHeapList into a new OffHeapList using the same serde
+     *
+     * @param list input list
+     * @param serde record serde, the output list stores records with it
+     * @param prefixComputer 8-byte sort key prefix of a record
+     * @param comparator order of records with equal prefixes
+     * @param maxMemoryBytes spill threshold
+     * @return new sorted OffHeapList
+     */
+    public static <E> OffHeapList<E> sort(
+            OffHeapList<E> list,
+            Serde<E> serde,
+            ToLongFunction<? super E> prefixComputer,
+            Comparator<? super E> comparator,
+            long maxMemoryBytes)
+    {
+        try (OffHeapSorter<E> sorter = new OffHeapSorter<>(serde, prefixComputer, comparator, maxMemoryBytes)) {
+            for (E record : list) {
+                sorter.insert(record);
+            }
+            return sorter.sortToOffHeapList();
+        }
+    }
+
+    public long getRecordNumber()
+    {
+        return recordNumber;
+    }
+
+    public int getSpillCount()
+    {
+        return spillFiles.size();
+    }
+
+    /**
+     * @return native bytes held by the current run, including the sort buffer
+     */
+    public long getMemoryUsage()
+    {
+        return (arena == null ? 0 : arena.getReservedBytes()) + (pointers == null ? 0 : pointers.capacity() * 8);
+    }
+
+    public void insert(E record)
+    {
+        checkState(!closed && !sorted, "sorter is closed or sorted");
+        long prefix = prefixComputer.applyAsLong(record);
+        int length = serde.sizeOf(record);
+        if (arena != null && getMemoryUsage() + length + 4 + 16 > maxMemoryBytes) {
+            spill();
+        }
+        long address;
+        while (true) {
+            try {
+                if (arena == null) {
+                    LongArray newPointers = new LongArray(1024, pool);
+                    this.arena = new MemoryArena(arenaChunkSize, pool);
+                    this.pointers = newPointers;
+                }
+                address = arena.allocate(4 + length);
+                //the second half is the radix sort buffer
+                pointers.ensureCapacity((pointers.size() + 2) << 1);
+                break;
+            }
+            catch (MemoryBudgetException e) {
+                if (pointers == null || pointers.isEmpty()) {
+                    throw e;
+                }
+                spill();
+            }
+        }
+        unsafe.putInt(address, length);
+        serde.write(record, null, address + 4);
+        pointers.add(prefix);
+        pointers.add(address);
+        recordNumber++;
+    }
+
+    /**
+     * Sort the current run in memory
+     */
+    private void sortRun()
+    {
+        long n = pointers.size() >>> 1;
+        if (n > 1) {
+            long base = pointers.getAddress();
+            radixSort(base, base + (n << 4), n);
+            if (comparator != null) {
+                sortTies(n);
+            }
+        }
+    }
+
+    /**
+     * LSD radix sort of (prefix, address) pairs by the signed prefix, 8 bits per pass
+     */
+    private static void radixSort(long pairs, long buffer, long n)
+    {
+        long[][] counts = new long[8][256];
+        long base = pairs;
+        for (long i = 0; i < n; i++) {
+            long key = unsafe.getLong(base + (i << 4)) ^ Long.MIN_VALUE;
+            for (int b = 0; b < 8; b++) {
+                counts[b][(int) (key >>> (b << 3)) & 0xFF]++;
+            }
+        }
+        long src = pairs;
+        long dst = buffer;
+        for (int b = 0; b < 8; b++) {
+            long[] count = counts[b];
+            if (count[(int) ((unsafe.getLong(base) ^ Long.MIN_VALUE) >>> (b << 3)) & 0xFF] == n) {
+                continue;  //every prefix has the same byte here
+            }
+            long[] offsets = new long[256];
+            for (int i = 1; i < 256; i++) {
+                offsets[i] = offsets[i - 1] + count[i - 1];
+            }
+            int shift = b << 3;
+            for (long i = 0; i < n; i++) {
+                long prefix = unsafe.getLong(src + (i << 4));
+                int bucket = (int) ((prefix ^ Long.MIN_VALUE) >>> shift) & 0xFF;
+                long to = dst + (offsets[bucket]++ << 4);
+                unsafe.putLong(to, prefix);
+                unsafe.putLong(to + 8, unsafe.getLong(src + (i << 4) + 8));
+            }
+            long tmp = src;
+            src = dst;
+            dst = tmp;
+            base = src;
+        }
+        if (src != pairs) {
+            UnsafeHelper.copyMemory(null, src, null, pairs, n << 4);
+        }
+    }
+
+    /**
+     * Order every range of equal prefixes with the comparator
+     */
+    private void sortTies(long n)
+    {
+        long base = pointers.getAddress();
+        long start = 0;
+        while (start < n) {
+            long prefix = unsafe.getLong(base + (start << 4));
+            long end = start + 1;
+            while (end < n && unsafe.getLong(base + (end << 4)) == prefix) {
+                end++;
+            }
+            if (end - start > 1) {
+                checkState(end - start <= Integer.MAX_VALUE, "too many records with the same prefix");
+                List<Tie<E>> ties = new ArrayList<>((int) (end - start));
+                for (long i = start; i < end; i++) {
+                    long address = unsafe.getLong(base + (i << 4) + 8);
+                    ties.add(new Tie<>(readRecord(address), address));
+                }
+                ties.sort((a, b) -> comparator.compare(a.record, b.record));
+                for (long i = start; i < end; i++) {
+                    unsafe.putLong(base + (i << 4) + 8, ties.get((int) (i - start)).address);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private static final class Tie<E>
+    {
+        private final E record;
+        private final long address;
+
+        private Tie(E record, long address)
+        {
+            this.record = record;
+            this.address = address;
+        }
+    }
+
+    private E readRecord(long address)
+    {
+        return serde.read(null, address + 4, unsafe.getInt(address));
+    }
+
+    private void freeRun()
+    {
+        if (arena != null) {
+            arena.close();
+            pointers.close();
+            arena = null;
+            pointers = null;
+        }
+    }
+
+    /**
+     * Sort the current run and write it to a new spill file
+     */
+    private void spill()
+    {
+        if (pointers == null || pointers.isEmpty()) {
+            return;
+        }
+        sortRun();
+        try {
+            File file = spillDir == null ? File.createTempFile("gadtry-sort", ".spill") : File.createTempFile("gadtry-sort", ".spill", spillDir);
+            spillFiles.add(file);
+            ByteBuffer buffer = UnsafeHelper.allocateDirectBuffer(IO_BUFFER_SIZE);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                long base = pointers.getAddress();
+                for (long i = 0, n = pointers.size() >>> 1; i < n; i++) {
+                    long address = unsafe.getLong(base + (i << 4) + 8);
+                    int length = unsafe.getInt(address);
+                    if (buffer.remaining() < 12) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putLong(unsafe.getLong(base + (i << 4))).putInt(length);
+                    if (buffer.remaining() < length) {
+                        flush(channel, buffer);
+                    }
+                    if (length > buffer.capacity()) {
+                        writeFully(channel, UnsafeHelper.wrapDirectBuffer(address + 4, length, null));
+                    }
+                    else {
+                        UnsafeHelper.copyMemory(null, address + 4, null, UnsafeHelper.getDirectBufferAddress(buffer) + buffer.position(), length);
+                        buffer.position(buffer.position() + length);
+                    }
+                }
+                flush(channel, buffer);
+            }
+            finally {
+                UnsafeHelper.freeDirectBuffer(buffer);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        freeRun();
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Sort all inserted records, can only be called once
+     *
+     * @return records in order, deserialized one at a time
+     */
+    public Iterator<E> sortedIterator()
+    {
+        checkState(!closed && !sorted, "sorter is closed or sorted");
+        this.sorted = true;
+        if (spillFiles.isEmpty()) {
+            if (pointers == null) {
+                return Collections.emptyIterator();
+            }
+            sortRun();
+            return new Iterator<E>()
+            {
+                private long index = 0;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return pointers != null && index < pointers.size() >>> 1;
+                }
+
+                @Override
+                public E next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return readRecord(unsafe.getLong(pointers.getAddress() + (index++ << 4) + 8));
+                }
+            };
+        }
+        spill();
+        return new MergeIterator();
+    }
+
+    /**
+     * @return new OffHeapList with the sorted records
+     */
+    public OffHeapList<E> sortToOffHeapList()
+    {
+        OffHeapList<E> list = new OffHeapList<>(serde);
+        Iterator<E> iterator = sortedIterator();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    private final class SpillReader
+    {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        private long prefix;
+        private E record;
+
+        private SpillReader(File file)
+                throws IOException
+        {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            openChannels.add(channel);
+            buffer.flip();
+        }
+
+        private void fill(int required)
+                throws IOException
+        {
+            if (buffer.remaining() >= required) {
+                return;
+            }
+            if (buffer.capacity() < required) {
+                ByteBuffer larger = ByteBuffer.allocate(required);
+                larger.put(buffer);
+                buffer = larger;
+            }
+            else {
+                buffer.compact();
+            }
+            while (buffer.position() < required) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("spill file is truncated");
+                }
+            }
+            buffer.flip();
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        private boolean advance()
+                throws IOException
+        {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    channel.close();
+                    return false;
+                }
+                buffer.flip();
+            }
+            fill(12);
+            this.prefix = buffer.getLong();
+            int length = buffer.getInt();
+            fill(length);
+            this.record = serde.read(buffer, length);
+            return true;
+        }
+
+        private int compareTo(SpillReader other)
+        {
+            int result = Long.compare(prefix, other.prefix);
+            if (result == 0 && comparator != null) {
+                return comparator.compare(record, other.record);
+            }
+            return result;
+        }
+    }
+
+    private final class MergeIterator
+            implements Iterator<E>
+    {
+        private final PriorityQueue<SpillReader> queue = new PriorityQueue<>(Math.max(1, spillFiles.size()), SpillReader::compareTo);
+
+        private MergeIterator()
+        {
+            try {
+                for (File file : spillFiles) {
+                    SpillReader reader = new SpillReader(file);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public E next()
+        {
+            SpillReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            E record = reader.record;
+            try {
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return record;
+        }
+    }
+
+    /**
+     * Free native memory and delete spill files
+     */
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        this.closed = true;
+        freeRun();
+        for (FileChannel channel : openChannels) {
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {
+                //the file is deleted below
+            }
+        }
+        openChannels.clear();
+        for (File file : spillFiles) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        spillFiles.clear();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static com.github.harbby.gadtry.memory.collection.SnapshotWriter.BUFFER_SIZE;
+import static com.github.harbby.gadtry.memory.collection.SnapshotWriter.HEADER_SIZE;
+import static com.github.harbby.gadtry.memory.collection.SnapshotWriter.IO_CHUNK_SIZE;
+
+/**
+ * Reads a snapshot written by {@link SnapshotWriter}.
+ * <p>
+ * The header is validated when the file is opened. Big native regions are read straight into native
+ * memory through direct ByteBuffer wrappers. The checksum is computed while reading and compared by
+ * {@link #finish()}, the caller must drop what it has restored if any method throws.
+ */
+final class SnapshotReader
+        implements AutoCloseable
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer buffer;
+    private final long bufferAddress;
+    private final long count;
+    private final long expectedCrc;
+    private long unread;
+
+    SnapshotReader(Path path, int type)
+            throws IOException
+    {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("snapshot " + path + " is truncated");
+            }
+            this.readChannel(header);
+            header.flip();
+            if (header.getInt() != SnapshotWriter.MAGIC) {
+                throw new IOException(path + " is not a snapshot");
+            }
+            int version = header.getInt();
+            if (version != SnapshotWriter.VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            int fileType = header.getInt();
+            if (fileType != type) {
+                throw new IOException("snapshot type " + fileType + " does not match " + type);
+            }
+            if (header.getInt() != SnapshotWriter.byteOrder()) {
+                throw new IOException("snapshot was written with another byte order");
+            }
+            this.count = header.getLong();
+            this.unread = header.getLong();
+            this.expectedCrc = header.getLong();
+            if (channel.size() != HEADER_SIZE + unread) {
+                throw new IOException("snapshot " + path + " is truncated");
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.buffer = UnsafeHelper.allocateDirectBuffer(BUFFER_SIZE);
+        this.bufferAddress = UnsafeHelper.getDirectBufferAddress(buffer);
+        buffer.limit(0);
+    }
+
+    /**
+     * @return number of entries of the snapshot
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Makes at least {@code length} bytes available in the staging buffer
+     *
+     * @return address of the bytes, they are consumed
+     */
+    private long take(int length)
+            throws IOException
+    {
+        if (buffer.remaining() < length) {
+            buffer.compact();
+            int filled = buffer.position();
+            int target = (int) Math.min(buffer.capacity(), filled + unread);
+            if (target < length) {
+                throw new EOFException("snapshot " + path + " ends unexpectedly");
+            }
+            buffer.limit(target);
+            this.readFully(buffer);
+            buffer.flip();
+        }
+        int position = buffer.position();
+        buffer.position(position + length);
+        return bufferAddress + position;
+    }
+
+    int readInt()
+            throws IOException
+    {
+        return unsafe.getInt(take(4));
+    }
+
+    long readLong()
+            throws IOException
+    {
+        return unsafe.getLong(take(8));
+    }
+
+    /**
+     * @param base heap array or null for native memory
+     * @param offset array offset or native address
+     * @param length bytes to read
+     */
+    void readMemory(Object base, long offset, long length)
+            throws IOException
+    {
+        int staged = (int) Math.min(length, buffer.remaining());
+        unsafe.copyMemory(null, take(staged), base, offset, staged);
+        offset += staged;
+        length -= staged;
+        if (base == null && length >= BUFFER_SIZE) {
+            if (length > unread) {
+                throw new EOFException("snapshot " + path + " ends unexpectedly");
+            }
+            for (long read = 0; read < length; read += IO_CHUNK_SIZE) {
+                this.readFully(UnsafeHelper.wrapDirectBuffer(offset + read, (int) Math.min(IO_CHUNK_SIZE, length - read), null));
+            }
+            return;
+        }
+        while (length > 0) {
+            int size = (int) Math.min(length, BUFFER_SIZE);
+            unsafe.copyMemory(null, take(size), base, offset, size);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Reads a record written by {@link SnapshotWriter#writeRecord(Serde, Object)}
+     */
+    <T> T readRecord(Serde<T> serde)
+            throws IOException
+    {
+        int size = this.readInt();
+        if (size < 0 || size > buffer.remaining() + unread) {
+            throw new IOException("snapshot " + path + " has a bad record size " + size);
+        }
+        if (size <= BUFFER_SIZE) {
+            return serde.read(null, take(size), size);
+        }
+        byte[] bytes = new byte[size];
+        this.readMemory(bytes, UnsafeHelper.BYTE_ARRAY_OFFSET, size);
+        return serde.deserialize(bytes);
+    }
+
+    private void readFully(ByteBuffer target)
+            throws IOException
+    {
+        ByteBuffer checked = target.duplicate();
+        this.readChannel(target);
+        checked.limit(target.position());
+        unread -= checked.remaining();
+        crc.update(checked);
+    }
+
+    private void readChannel(ByteBuffer target)
+            throws IOException
+    {
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                throw new EOFException("snapshot " + path + " ends unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Checks that the whole payload was consumed and its checksum
+     */
+    void finish()
+            throws IOException
+    {
+        if (unread != 0 || buffer.hasRemaining()) {
+            throw new IOException("snapshot " + path + " has unexpected trailing data");
+        }
+        if (crc.getValue() != expectedCrc) {
+            throw new IOException("snapshot " + path + " checksum mismatch");
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        UnsafeHelper.freeDirectBuffer(buffer);
+        channel.close();
+    }
+}
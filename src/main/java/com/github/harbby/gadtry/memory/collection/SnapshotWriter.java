@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * Writes the snapshot file of an off-heap collection.
+ * <p>
+ * File layout: a 40 bytes header [magic int][version int][type int][byte order int][count long]
+ * [payload length long][crc32 of payload long], followed by the payload. Payload numbers are in native
+ * byte order. Small records are gathered in a direct staging buffer, big native regions are written
+ * straight from native memory through direct ByteBuffer wrappers, nothing is staged on heap.
+ * <p>
+ * The file is written next to the target as {@code <name>.tmp} and atomically renamed by
+ * {@link #finish(long)}, so an interrupted snapshot never replaces a complete one.
+ */
+final class SnapshotWriter
+        implements AutoCloseable
+{
+    static final int MAGIC = 0x47445331;  //GDS1
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int IO_CHUNK_SIZE = 1 << 30;
+
+    static final int TYPE_LIST = 1;
+    static final int TYPE_MAP = 2;
+    static final int TYPE_LONG_ARRAY = 3;
+    static final int TYPE_INT_ARRAY = 4;
+    static final int TYPE_DOUBLE_ARRAY = 5;
+    static final int TYPE_LONG_LONG_MAP = 6;
+    static final int TYPE_LONG_INT_MAP = 7;
+    static final int TYPE_INT_INT_MAP = 8;
+
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    private final Path path;
+    private final Path tmpPath;
+    private final int type;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer buffer;
+    private final long bufferAddress;
+    private long payloadLength = 0;
+    private boolean finished = false;
+
+    SnapshotWriter(Path path, int type)
+            throws IOException
+    {
+        this.path = path;
+        this.tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.type = type;
+        this.channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = UnsafeHelper.allocateDirectBuffer(BUFFER_SIZE);
+        this.bufferAddress = UnsafeHelper.getDirectBufferAddress(buffer);
+        //the header is written last
+        channel.position(HEADER_SIZE);
+    }
+
+    static int byteOrder()
+    {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0;
+    }
+
+    private long reserve(int length)
+            throws IOException
+    {
+        if (buffer.remaining() < length) {
+            this.flush();
+        }
+        int position = buffer.position();
+        buffer.position(position + length);
+        return bufferAddress + position;
+    }
+
+    void writeInt(int value)
+            throws IOException
+    {
+        unsafe.putInt(reserve(4), value);
+    }
+
+    void writeLong(long value)
+            throws IOException
+    {
+        unsafe.putLong(reserve(8), value);
+    }
+
+    /**
+     * @param base heap array or null for native memory
+     * @param offset array offset or native address
+     * @param length bytes to write
+     */
+    void writeMemory(Object base, long offset, long length)
+            throws IOException
+    {
+        if (base == null && length >= BUFFER_SIZE) {
+            this.flush();
+            for (long written = 0; written < length; written += IO_CHUNK_SIZE) {
+                this.writeFully(UnsafeHelper.wrapDirectBuffer(offset + written, (int) Math.min(IO_CHUNK_SIZE, length - written), null));
+            }
+            return;
+        }
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                this.flush();
+            }
+            int size = (int) Math.min(length, buffer.remaining());
+            unsafe.copyMemory(base, offset, null, reserve(size), size);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Writes [length int][serialized value], small values are serialized into the staging buffer directly
+     */
+    <T> void writeRecord(Serde<T> serde, T value)
+            throws IOException
+    {
+        int size = serde.sizeOf(value);
+        this.writeInt(size);
+        if (size <= BUFFER_SIZE) {
+            serde.write(value, null, reserve(size));
+        }
+        else {
+            this.writeMemory(serde.serialize(value), UnsafeHelper.BYTE_ARRAY_OFFSET, size);
+        }
+    }
+
+    private void flush()
+            throws IOException
+    {
+        buffer.flip();
+        this.writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data)
+            throws IOException
+    {
+        crc.update(data.duplicate());
+        payloadLength += data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Writes the header and moves the file to its target path
+     *
+     * @param count number of entries, checked by the reader
+     */
+    void finish(long count)
+            throws IOException
+    {
+        checkState(!finished, "snapshot is finished");
+        this.flush();
+        channel.force(false);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(type)
+                .putInt(byteOrder())
+                .putLong(count)
+                .putLong(payloadLength)
+                .putLong(crc.getValue());
+        header.flip();
+        for (long position = 0; header.hasRemaining(); ) {
+            position += channel.write(header, position);
+        }
+        channel.force(true);
+        channel.close();
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+    }
+
+    /**
+     * Releases the staging buffer, an unfinished snapshot is deleted
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        UnsafeHelper.freeDirectBuffer(buffer);
+        if (!finished) {
+            channel.close();
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+}
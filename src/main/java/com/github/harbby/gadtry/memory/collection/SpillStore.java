@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Spillable;
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Values addressed by int id that are kept in native memory while hot and spilled to local segment
+ * files when the {@link MemoryPool} budget is exceeded.
+ * <p>
+ * The heap index per value is (native address, length, disk location), the disk location packs
+ * (segment, offset). Spilled values are appended sequentially to the active segment file, a segment
+ * is deleted once none of its values are alive. Residency follows the CLOCK policy: an access sets
+ * the reference bit, the clock hand clears it once before the value can be evicted.
+ * <p>
+ * The store is registered to the pool, so any thread that runs out of budget may spill it. All
+ * accessors hold the store lock, except while they allocate from the pool.
+ */
+final class SpillStore
+        implements Spillable, AutoCloseable
+{
+    private static final int OFFSET_BITS = 40;
+    private static final long NO_DISK = -1;
+
+    private final MemoryPool pool;
+    private final Path spillDir;
+    private final long segmentSize;
+    //the pool may call spill() from any allocating thread
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final List<Path> segmentFiles = new ArrayList<>();
+    private long[] segmentLiveBytes = new long[4];
+    private long activeSegmentPosition;
+
+    private long[] addresses = new long[16];
+    private int[] lengths = new int[16];
+    private long[] diskLocations = new long[16];
+    private final BitSet referenced = new BitSet();
+    private int[] freeIds = new int[16];
+    private int freeIdNumber = 0;
+    private int idNumber = 0;
+
+    private int clockHand = 0;
+    private int pinned = -1;
+    private long residentBytes = 0;
+    private long spilledBytes = 0;
+    private long spillCount = 0;
+    private boolean closed = false;
+
+    SpillStore(MemoryPool pool, File spillDir, long segmentSize)
+    {
+        checkArgument(segmentSize > 0 && segmentSize < (1L << OFFSET_BITS), "segmentSize must be between 0 and 2^40");
+        this.pool = requireNonNull(pool, "pool is null");
+        this.segmentSize = segmentSize;
+        try {
+            this.spillDir = spillDir == null ? Files.createTempDirectory("gadtry-spill") : Files.createDirectories(spillDir.toPath());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pool.addSpillable(this);
+    }
+
+    long getResidentBytes()
+    {
+        lock.lock();
+        try {
+            return residentBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getSpilledBytes()
+    {
+        lock.lock();
+        try {
+            return spilledBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getSpillCount()
+    {
+        lock.lock();
+        try {
+            return spillCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int getSegmentNumber()
+    {
+        lock.lock();
+        try {
+            return (int) segments.stream().filter(channel -> channel != null).count();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isResident(int id)
+    {
+        lock.lock();
+        try {
+            return addresses[id] != 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int add(byte[] value)
+    {
+        lock.lock();
+        try {
+            checkState(!closed, "store is closed");
+            long address = allocate(value);
+            int id;
+            if (freeIdNumber > 0) {
+                id = freeIds[--freeIdNumber];
+            }
+            else {
+                if (idNumber == addresses.length) {
+                    int newLength = idNumber << 1;
+                    addresses = Arrays.copyOf(addresses, newLength);
+                    lengths = Arrays.copyOf(lengths, newLength);
+                    diskLocations = Arrays.copyOf(diskLocations, newLength);
+                }
+                id = idNumber++;
+            }
+            addresses[id] = address;
+            lengths[id] = value.length;
+            diskLocations[id] = NO_DISK;
+            referenced.set(id);
+            residentBytes += value.length;
+            return id;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    byte[] get(int id)
+    {
+        lock.lock();
+        try {
+            checkState(!closed, "store is closed");
+            if (addresses[id] == 0) {
+                pageIn(id);
+            }
+            referenced.set(id);
+            byte[] bytes = new byte[lengths[id]];
+            UnsafeHelper.copyMemory(null, addresses[id], bytes, BYTE_ARRAY_OFFSET, bytes.length);
+            return bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void set(int id, byte[] value)
+    {
+        lock.lock();
+        try {
+            checkState(!closed, "store is closed");
+            pinned = id;
+            long address;
+            try {
+                address = allocate(value);
+            }
+            finally {
+                pinned = -1;
+            }
+            release(id);
+            addresses[id] = address;
+            lengths[id] = value.length;
+            referenced.set(id);
+            residentBytes += value.length;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(int id)
+    {
+        lock.lock();
+        try {
+            release(id);
+            if (freeIdNumber == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIdNumber << 1);
+            }
+            freeIds[freeIdNumber++] = id;
+            referenced.clear(id);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the resident copy and the disk copy of the id
+     */
+    private void release(int id)
+    {
+        if (addresses[id] != 0) {
+            pool.freeMemory(addresses[id], Math.max(1, lengths[id]));
+            addresses[id] = 0;
+            residentBytes -= lengths[id];
+        }
+        if (diskLocations[id] != NO_DISK) {
+            releaseDisk(diskLocations[id], lengths[id]);
+            diskLocations[id] = NO_DISK;
+        }
+    }
+
+    private long allocate(byte[] value)
+    {
+        long size = Math.max(1, value.length);
+        long address;
+        while (true) {
+            try {
+                address = allocateUnlocked(size);
+                break;
+            }
+            catch (MemoryBudgetException e) {
+                if (spill(size) == 0) {
+                    throw e;
+                }
+            }
+        }
+        UnsafeHelper.copyMemory(value, BYTE_ARRAY_OFFSET, null, address, value.length);
+        return address;
+    }
+
+    /**
+     * The pool may spill other stores meanwhile, no thread waits for a store lock while holding another one
+     */
+    private long allocateUnlocked(long size)
+    {
+        lock.unlock();
+        try {
+            return pool.allocateMemory(size);
+        }
+        finally {
+            lock.lock();
+        }
+    }
+
+    private void pageIn(int id)
+    {
+        int length = lengths[id];
+        pinned = id;
+        long address;
+        try {
+            long size = Math.max(1, length);
+            while (true) {
+                try {
+                    address = allocateUnlocked(size);
+                    break;
+                }
+                catch (MemoryBudgetException e) {
+                    if (spill(size) == 0) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        finally {
+            pinned = -1;
+        }
+        long location = diskLocations[id];
+        FileChannel channel = segments.get((int) (location >>> OFFSET_BITS));
+        ByteBuffer buffer = UnsafeHelper.wrapDirectBuffer(address, length, null);
+        long position = location & ((1L << OFFSET_BITS) - 1);
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                checkState(n >= 0, "unexpected end of spill segment");
+            }
+        }
+        catch (IOException e) {
+            pool.freeMemory(address, Math.max(1, length));
+            throw new UncheckedIOException(e);
+        }
+        addresses[id] = address;
+        residentBytes += length;
+    }
+
+    /**
+     * CLOCK eviction of resident values, a value keeps its disk copy after page in so evicting it again
+     * only frees the native memory.
+     */
+    @Override
+    public long spill(long requiredBytes)
+    {
+        lock.lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            long released = 0;
+            for (int step = 0; step < idNumber * 2 && released < requiredBytes; step++) {
+                int id = clockHand;
+                clockHand = clockHand + 1 < idNumber ? clockHand + 1 : 0;
+                if (addresses[id] == 0 || id == pinned) {
+                    continue;
+                }
+                if (referenced.get(id)) {
+                    referenced.clear(id);
+                    continue;
+                }
+                if (diskLocations[id] == NO_DISK) {
+                    diskLocations[id] = writeDisk(addresses[id], lengths[id]);
+                }
+                pool.freeMemory(addresses[id], Math.max(1, lengths[id]));
+                addresses[id] = 0;
+                residentBytes -= lengths[id];
+                released += Math.max(1, lengths[id]);
+                spillCount++;
+            }
+            return released;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private long writeDisk(long address, int length)
+    {
+        try {
+            int segment = segments.size() - 1;
+            if (segment < 0 || activeSegmentPosition + length > segmentSize && activeSegmentPosition > 0) {
+                segment = newSegment();
+            }
+            FileChannel channel = segments.get(segment);
+            ByteBuffer buffer = UnsafeHelper.wrapDirectBuffer(address, length, null);
+            long position = activeSegmentPosition;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+            activeSegmentPosition += length;
+            segmentLiveBytes[segment] += length;
+            spilledBytes += length;
+            return ((long) segment << OFFSET_BITS) | position;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int newSegment()
+            throws IOException
+    {
+        int segment = segments.size();
+        Path file = spillDir.resolve("segment-" + segment + ".spill");
+        segments.add(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segmentFiles.add(file);
+        if (segment == segmentLiveBytes.length) {
+            segmentLiveBytes = Arrays.copyOf(segmentLiveBytes, segment << 1);
+        }
+        activeSegmentPosition = 0;
+        return segment;
+    }
+
+    private void releaseDisk(long location, int length)
+    {
+        int segment = (int) (location >>> OFFSET_BITS);
+        segmentLiveBytes[segment] -= length;
+        spilledBytes -= length;
+        if (segmentLiveBytes[segment] == 0 && segment != segments.size() - 1) {
+            closeSegment(segment);
+        }
+    }
+
+    private void closeSegment(int segment)
+    {
+        FileChannel channel = segments.get(segment);
+        if (channel == null) {
+            return;
+        }
+        segments.set(segment, null);
+        try {
+            channel.close();
+            Files.deleteIfExists(segmentFiles.get(segment));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void clear()
+    {
+        lock.lock();
+        try {
+            for (int id = 0; id < idNumber; id++) {
+                if (addresses[id] != 0) {
+                    pool.freeMemory(addresses[id], Math.max(1, lengths[id]));
+                    addresses[id] = 0;
+                }
+            }
+            for (int segment = 0; segment < segments.size(); segment++) {
+                closeSegment(segment);
+            }
+            segments.clear();
+            segmentFiles.clear();
+            Arrays.fill(segmentLiveBytes, 0);
+            referenced.clear();
+            idNumber = 0;
+            freeIdNumber = 0;
+            clockHand = 0;
+            residentBytes = 0;
+            spilledBytes = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free all native memory and delete the spill files
+     */
+    @Override
+    public void close()
+    {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            pool.removeSpillable(this);
+            this.clear();
+            this.closed = true;
+            try {
+                Files.deleteIfExists(spillDir);
+            }
+            catch (IOException ignored) {
+                //the spill dir is not empty or is shared with others
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * OffHeapList that spills cold values to local segment files when the {@link MemoryPool} budget is
+ * exceeded, spilled values are paged back on access.
+ * <p>
+ * The pool can be of any policy: the list spills itself when an allocation fails, and with
+ * {@link MemoryPool.Policy#SPILL} other consumers of the pool can ask it to spill as well.
+ * This class is not thread-safe, but other consumers of the pool may spill it from any thread. Call
+ * {@link #close()} to free the native memory and delete spill files.
+ */
+public class SpillableOffHeapList<E>
+        extends AbstractList<E>
+        implements AutoCloseable
+{
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;  //64M
+
+    private final Function<E, byte[]> serialization;
+    private final Function<byte[], E> deserialization;
+    private final SpillStore store;
+    private int[] ids = new int[16];
+    private int size = 0;
+
+    public SpillableOffHeapList(
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization,
+            MemoryPool pool)
+    {
+        this(serialization, deserialization, pool, null, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param spillDir directory of the segment files, if null a temp directory is created
+     * @param segmentSize segment files roll over at this size
+     */
+    public SpillableOffHeapList(
+            Function<E, byte[]> serialization,
+            Function<byte[], E> deserialization,
+            MemoryPool pool,
+            File spillDir,
+            long segmentSize)
+    {
+        this.serialization = requireNonNull(serialization, "serialization is null");
+        this.deserialization = requireNonNull(deserialization, "deserialization is null");
+        this.store = new SpillStore(pool, spillDir, segmentSize);
+    }
+
+    @Override
+    public E get(int index)
+    {
+        checkIndex(index, size);
+        return deserialization.apply(store.get(ids[index]));
+    }
+
+    @Override
+    public void add(int index, E element)
+    {
+        checkIndex(index, size + 1);
+        int id = store.add(serialization.apply(element));
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size << 1);
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public E set(int index, E element)
+    {
+        checkIndex(index, size);
+        byte[] value = serialization.apply(element);
+        E old = deserialization.apply(store.get(ids[index]));
+        store.set(ids[index], value);
+        return old;
+    }
+
+    @Override
+    public E remove(int index)
+    {
+        checkIndex(index, size);
+        int id = ids[index];
+        E old = deserialization.apply(store.get(id));
+        store.remove(id);
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        store.clear();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return bytes of values kept in native memory
+     */
+    public long getResidentBytes()
+    {
+        return store.getResidentBytes();
+    }
+
+    /**
+     * @return bytes of live values in the spill files
+     */
+    public long getSpilledBytes()
+    {
+        return store.getSpilledBytes();
+    }
+
+    /**
+     * @return number of values evicted from native memory so far
+     */
+    public long getSpillCount()
+    {
+        return store.getSpillCount();
+    }
+
+    @Override
+    public void close()
+    {
+        store.close();
+        size = 0;
+    }
+
+    private void checkIndex(int index, int bound)
+    {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryPool;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * OffHeapMap that spills cold values to local segment files when the {@link MemoryPool} budget is
+ * exceeded, spilled values are paged back on access. Keys stay on heap.
+ * <p>
+ * This class is not thread-safe, but other consumers of the pool may spill it from any thread. Call
+ * {@link #close()} to free the native memory and delete spill files.
+ *
+ * @see SpillableOffHeapList
+ */
+public class SpillableOffHeapMap<K, V>
+        extends AbstractMap<K, V>
+        implements AutoCloseable
+{
+    private final Function<V, byte[]> serialization;
+    private final Function<byte[], V> deserialization;
+    private final Map<K, Integer> index = new HashMap<>();
+    private final SpillStore store;
+
+    public SpillableOffHeapMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            MemoryPool pool)
+    {
+        this(serialization, deserialization, pool, null, SpillableOffHeapList.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param spillDir directory of the segment files, if null a temp directory is created
+     * @param segmentSize segment files roll over at this size
+     */
+    public SpillableOffHeapMap(
+            Function<V, byte[]> serialization,
+            Function<byte[], V> deserialization,
+            MemoryPool pool,
+            File spillDir,
+            long segmentSize)
+    {
+        this.serialization = requireNonNull(serialization, "serialization is null");
+        this.deserialization = requireNonNull(deserialization, "deserialization is null");
+        this.store = new SpillStore(pool, spillDir, segmentSize);
+    }
+
+    @Override
+    public int size()
+    {
+        return index.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        Integer id = index.get(key);
+        if (id == null) {
+            return null;
+        }
+        return deserialization.apply(store.get(id));
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        byte[] bytes = serialization.apply(value);
+        Integer id = index.get(key);
+        if (id == null) {
+            index.put(key, store.add(bytes));
+            return null;
+        }
+        V old = deserialization.apply(store.get(id));
+        store.set(id, bytes);
+        return old;
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        Integer id = index.remove(key);
+        if (id == null) {
+            return null;
+        }
+        V old = deserialization.apply(store.get(id));
+        store.remove(id);
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        store.clear();
+        index.clear();
+    }
+
+    /**
+     * Values are deserialized (and paged in) lazily while iterating
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Entry<K, V>> iterator()
+            {
+                Iterator<Entry<K, Integer>> iterator = index.entrySet().iterator();
+                return new Iterator<Entry<K, V>>()
+                {
+                    private Entry<K, Integer> last;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next()
+                    {
+                        this.last = iterator.next();
+                        return new SimpleImmutableEntry<>(last.getKey(), deserialization.apply(store.get(last.getValue())));
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        iterator.remove();
+                        store.remove(last.getValue());
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return index.size();
+            }
+        };
+    }
+
+    public long getResidentBytes()
+    {
+        return store.getResidentBytes();
+    }
+
+    public long getSpilledBytes()
+    {
+        return store.getSpilledBytes();
+    }
+
+    public long getSpillCount()
+    {
+        return store.getSpillCount();
+    }
+
+    @Override
+    public void close()
+    {
+        store.close();
+        index.clear();
+    }
+}
@@ -44,15 +44,18 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class BlogCatalogDataset
 {
     private static final Graph<Void, Void> graph;
+    private static final ImmutableGraph<Void, Void> csrGraph;
 
     static {
         File dataDir = new File(BlogCatalogDataset.class.getClassLoader().getResource("blogCatalog-dataset/data").getFile());
         Graph.GraphBuilder<Void, Void> graphBuilder = ImmutableGraph.builder();
+        ImmutableGraph.ImmutableGraphBuilder<Void, Void> csrBuilder = ImmutableGraph.csrBuilder();
 
         try (CloseableIterator<String> iterator = new FileCloseableIterator(new File(dataDir, "nodes.csv"), 4096)) {
             while (iterator.hasNext()) {
                 String line = iterator.next();
                 graphBuilder.addNode(line);
+                csrBuilder.addNode(line);
             }
         }
         catch (IOException e) {
@@ -64,6 +67,7 @@ public class BlogCatalogDataset
                 String line = iterator.next();
                 String[] split = line.split(",");
                 graphBuilder.addEdge(split[0], split[1]);
+                csrBuilder.addEdge(split[0], split[1]);
             }
         }
         catch (IOException e) {
@@ -71,6 +75,17 @@ public class BlogCatalogDataset
         }
 
         graph = graphBuilder.create();
+        csrGraph = csrBuilder.create();
+    }
+
+    @Test
+    public void csrGraphSearchBegin1GiveSizeMax2ReturnRoutes12548()
+    {
+        List<Route<Void, Void>> routeList = csrGraph.searchRuleRoute("1", route -> {
+            boolean next = route.size() <= 2 && !route.findDeadLoop();
+            return next;
+        }).stream().filter(route -> route.size() == 2).collect(Collectors.toList());
+        Assert.assertEquals(12548, routeList.size());
     }
 
     @Test
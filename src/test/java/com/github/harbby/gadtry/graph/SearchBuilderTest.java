@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class SearchBuilderTest
+{
+    private final Graph<Void, Void> graph = createRandomGraph(200, 1000);
+
+    private static Graph<Void, Void> createRandomGraph(int nodes, int edges)
+    {
+        Random random = new Random(0);
+        ImmutableGraph.ImmutableGraphBuilder<Void, Void> builder = ImmutableGraph.csrBuilder();
+        for (int i = 0; i < nodes; i++) {
+            builder.addNode(String.valueOf(i));
+        }
+        for (int i = 0; i < edges; i++) {
+            builder.addEdge(String.valueOf(random.nextInt(nodes)), String.valueOf(random.nextInt(nodes)));
+        }
+        return builder.create();
+    }
+
+    private static List<String> routeIds(SearchResult<Void, Void> result)
+    {
+        return result.getRoutes().stream().map(route -> String.join("-", route.getIds())).collect(Collectors.toList());
+    }
+
+    @Test
+    public void parallelBreadthFirstSameAsBreadthFirst()
+    {
+        SearchBuilder<Void, Void> builder = graph.search()
+                .beginNode("0")
+                .nextRule(route -> route.size() < 6 && !route.findDeadLoop());
+
+        SearchResult<Void, Void> expected = builder.optimizer(SearchBuilder.Optimizer.BREADTH_FIRST).search();
+        SearchResult<Void, Void> result = builder.optimizer(SearchBuilder.Optimizer.PARALLEL_BREADTH_FIRST).search();
+        Assert.assertTrue(expected.getRoutes().size() > 1000);
+        Assert.assertEquals(routeIds(expected), routeIds(result));
+        Assert.assertEquals(expected.getFindNodeNumber(), result.getFindNodeNumber());
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            result = builder.pool(pool).endNode("7").search();
+            Assert.assertEquals(routeIds(builder.optimizer(SearchBuilder.Optimizer.BREADTH_FIRST).search()), routeIds(result));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelBreadthFirstGlobalRuleStop()
+    {
+        SearchResult<Void, Void> result = graph.search()
+                .optimizer(SearchBuilder.Optimizer.PARALLEL_BREADTH_FIRST)
+                .nextRule(route -> !route.findDeadLoop())
+                .globalRule(context -> context.getFindNodeNumber() < 500)
+                .search();
+
+        Assert.assertTrue(result.getFindNodeNumber() >= 500);
+        Assert.assertTrue(result.getFindNodeNumber() < 500 + ForkJoinPool.getCommonPoolParallelism() + 1);
+        Assert.assertTrue(result.getRoutes().size() <= result.getFindNodeNumber());
+    }
+
+    @Test
+    public void iteratorSameAsSearch()
+    {
+        for (SearchBuilder.Optimizer optimizer : SearchBuilder.Optimizer.values()) {
+            SearchBuilder<Void, Void> builder = graph.search()
+                    .optimizer(optimizer)
+                    .beginNode("0")
+                    .endNode("7")
+                    .nextRule(route -> route.size() < 6 && !route.findDeadLoop());
+            List<String> expected = routeIds(builder.search());
+            List<String> ids = new ArrayList<>();
+            builder.iterator().forEachRemaining(route -> ids.add(String.join("-", route.getIds())));
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals(expected, ids);
+        }
+    }
+
+    @Test
+    public void streamLimitStopsSearch()
+    {
+        AtomicInteger checked = new AtomicInteger();
+        List<Route<Void, Void>> routes = graph.search()
+                .beginNode("0")
+                .nextRule(route -> {
+                    checked.incrementAndGet();
+                    return !route.findDeadLoop();
+                })
+                .stream()
+                .limit(3)
+                .collect(Collectors.toList());
+        Assert.assertEquals(3, routes.size());
+        Assert.assertEquals(3, checked.get());
+
+        Iterator<Route<Void, Void>> iterator = graph.search()
+                .optimizer(SearchBuilder.Optimizer.BREADTH_FIRST)
+                .beginNode("0")
+                .nextRule(route -> route.size() < 2)
+                .globalRule(context -> context.getFindNodeNumber() < 2)
+                .iterator();
+        Assert.assertEquals(1, iterator.next().size());
+        Assert.assertEquals(1, iterator.next().size());
+        Assert.assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            Assert.fail();
+        }
+        catch (NoSuchElementException ignored) {
+        }
+    }
+}
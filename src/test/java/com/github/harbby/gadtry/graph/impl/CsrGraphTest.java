@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph.impl;
+
+import com.github.harbby.gadtry.base.Serializables;
+import com.github.harbby.gadtry.graph.Edge;
+import com.github.harbby.gadtry.graph.Graph;
+import com.github.harbby.gadtry.graph.ImmutableGraph;
+import com.github.harbby.gadtry.graph.Node;
+import com.github.harbby.gadtry.graph.Route;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class CsrGraphTest
+{
+    private final ImmutableGraph<String, Integer> graph = ImmutableGraph.<String, Integer>csrBuilder()
+            .name("test1")
+            .addNode("a1", "data1")
+            .addNode("a2")
+            .addNode("a3")
+            .addNode("a4")
+            .addNode("a5")
+            .addNode("a6")
+            .addEdge("a1", "a3", 13)
+            .addEdge("a1", "a2", 12)
+            .addEdge("a2", "a4")
+            .addEdge("a2", "a5", 0)
+            .addEdge("a2", "a5", 25)
+            .addEdge("a3", "a6")
+            .create();
+
+    @Test
+    public void createCsrGraph()
+    {
+        Assert.assertEquals("test1", graph.getName());
+        Assert.assertEquals(6, ((CsrGraph<?, ?>) graph).getNodeNumber());
+        Assert.assertEquals(5, ((CsrGraph<?, ?>) graph).getEdgeNumber());
+        Assert.assertEquals(6, graph.searchRuleRoute(route -> true).size());
+        Assert.assertEquals(Arrays.asList("/", "└────a1", "     ├────a2", "     │    ├────a4", "     │    └────a5", "     └────a3", "          └────a6"),
+                graph.printShow());
+        Assert.assertEquals(Arrays.asList("/", "└────a2", "     ├────a4", "     └────a5"), graph.printShow("a2"));
+
+        Node<String, Integer> a1 = graph.getNode("a1");
+        Assert.assertEquals("data1", a1.getData());
+        Assert.assertNull(graph.getNode("a2").getData());
+        Assert.assertEquals(Arrays.asList("a2", "a3"), a1.nextNodes().stream().map(edge -> edge.getOutNode().getId()).collect(Collectors.toList()));
+        Assert.assertEquals(12, (int) a1.getNextNode("a2").get().getData());
+        Assert.assertEquals("a1", a1.getNextNode("a3").get().getInNode().getId());
+        Assert.assertFalse(a1.getNextNode("a4").isPresent());
+        Assert.assertFalse(a1.getNextNode("a100").isPresent());
+        //repeated edge, the last one wins
+        Assert.assertEquals(2, graph.getNode("a2").nextNodes().size());
+        Assert.assertEquals(25, (int) graph.getRoute("a1", "a2", "a5").getLastEdge().getData());
+        Assert.assertEquals(1, graph.findNode(node -> node.getData() != null).size());
+
+        try {
+            graph.getNode("a100");
+            Assert.fail();
+        }
+        catch (NullPointerException e) {
+            Assert.assertEquals(e.getMessage(), "NO SUCH Node a100");
+        }
+    }
+
+    @Test
+    public void flyweightRouteEquals()
+    {
+        Route<String, Integer> route1 = graph.getRoute("a1", "a2", "a5");
+        Route<String, Integer> route2 = graph.getRoute("a1", "a2", "a5");
+        Assert.assertNotSame(route1.getLastEdge(), route2.getLastEdge());
+        Assert.assertEquals(route1.hashCode(), route2.hashCode());
+        Assert.assertEquals(route1, route2);
+        Assert.assertEquals(graph.getNode("a5"), route1.getLastNode());
+        Assert.assertNotEquals(graph.getRoute("a1", "a2", "a5"), graph.getRoute("a1", "a2"));
+        Assert.assertEquals(Arrays.asList("a1", "a2", "a5"), route1.getIds());
+    }
+
+    @Test
+    public void searchSameAsDefaultGraph()
+    {
+        Random random = new Random(0);
+        Graph.GraphBuilder<Void, Void> defaultBuilder = Graph.builder();
+        ImmutableGraph.ImmutableGraphBuilder<Void, Void> csrBuilder = ImmutableGraph.csrBuilder();
+        for (int i = 0; i < 50; i++) {
+            defaultBuilder.addNode(String.valueOf(i));
+            csrBuilder.addNode(String.valueOf(i));
+        }
+        for (int i = 0; i < 200; i++) {
+            String in = String.valueOf(random.nextInt(50));
+            String out = String.valueOf(random.nextInt(50));
+            defaultBuilder.addEdge(in, out);
+            csrBuilder.addEdge(in, out);
+        }
+        Graph<Void, Void> defaultGraph = defaultBuilder.create();
+        ImmutableGraph<Void, Void> csrGraph = csrBuilder.create();
+
+        Assert.assertEquals(routeIds(defaultGraph.searchRuleRoute(route -> route.size() < 5 && !route.findDeadLoop())),
+                routeIds(csrGraph.searchRuleRoute(route -> route.size() < 5 && !route.findDeadLoop())));
+        Assert.assertEquals(routeIds(defaultGraph.searchRuleRoute("7", route -> route.size() < 4)),
+                routeIds(csrGraph.searchRuleRoute("7", route -> route.size() < 4)));
+        Assert.assertEquals(defaultGraph.getNode("7").nextNodes().stream().map(Edge::getOutNode).map(Node::getId).collect(Collectors.toSet()),
+                csrGraph.getNode("7").nextNodes().stream().map(Edge::getOutNode).map(Node::getId).collect(Collectors.toSet()));
+    }
+
+    private static Set<String> routeIds(List<Route<Void, Void>> routes)
+    {
+        return routes.stream().map(route -> String.join("-", route.getIds())).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void serializable()
+            throws Exception
+    {
+        byte[] bytes = Serializables.serialize(graph);
+        ImmutableGraph<String, Integer> copy = Serializables.byteToObject(bytes);
+        Assert.assertEquals(graph.printShow(), copy.printShow());
+        Assert.assertEquals(25, (int) copy.getRoute("a1", "a2", "a5").getLastEdge().getData());
+    }
+}
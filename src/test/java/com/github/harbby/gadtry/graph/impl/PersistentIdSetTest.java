@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.graph.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class PersistentIdSetTest
+{
+    @Test
+    public void addAndContainsSameAsHashSet()
+    {
+        Random random = new Random(0);
+        Set<String> expected = new HashSet<>();
+        PersistentIdSet set = PersistentIdSet.EMPTY;
+        for (int i = 0; i < 20_000; i++) {
+            String id = String.valueOf(random.nextInt(10_000));
+            PersistentIdSet old = set;
+            set = set.add(id);
+            Assert.assertEquals(expected.add(id), set != old);
+            Assert.assertTrue(set.contains(id));
+        }
+        Assert.assertEquals(expected.size(), set.size());
+        for (int i = 0; i < 10_000; i++) {
+            Assert.assertEquals(expected.contains(String.valueOf(i)), set.contains(String.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void oldVersionIsUnchanged()
+    {
+        PersistentIdSet parent = PersistentIdSet.EMPTY.add("a1").add("a2");
+        PersistentIdSet child1 = parent.add("a3");
+        PersistentIdSet child2 = parent.add("a4");
+        Assert.assertFalse(parent.contains("a3"));
+        Assert.assertFalse(child1.contains("a4"));
+        Assert.assertFalse(child2.contains("a3"));
+        Assert.assertTrue(child2.contains("a1"));
+        Assert.assertEquals(2, parent.size());
+        Assert.assertEquals(3, child1.size());
+    }
+
+    @Test
+    public void sameHashCodeIds()
+    {
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        PersistentIdSet set = PersistentIdSet.EMPTY.add("Aa");
+        Assert.assertFalse(set.contains("BB"));
+        set = set.add("BB").add("AaAa").add("BBBB").add("AaBB");
+        Assert.assertTrue(set.contains("Aa"));
+        Assert.assertTrue(set.contains("BB"));
+        Assert.assertFalse(set.contains("BBAa"));
+        Assert.assertSame(set, set.add("BB"));
+        Assert.assertEquals(5, set.size());
+    }
+}
@@ -21,6 +21,9 @@ import com.github.harbby.gadtry.graph.Route;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 public class RouteImplTest
@@ -32,6 +35,52 @@ public class RouteImplTest
         Assert.assertTrue(route.findDeadLoop());
     }
 
+    @Test
+    public void containsAndDeadLoop()
+    {
+        Route<Void, Void> route = createTestRoute("1", "2", "3");
+        Assert.assertTrue(route.contains("1"));
+        Assert.assertTrue(route.contains("3"));
+        Assert.assertFalse(route.contains("4"));
+        Assert.assertFalse(route.findDeadLoop());
+
+        Route<Void, Void> loop = route.extend(Edge.createEdge(route.getLastNode(), Node.<Void, Void>builder("2").build()));
+        Assert.assertTrue(loop.findDeadLoop());
+        Assert.assertFalse(route.findDeadLoop());
+        Assert.assertFalse(loop.extend(Edge.createEdge(loop.getLastNode(), Node.<Void, Void>builder("4").build())).findDeadLoop());
+        Assert.assertTrue(createTestRoute("1", "1").findDeadLoop());
+    }
+
+    @Test
+    public void extendSharesParentRoute()
+    {
+        Route<Void, Void> parent = createTestRoute("1", "2", "3");
+        Node<Void, Void> node3 = parent.getLastNode();
+        Route<Void, Void> child1 = parent.extend(Edge.createEdge(node3, Node.<Void, Void>builder("4").build()));
+        Route<Void, Void> child2 = parent.extend(Edge.createEdge(node3, Node.<Void, Void>builder("5").build()));
+
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), parent.getIds());
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "4"), child1.getIds());
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "5"), child2.getIds());
+        Assert.assertEquals(3, child1.size());
+        Assert.assertEquals(3, child1.getEdges().size());
+        Assert.assertSame(node3, child1.getLastNode(1));
+        Assert.assertEquals("1", child1.getLastNode(3).getId());
+        Assert.assertEquals("4", child1.getLastEdge().getOutNode().getId());
+        Assert.assertFalse(child1.findDeadLoop());
+
+        Route<Void, Void> copy = child1.copy().create();
+        Assert.assertEquals(child1, copy);
+        Assert.assertEquals(child1.hashCode(), copy.hashCode());
+        Assert.assertNotEquals(child1, child2);
+        try {
+            child1.getLastNode(4);
+            Assert.fail();
+        }
+        catch (NoSuchElementException ignored) {
+        }
+    }
+
     @Test
     public void edgeToString()
     {
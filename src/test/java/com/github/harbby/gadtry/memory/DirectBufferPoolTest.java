@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class DirectBufferPoolTest
+{
+    private static final String POOL_NAME = "DirectBufferPoolTest";
+    private MemoryPool pool;
+    private DirectBufferPool bufferPool;
+
+    @Before
+    public void before()
+    {
+        MemoryManager.removePool(POOL_NAME);
+        this.pool = MemoryManager.createPool(POOL_NAME, 64 << 20, MemoryPool.Policy.FAIL_FAST);
+        this.bufferPool = new DirectBufferPool(pool, 1024, 64 * 1024, 2, 4);
+    }
+
+    @After
+    public void after()
+    {
+        bufferPool.trim();
+        MemoryManager.removePool(POOL_NAME);
+    }
+
+    @Test
+    public void allocateAndReuseTest()
+    {
+        ByteBuffer buffer = bufferPool.allocate(1000);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(1000, buffer.capacity());
+        Assert.assertEquals(1000, buffer.limit());
+        buffer.putLong(992, 7L);
+        Assert.assertEquals(7L, buffer.getLong(992));
+        long address = UnsafeHelper.getDirectBufferAddress(buffer);
+        Assert.assertEquals(1, bufferPool.getMissCount());
+        Assert.assertEquals(1, bufferPool.getOutstandingCount());
+        Assert.assertEquals(1024, pool.getUsedBytes());
+
+        bufferPool.release(buffer);
+        Assert.assertEquals(0, bufferPool.getOutstandingCount());
+
+        ByteBuffer buffer2 = bufferPool.allocate(1024);
+        Assert.assertEquals(address, UnsafeHelper.getDirectBufferAddress(buffer2));
+        Assert.assertEquals(1, bufferPool.getHitCount());
+        Assert.assertEquals(1024, pool.getUsedBytes());
+        //other size class
+        ByteBuffer buffer3 = bufferPool.allocate(1025);
+        Assert.assertEquals(2, bufferPool.getMissCount());
+        Assert.assertEquals(1024 + 2048, pool.getUsedBytes());
+        bufferPool.release(buffer2);
+        bufferPool.release(buffer3);
+        bufferPool.trim();
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void threadCacheOverflowTest()
+    {
+        ByteBuffer[] buffers = new ByteBuffer[8];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = bufferPool.allocate(4096);
+        }
+        for (ByteBuffer buffer : buffers) {
+            bufferPool.release(buffer);
+        }
+        //2 in the thread cache, 4 shared, 2 freed
+        Assert.assertEquals(4, bufferPool.getSharedCachedCount());
+        Assert.assertEquals(6 * 4096, pool.getUsedBytes());
+        bufferPool.trim();
+        Assert.assertEquals(0, bufferPool.getSharedCachedCount());
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void sharedPoolTest()
+            throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> future = executor.submit(() -> {
+                ByteBuffer[] buffers = new ByteBuffer[6];
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = bufferPool.allocate(2048);
+                }
+                for (ByteBuffer buffer : buffers) {
+                    bufferPool.release(buffer);
+                }
+            });
+            future.get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdown();
+        }
+        //the blocks the other thread could not cache are reused from the shared pool
+        ByteBuffer buffer = bufferPool.allocate(2048);
+        Assert.assertEquals(1, bufferPool.getHitCount());
+        Assert.assertEquals(3, bufferPool.getSharedCachedCount());
+        bufferPool.release(buffer);
+    }
+
+    @Test
+    public void unpooledTest()
+    {
+        ByteBuffer buffer = bufferPool.allocate(128 * 1024);
+        Assert.assertEquals(128 * 1024, buffer.capacity());
+        Assert.assertEquals(1, bufferPool.getMissCount());
+        Assert.assertEquals(0, bufferPool.getOutstandingCount());
+        Assert.assertEquals(128 * 1024, pool.getUsedBytes());
+        bufferPool.release(buffer);
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void releaseTwiceTest()
+    {
+        ByteBuffer buffer = bufferPool.allocate(100);
+        bufferPool.release(buffer);
+        try {
+            bufferPool.release(buffer);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("buffer is already released", e.getMessage());
+        }
+        //the block is reused, the stale buffer still can not release it
+        ByteBuffer reused = bufferPool.allocate(100);
+        Assert.assertEquals(1, bufferPool.getHitCount());
+        try {
+            bufferPool.release(buffer);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("buffer is already released", e.getMessage());
+        }
+        Assert.assertEquals(1, bufferPool.getOutstandingCount());
+        bufferPool.release(reused);
+        try {
+            bufferPool.release(bufferPool.allocate(100).duplicate());
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("buffer is not allocated by this pool", e.getMessage());
+        }
+    }
+
+    @Test
+    public void cleanerFallbackTest()
+            throws InterruptedException
+    {
+        bufferPool.allocate(100);
+        Assert.assertEquals(1, bufferPool.getOutstandingCount());
+        for (int i = 0; i < 100 && bufferPool.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, bufferPool.getLeakCount());
+        Assert.assertEquals(0, bufferPool.getOutstandingCount());
+        Assert.assertEquals(1, bufferPool.getSharedCachedCount());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class LeakDetectorTest
+{
+    /**
+     * Runs the action with every allocation sampled and returns the leaks allocated by {@code method},
+     * leaks of blocks dropped by other tests are ignored
+     */
+    private static List<LeakDetector.Leak> collectLeaks(String method, Runnable action)
+    {
+        List<LeakDetector.Leak> leaks = new CopyOnWriteArrayList<>();
+        Consumer<LeakDetector.Leak> listener = leak -> {
+            for (StackTraceElement element : leak.getAllocationStackTrace()) {
+                if (element.getMethodName().equals(method)) {
+                    leaks.add(leak);
+                    return;
+                }
+            }
+        };
+        LeakDetector.setLeakListener(listener);
+        LeakDetector.setSampleRate(1.0D);
+        try {
+            action.run();
+        }
+        finally {
+            LeakDetector.setSampleRate(0D);
+            LeakDetector.setLeakListener(leak -> {});
+        }
+        return leaks;
+    }
+
+    @Test
+    public void closedBlockIsNotLeak()
+    {
+        List<LeakDetector.Leak> leaks = collectLeaks("closeBlocks", LeakDetectorTest::closeBlocks);
+        Assert.assertTrue(leaks.isEmpty());
+    }
+
+    private static void closeBlocks()
+    {
+        for (int i = 0; i < 1000; i++) {
+            MemoryBlock block = new MemoryBlock(new byte[128]);
+            block.close();
+            //the cleaner already ran in close(), the gc can not run it again
+            block.cleanAsUnreachable();
+        }
+    }
+
+    @Test
+    public void reportSampledLeak()
+    {
+        long leakCount = LeakDetector.getLeakCount();
+        List<LeakDetector.Leak> leaks = collectLeaks("createLeak", () -> createLeak().cleanAsUnreachable());
+
+        Assert.assertTrue(LeakDetector.getLeakCount() > leakCount);
+        Assert.assertEquals(1, leaks.size());
+        Assert.assertEquals(1024, leaks.get(0).getSize());
+        Assert.assertTrue(leaks.get(0).toString().contains("createLeak"));
+    }
+
+    private static MemoryBlock createLeak()
+    {
+        return new MemoryBlock(new byte[1024]);
+    }
+
+    @Test
+    public void sampleRateRange()
+    {
+        try {
+            LeakDetector.setSampleRate(2);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("sample rate must be between 0 and 1", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sun.misc.Unsafe;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryArenaTest
+{
+    private final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    @Test
+    public void sizeClassTest()
+    {
+        int lastSlotSize = 0;
+        for (int size = 0; size <= MemoryArena.DEFAULT_CHUNK_SIZE >> 2; size++) {
+            int slotSize = MemoryArena.slotSize(MemoryArena.sizeClass(size));
+            Assert.assertTrue(slotSize >= size);
+            Assert.assertTrue(slotSize >= lastSlotSize);
+            Assert.assertTrue(size <= 16 || slotSize - size < size / 4 + 16);
+            lastSlotSize = slotSize;
+        }
+    }
+
+    @Test
+    public void allocateReuseFreeSlot()
+    {
+        try (MemoryArena arena = new MemoryArena(4096)) {
+            long address = arena.allocate(100);
+            unsafe.putLong(address, 1L);
+            arena.free(address, 100);
+            Assert.assertEquals(address, arena.allocate(110));
+            Assert.assertEquals(112, arena.getUsedBytes());
+            Assert.assertEquals(1, arena.getChunkNumber());
+        }
+    }
+
+    @Test
+    public void allocateNewChunkAndHugeBlock()
+    {
+        MemoryArena arena = new MemoryArena(4096);
+        for (int i = 0; i < 10; i++) {
+            arena.allocate(1000);
+        }
+        Assert.assertEquals(3, arena.getChunkNumber());
+
+        long huge = arena.allocate(8192);
+        Assert.assertEquals(3 * 4096 + 8192, arena.getReservedBytes());
+        arena.free(huge, 8192);
+        Assert.assertEquals(3 * 4096, arena.getReservedBytes());
+
+        arena.close();
+        Assert.assertTrue(arena.isClosed());
+        Assert.assertEquals(0, arena.getReservedBytes());
+        try {
+            arena.allocate(10);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("arena is closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void memoryBlockFromArena()
+    {
+        try (MemoryArena arena = new MemoryArena()) {
+            MemoryBlock block = MemoryBlock.allocate(arena, "harbby".getBytes());
+            Assert.assertEquals("harbby", new String(block.getByteValue()));
+            block.close();
+            Assert.assertEquals(0, arena.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void poolWaitNotHoldArenaLock()
+            throws Exception
+    {
+        MemoryManager.removePool("arenaBlockingPool");
+        MemoryPool pool = MemoryManager.createPool("arenaBlockingPool", 4096, MemoryPool.Policy.BLOCK);
+        pool.setMaxWaitMillis(10_000);
+        MemoryArena arena = new MemoryArena(4096, pool);
+        MemoryBlock block = MemoryBlock.allocate(arena, 1000);
+        for (int i = 0; i < 3; i++) {
+            arena.allocate(1000);
+        }
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            //the chunk is full, waits for the pool
+            Future<Long> waiting = service.submit(() -> arena.allocate(1000));
+            TimeUnit.MILLISECONDS.sleep(100);
+            Assert.assertFalse(waiting.isDone());
+
+            long start = System.nanoTime();
+            block.close();
+            Assert.assertEquals(3 * 1024, arena.getUsedBytes());
+            arena.close();
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(0, pool.getUsedBytes());
+        }
+        finally {
+            service.shutdownNow();
+            MemoryManager.removePool("arenaBlockingPool");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class MemoryBlockTest
+{
+    @Test
+    public void getByteValue()
+    {
+        byte[] value = new byte[4096];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        try (MemoryBlock block = new MemoryBlock(value)) {
+            Assert.assertEquals(4096, block.getSize());
+            Assert.assertArrayEquals(value, block.getByteValue());
+        }
+    }
+
+    @Test
+    public void asByteBufferIsReadOnlyView()
+    {
+        try (MemoryBlock block = new MemoryBlock("harbby".getBytes(UTF_8))) {
+            ByteBuffer buffer = block.asByteBuffer();
+            Assert.assertTrue(buffer.isDirect());
+            Assert.assertEquals(6, buffer.remaining());
+            Assert.assertEquals("harbby", UTF_8.decode(buffer).toString());
+            try {
+                buffer.put(0, (byte) 1);
+                Assert.fail();
+            }
+            catch (ReadOnlyBufferException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void getDataInput()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(-7);
+            out.writeLong(Long.MAX_VALUE - 1);
+            out.writeDouble(3.14D);
+            out.writeShort(0xFFFE);
+            out.writeBoolean(true);
+            out.writeUTF("gadtry 测试");
+        }
+
+        try (MemoryBlock block = new MemoryBlock(bytes.toByteArray())) {
+            DataInput input = block.getDataInput();
+            Assert.assertEquals(-7, input.readInt());
+            Assert.assertEquals(Long.MAX_VALUE - 1, input.readLong());
+            Assert.assertEquals(3.14D, input.readDouble(), 0);
+            Assert.assertEquals(0xFFFE, input.readUnsignedShort());
+            Assert.assertTrue(input.readBoolean());
+            Assert.assertEquals("gadtry 测试", input.readUTF());
+            try {
+                input.readByte();
+                Assert.fail();
+            }
+            catch (EOFException ignored) {
+            }
+        }
+    }
+}
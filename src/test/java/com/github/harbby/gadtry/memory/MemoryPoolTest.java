@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class MemoryPoolTest
+{
+    private static MemoryPool createPool(String name, long budget, MemoryPool.Policy policy)
+    {
+        MemoryManager.removePool(name);
+        return MemoryManager.createPool(name, budget, policy);
+    }
+
+    @Test
+    public void accounting()
+    {
+        MemoryPool pool = createPool("accounting", 1024, MemoryPool.Policy.FAIL_FAST);
+        long address = pool.allocateMemory(1000);
+        Assert.assertEquals(1000, pool.getReservedBytes());
+        Assert.assertEquals(1000, pool.getUsedBytes());
+        Assert.assertEquals(1, pool.getBlockCount());
+        pool.freeMemory(address, 1000);
+        Assert.assertEquals(0, pool.getReservedBytes());
+        Assert.assertEquals(0, pool.getBlockCount());
+        Assert.assertEquals(1000, pool.getPeakBytes());
+        Assert.assertSame(pool, MemoryManager.getPool("accounting"));
+    }
+
+    @Test
+    public void failFast()
+    {
+        MemoryPool pool = createPool("failFast", 1024, MemoryPool.Policy.FAIL_FAST);
+        long address = pool.allocateMemory(1000);
+        try {
+            pool.allocateMemory(100);
+            Assert.fail();
+        }
+        catch (MemoryBudgetException e) {
+            Assert.assertEquals("memory pool [failFast] can not reserve 100 bytes, reserved 1000 of budget 1024", e.getMessage());
+        }
+        finally {
+            pool.freeMemory(address, 1000);
+        }
+    }
+
+    @Test
+    public void blockUntilRelease()
+            throws ExecutionException, InterruptedException
+    {
+        MemoryPool pool = createPool("block", 1024, MemoryPool.Policy.BLOCK);
+        long address = pool.allocateMemory(1000);
+        CompletableFuture<Long> future = CompletableFuture.supplyAsync(() -> pool.allocateMemory(1000));
+        Thread.sleep(100);
+        Assert.assertFalse(future.isDone());
+        pool.freeMemory(address, 1000);
+        pool.freeMemory(future.get(), 1000);
+        Assert.assertEquals(0, pool.getReservedBytes());
+
+        pool.setMaxWaitMillis(10);
+        address = pool.allocateMemory(1000);
+        try {
+            pool.allocateMemory(1000);
+            Assert.fail();
+        }
+        catch (MemoryBudgetException ignored) {
+        }
+        finally {
+            pool.freeMemory(address, 1000);
+        }
+    }
+
+    @Test
+    public void spillCallback()
+    {
+        MemoryPool pool = createPool("spill", 1024, MemoryPool.Policy.SPILL);
+        long[] addresses = {pool.allocateMemory(1000)};
+        Spillable spillable = requiredBytes -> {
+            if (addresses[0] == 0) {
+                return 0;
+            }
+            pool.freeMemory(addresses[0], 1000);
+            addresses[0] = 0;
+            return 1000;
+        };
+        pool.addSpillable(spillable);
+        long address = pool.allocateMemory(1000);
+        Assert.assertEquals(0, addresses[0]);
+        try {
+            pool.allocateMemory(1000);
+            Assert.fail();
+        }
+        catch (MemoryBudgetException ignored) {
+        }
+        pool.freeMemory(address, 1000);
+        pool.removeSpillable(spillable);
+    }
+
+    @Test
+    public void arenaAccounting()
+    {
+        MemoryPool pool = createPool("arena", Long.MAX_VALUE, MemoryPool.Policy.FAIL_FAST);
+        MemoryArena arena = new MemoryArena(4096, pool);
+        long address = arena.allocate(100);
+        arena.allocate(2000);
+        Assert.assertEquals(4096 + 2000, pool.getReservedBytes());
+        Assert.assertEquals(112 + 2000, pool.getUsedBytes());
+        arena.free(address, 100);
+        Assert.assertEquals(2000, pool.getUsedBytes());
+        arena.close();
+        Assert.assertEquals(0, pool.getReservedBytes());
+        Assert.assertEquals(0, pool.getUsedBytes());
+        Assert.assertEquals(0, pool.getBlockCount());
+    }
+
+    @Test
+    public void defaultPoolCanNotRemove()
+    {
+        try {
+            MemoryManager.removePool(MemoryManager.DEFAULT_POOL);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("default pool can not be removed", e.getMessage());
+        }
+    }
+}
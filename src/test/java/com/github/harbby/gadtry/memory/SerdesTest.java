@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.collection.tuple.Tuple3;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class SerdesTest
+{
+    private static <E> E roundTrip(Serde<E> serde, E value)
+    {
+        //native memory
+        int size = serde.sizeOf(value);
+        long address = UnsafeHelper.getUnsafe().allocateMemory(Math.max(1, size));
+        try {
+            serde.write(value, null, address);
+            Assert.assertEquals(value, serde.read(null, address, size));
+        }
+        finally {
+            UnsafeHelper.getUnsafe().freeMemory(address);
+        }
+        //heap and direct buffers
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(size + 3), ByteBuffer.allocateDirect(size + 3)}) {
+            buffer.position(3);
+            serde.write(value, buffer);
+            Assert.assertEquals(size + 3, buffer.position());
+            buffer.position(3);
+            Assert.assertEquals(value, serde.read(buffer, size));
+        }
+        return serde.deserialize(serde.serialize(value));
+    }
+
+    @Test
+    public void primitiveTest()
+    {
+        Assert.assertEquals(true, roundTrip(Serdes.booleanSerde(), true));
+        Assert.assertEquals((byte) -3, (byte) roundTrip(Serdes.byteSerde(), (byte) -3));
+        Assert.assertEquals((short) 1234, (short) roundTrip(Serdes.shortSerde(), (short) 1234));
+        Assert.assertEquals('x', (char) roundTrip(Serdes.charSerde(), 'x'));
+        Assert.assertEquals(-7, (int) roundTrip(Serdes.intSerde(), -7));
+        Assert.assertEquals(1.5f, roundTrip(Serdes.floatSerde(), 1.5f), 0);
+        Assert.assertEquals(Long.MIN_VALUE, (long) roundTrip(Serdes.longSerde(), Long.MIN_VALUE));
+        Assert.assertEquals(Math.PI, roundTrip(Serdes.doubleSerde(), Math.PI), 0);
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, Serdes.byteArraySerde().deserialize(new byte[] {1, 2, 3}));
+    }
+
+    @Test
+    public void stringTest()
+    {
+        Serde<String> serde = Serdes.stringSerde();
+        Assert.assertEquals(1, serde.sizeOf(""));
+        Assert.assertEquals(6, serde.sizeOf("héllo"));  //latin1 fast path
+        String utf8 = "héllo 世界 😀";
+        Assert.assertEquals(1 + utf8.getBytes(StandardCharsets.UTF_8).length, serde.sizeOf(utf8));
+        Assert.assertEquals(utf8, roundTrip(serde, utf8));
+        Assert.assertEquals("", roundTrip(serde, ""));
+        Assert.assertEquals("héllo", roundTrip(serde, "héllo"));
+        Assert.assertEquals("lone\uD800surrogate", roundTrip(serde, "lone\uD800surrogate"));
+    }
+
+    @Test
+    public void tupleTest()
+    {
+        Serde<Tuple3<String, Long, Integer>> serde = Serdes.tuple3Serde(Serdes.stringSerde(), Serdes.longSerde(), Serdes.intSerde());
+        Assert.assertEquals(Tuple3.of("a世", 1L, 2), roundTrip(serde, Tuple3.of("a世", 1L, 2)));
+        Assert.assertEquals(Tuple3.of(null, 1L, null), roundTrip(serde, Tuple3.of(null, 1L, null)));
+
+        Serde<Tuple2<Integer, Tuple2<String, Double>>> nested = Serdes.tuple2Serde(Serdes.intSerde(),
+                Serdes.tuple2Serde(Serdes.stringSerde(), Serdes.doubleSerde()));
+        Assert.assertEquals(Tuple2.of(1, Tuple2.of("b", 2.0)), roundTrip(nested, Tuple2.of(1, Tuple2.of("b", 2.0))));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sun.misc.Unsafe;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing and comparing native memory: the word at a time routines of {@link UnsafeHelper}
+ * against copying the bytes to heap first.
+ * <p>
+ * Run with {@code java -cp <test classpath> com.github.harbby.gadtry.memory.UnsafeHelperBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnsafeHelperBenchmark
+{
+    private static final Unsafe unsafe = UnsafeHelper.getUnsafe();
+
+    @Param({"7", "64", "1024"})
+    private int length;
+
+    private long left;
+    private long right;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        byte[] bytes = new byte[length];
+        new Random(0).nextBytes(bytes);
+        this.left = unsafe.allocateMemory(length);
+        this.right = unsafe.allocateMemory(length);
+        unsafe.copyMemory(bytes, UnsafeHelper.BYTE_ARRAY_OFFSET, null, left, length);
+        unsafe.copyMemory(bytes, UnsafeHelper.BYTE_ARRAY_OFFSET, null, right, length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        unsafe.freeMemory(left);
+        unsafe.freeMemory(right);
+    }
+
+    private byte[] copyToHeap(long address)
+    {
+        byte[] bytes = new byte[length];
+        unsafe.copyMemory(null, address, bytes, UnsafeHelper.BYTE_ARRAY_OFFSET, length);
+        return bytes;
+    }
+
+    @Benchmark
+    public long xxHash64()
+    {
+        return UnsafeHelper.xxHash64(null, left, length);
+    }
+
+    @Benchmark
+    public int murmur3Hash32()
+    {
+        return UnsafeHelper.murmur3Hash32(null, left, length, 0);
+    }
+
+    @Benchmark
+    public int copyAndArraysHashCode()
+    {
+        return Arrays.hashCode(copyToHeap(left));
+    }
+
+    @Benchmark
+    public int nativeCompare()
+    {
+        return UnsafeHelper.compare(null, left, length, null, right, length);
+    }
+
+    @Benchmark
+    public boolean nativeEquals()
+    {
+        return UnsafeHelper.equals(null, left, null, right, length);
+    }
+
+    @Benchmark
+    public boolean copyAndArraysEquals()
+    {
+        return Arrays.equals(copyToHeap(left), copyToHeap(right));
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(UnsafeHelperBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
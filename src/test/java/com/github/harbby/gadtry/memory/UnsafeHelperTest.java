@@ -26,6 +26,10 @@ import sun.misc.Unsafe;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class UnsafeHelperTest
 {
@@ -49,6 +53,19 @@ public class UnsafeHelperTest
         Assert.assertNotNull(byteBuffer);
     }
 
+    @Test
+    public void wrapDirectBuffer()
+    {
+        long address = unsafe.allocateMemory(16);
+        try (Closeables<Long> closeables = Closeables.autoClose(address, unsafe::freeMemory)) {
+            unsafe.putByte(address + 3, (byte) 7);
+            ByteBuffer byteBuffer = UnsafeHelper.wrapDirectBuffer(address, 16, null);
+            Assert.assertEquals(16, byteBuffer.capacity());
+            Assert.assertEquals(7, byteBuffer.get(3));
+            Assert.assertEquals(address, UnsafeHelper.getDirectBufferAddress(byteBuffer));
+        }
+    }
+
     @Test
     public void defineClassTestReturnSetProxyClass()
             throws NotFoundException, IOException, CannotCompileException
@@ -74,4 +91,90 @@ public class UnsafeHelperTest
             Assert.assertEquals("IO_test", e.getMessage());
         }
     }
+
+    private static long xxHash64(String value, long seed)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        return UnsafeHelper.xxHash64(bytes, BYTE_ARRAY_OFFSET, bytes.length, seed);
+    }
+
+    private static int murmur3Hash32(String value, int seed)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        return UnsafeHelper.murmur3Hash32(bytes, BYTE_ARRAY_OFFSET, bytes.length, seed);
+    }
+
+    @Test
+    public void xxHash64ReferenceVectors()
+    {
+        Assert.assertEquals(0xEF46DB3751D8E999L, xxHash64("", 0));
+        Assert.assertEquals(0xD24EC4F1A98C6E5BL, xxHash64("a", 0));
+        Assert.assertEquals(0x44BC2CF5AD770999L, xxHash64("abc", 0));
+        Assert.assertEquals(0xFBCEA83C8A378BF1L, xxHash64("Nobody inspects the spammish repetition", 0));
+    }
+
+    @Test
+    public void murmur3Hash32ReferenceVectors()
+    {
+        Assert.assertEquals(0, murmur3Hash32("", 0));
+        Assert.assertEquals(0x514E28B7, murmur3Hash32("", 1));
+        Assert.assertEquals(0x248BFA47, murmur3Hash32("hello", 0));
+        Assert.assertEquals(0x2E4FF723, murmur3Hash32("The quick brown fox jumps over the lazy dog", 0));
+    }
+
+    @Test
+    public void hashNativeMemoryAndUnalignedTail()
+    {
+        byte[] bytes = new byte[100];
+        new Random(0).nextBytes(bytes);
+        long address = unsafe.allocateMemory(bytes.length + 3);
+        try (Closeables<Long> closeables = Closeables.autoClose(address, unsafe::freeMemory)) {
+            for (int length = 0; length <= 97; length++) {
+                //same bytes at an unaligned native address
+                unsafe.copyMemory(bytes, BYTE_ARRAY_OFFSET + 3, null, address + 3, length);
+                Assert.assertEquals(UnsafeHelper.xxHash64(bytes, BYTE_ARRAY_OFFSET + 3, length, 7),
+                        UnsafeHelper.xxHash64(null, address + 3, length, 7));
+                Assert.assertEquals(UnsafeHelper.murmur3Hash32(bytes, BYTE_ARRAY_OFFSET + 3, length, 7),
+                        UnsafeHelper.murmur3Hash32(null, address + 3, length, 7));
+                Assert.assertTrue(UnsafeHelper.equals(bytes, BYTE_ARRAY_OFFSET + 3, null, address + 3, length));
+            }
+        }
+    }
+
+    @Test
+    public void compareAndEquals()
+    {
+        byte[] left = "abcdefghijklmnop".getBytes(UTF_8);
+        byte[] right = left.clone();
+        Assert.assertEquals(0, UnsafeHelper.compare(left, BYTE_ARRAY_OFFSET, left.length, right, BYTE_ARRAY_OFFSET, right.length));
+        Assert.assertTrue(UnsafeHelper.equals(left, BYTE_ARRAY_OFFSET, right, BYTE_ARRAY_OFFSET, left.length));
+        //prefix is smaller
+        Assert.assertTrue(UnsafeHelper.compare(left, BYTE_ARRAY_OFFSET, 10, right, BYTE_ARRAY_OFFSET, 16) < 0);
+
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] a = new byte[random.nextInt(20)];
+            byte[] b = new byte[random.nextInt(20)];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            if (random.nextBoolean() && a.length > 0 && b.length > a.length) {
+                System.arraycopy(a, 0, b, 0, a.length - 1);
+            }
+            int expected = Integer.signum(compareUnsigned(a, b));
+            Assert.assertEquals(expected, Integer.signum(UnsafeHelper.compare(a, BYTE_ARRAY_OFFSET, a.length, b, BYTE_ARRAY_OFFSET, b.length)));
+            Assert.assertEquals(-expected, Integer.signum(UnsafeHelper.compare(b, BYTE_ARRAY_OFFSET, b.length, a, BYTE_ARRAY_OFFSET, a.length)));
+            Assert.assertEquals(expected == 0, a.length == b.length && UnsafeHelper.equals(a, BYTE_ARRAY_OFFSET, b, BYTE_ARRAY_OFFSET, a.length));
+        }
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b)
+    {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+public class BloomFilterTest
+{
+    private static final int N = 100_000;
+
+    private static double falsePositiveRate(AbstractBloomFilter filter)
+    {
+        for (long i = 0; i < N; i++) {
+            filter.put(i);
+        }
+        for (long i = 0; i < N; i++) {
+            Assert.assertTrue(filter.mightContain(i));
+        }
+        int falsePositives = 0;
+        for (long i = N; i < N * 11; i++) {
+            if (filter.mightContain(i)) {
+                falsePositives++;
+            }
+        }
+        return (double) falsePositives / (N * 10);
+    }
+
+    @Test
+    public void bloomFilterTest()
+    {
+        try (BloomFilter filter = new BloomFilter(N, 0.01)) {
+            Assert.assertEquals(7, filter.getNumHashFunctions());
+            double fpp = falsePositiveRate(filter);
+            Assert.assertTrue("fpp " + fpp, fpp < 0.015);
+            Assert.assertTrue(filter.expectedFpp() < 0.015);
+        }
+    }
+
+    @Test
+    public void blockedBloomFilterTest()
+    {
+        try (BlockedBloomFilter filter = new BlockedBloomFilter(N, 0.01)) {
+            Assert.assertEquals(0, filter.bitSize() % 512);
+            double fpp = falsePositiveRate(filter);
+            Assert.assertTrue("fpp " + fpp, fpp < 0.03);
+        }
+    }
+
+    @Test
+    public void bytesAndMergeTest()
+    {
+        try (BloomFilter a = new BloomFilter(1000, 0.01); BloomFilter b = new BloomFilter(1000, 0.01)) {
+            Assert.assertTrue(a.put("a".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertFalse(a.put("a".getBytes(StandardCharsets.UTF_8)));
+            b.put("b".getBytes(StandardCharsets.UTF_8));
+            a.putAll(b);
+            Assert.assertTrue(a.mightContain("a".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertTrue(a.mightContain("b".getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void fileChannelTest()
+            throws IOException
+    {
+        File file = File.createTempFile("gadtry-bloom", ".bin");
+        try (BlockedBloomFilter filter = new BlockedBloomFilter(1000, 0.01)) {
+            for (long i = 0; i < 1000; i++) {
+                filter.put(i);
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                filter.writeTo(channel);
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    BlockedBloomFilter copy = BlockedBloomFilter.readFrom(channel)) {
+                for (long i = 0; i < 1000; i++) {
+                    Assert.assertTrue(copy.mightContain(i));
+                }
+                Assert.assertEquals(filter.getNumHashFunctions(), copy.getNumHashFunctions());
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                BloomFilter.readFrom(channel);
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("not support bloom filter type 2", e.getMessage());
+            }
+        }
+        finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void readPartialBlockTest()
+            throws IOException
+    {
+        File file = File.createTempFile("gadtry-bloom", ".bin");
+        try {
+            //type 2, 3 hash functions and a bitset of 64 bits, less than one block
+            ByteBuffer buffer = ByteBuffer.allocate(24);
+            buffer.putInt(BlockedBloomFilter.TYPE).putInt(3).putLong(64).putLong(-1L);
+            Files.write(file.toPath(), buffer.array());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                BlockedBloomFilter.readFrom(channel);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals("blocked bloom filter has 64 bits, not a multiple of 512", e.getMessage());
+            }
+        }
+        finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.collection.tuple.Tuple3;
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.harbby.gadtry.memory.collection.ColumnarBatch.ColumnType.DOUBLE;
+import static com.github.harbby.gadtry.memory.collection.ColumnarBatch.ColumnType.INT;
+import static com.github.harbby.gadtry.memory.collection.ColumnarBatch.ColumnType.LONG;
+import static com.github.harbby.gadtry.memory.collection.ColumnarBatch.ColumnType.STRING;
+
+public class ColumnarBatchTest
+{
+    @Test
+    public void appendTupleTest()
+    {
+        try (ColumnarBatch batch = new ColumnarBatch(LONG, STRING, DOUBLE)) {
+            for (int i = 0; i < 1000; i++) {
+                batch.appendRow(Tuple3.of((long) i, i % 10 == 0 ? null : "name" + i, i * 0.5D));
+            }
+            Assert.assertEquals(1000, batch.numRows());
+            Assert.assertEquals(3, batch.numColumns());
+            Assert.assertEquals(7L, batch.getLong(7, 0));
+            Assert.assertEquals("name7", batch.getString(7, 1));
+            Assert.assertTrue(batch.isNull(10, 1));
+            Assert.assertNull(batch.getString(10, 1));
+            Assert.assertEquals(100, batch.nullCount(1));
+            Assert.assertEquals(0, batch.nullCount(0));
+
+            ColumnarBatch.Row row = batch.getRow(11);
+            Assert.assertEquals(3, row.getArity());
+            Assert.assertEquals(Long.valueOf(11), row.getField(1));
+            Assert.assertEquals("name11", row.getString(2));
+            Assert.assertEquals(Tuple3.of(11L, "name11", 5.5D), row.copy());
+            Assert.assertEquals("(11, name11, 5.5)", row.toString());
+        }
+    }
+
+    @Test
+    public void setterAndGrowTest()
+    {
+        MemoryManager.removePool("columnarBatch");
+        MemoryPool pool = MemoryManager.createPool("columnarBatch", 64 << 20, MemoryPool.Policy.FAIL_FAST);
+        try (ColumnarBatch batch = new ColumnarBatch(pool, 10, INT, STRING)) {
+            for (int i = 0; i < 10_000; i++) {
+                int row = batch.addRow();
+                Assert.assertTrue(batch.isNull(row, 0));
+                batch.setInt(row, 0, i);
+                if (i % 3 == 0) {
+                    batch.setString(row, 1, "中" + i);
+                }
+            }
+            Assert.assertEquals(0, batch.nullCount(0));
+            Assert.assertEquals(10_000 - 3334, batch.nullCount(1));
+            Assert.assertEquals("中9999", batch.getString(9999, 1));
+            batch.setNull(5, 0);
+            Assert.assertNull(batch.get(5, 0));
+            try {
+                batch.getInt(10_000, 0);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException ignored) {
+            }
+            batch.clear();
+            Assert.assertEquals(0, batch.numRows());
+            batch.appendRow(Tuple2.of(1, "a"));
+            Assert.assertEquals("a", batch.getString(0, 1));
+            Assert.assertEquals(batch.getMemorySize(), pool.getUsedBytes());
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+        MemoryManager.removePool("columnarBatch");
+    }
+
+    @Test
+    public void growFailureTest()
+    {
+        MemoryManager.removePool("columnarBatchSmall");
+        //two columns of 64 rows, room to grow the first one only
+        MemoryPool pool = MemoryManager.createPool("columnarBatchSmall", 2 * (64 * 8 + 8) + 64 * 16 + 500, MemoryPool.Policy.FAIL_FAST);
+        try (ColumnarBatch batch = new ColumnarBatch(pool, 64, LONG, LONG)) {
+            for (long i = 0; i < 64; i++) {
+                batch.appendRow(Tuple2.of(i, -i));
+            }
+            long used = pool.getUsedBytes();
+            try {
+                batch.addRow();
+                Assert.fail();
+            }
+            catch (MemoryBudgetException ignored) {
+            }
+            Assert.assertEquals(64, batch.numRows());
+            Assert.assertEquals(used, pool.getUsedBytes());
+            Assert.assertEquals(-63L, batch.getLong(63, 1));
+            try {
+                batch.getInt(0, 0);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertEquals("column 0 is LONG, not INT", e.getMessage());
+            }
+            try {
+                batch.setString(0, 1, "a");
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertEquals("column 1 is LONG, not STRING", e.getMessage());
+            }
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+        MemoryManager.removePool("columnarBatchSmall");
+    }
+
+    @Test
+    public void vectorizedAccessTest()
+    {
+        try (ColumnarBatch batch = new ColumnarBatch(INT, LONG, DOUBLE)) {
+            long expected = 0;
+            double expectedDouble = 0;
+            for (int i = 0; i < 1000; i++) {
+                int row = batch.addRow();
+                batch.setInt(row, 0, i);
+                if (i % 7 != 0) {
+                    batch.setLong(row, 1, i * 3L);
+                    batch.setDouble(row, 2, i * 0.25D);
+                    expected += i * 3L;
+                    expectedDouble += i * 0.25D;
+                }
+            }
+            Assert.assertEquals(expected, batch.sumLong(1));
+            Assert.assertEquals(999 * 1000 / 2, batch.sumLong(0));
+            Assert.assertEquals(expectedDouble, batch.sumDouble(2), 0.0001D);
+
+            int[] ints = new int[10];
+            batch.getInts(0, 100, ints, 0, 10);
+            Assert.assertEquals(109, ints[9]);
+            long[] longs = new long[5];
+            batch.getLongs(1, 1, longs, 1, 4);
+            Assert.assertEquals(12L, longs[4]);
+            double[] doubles = new double[3];
+            batch.getDoubles(2, 1, doubles, 0, 3);
+            Assert.assertEquals(0.75D, doubles[2], 0D);
+            try {
+                batch.getLongs(0, 0, longs, 0, 1);
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("column 0 is INT", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void forEachRowTest()
+    {
+        try (ColumnarBatch batch = new ColumnarBatch(LONG, STRING)) {
+            batch.appendRow(Tuple2.of(1L, "a"));
+            batch.appendRow(Tuple2.of(2L, "b"));
+            List<Tuple2<Long, String>> rows = new ArrayList<>();
+            batch.forEachRow(row -> rows.add(row.copy()));
+            Assert.assertEquals(Tuple2.of(1L, "a"), rows.get(0));
+            Assert.assertEquals(Tuple2.of(2L, "b"), rows.get(1));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.Serdes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrentOffHeapHashMapTest
+{
+    private static final Serde<Long> LONG = Serdes.longSerde();
+
+    private static ConcurrentOffHeapHashMap<Long, Long> create(MemoryPool pool)
+    {
+        return new ConcurrentOffHeapHashMap<>(LONG::serialize, LONG::deserialize, LONG::serialize, LONG::deserialize, 16, pool);
+    }
+
+    @Test
+    public void concurrentWriteTest()
+            throws Exception
+    {
+        MemoryManager.removePool("concurrentMap");
+        MemoryPool pool = MemoryManager.createPool("concurrentMap", Long.MAX_VALUE, MemoryPool.Policy.FAIL_FAST);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ConcurrentOffHeapHashMap<Long, Long> map = create(pool)) {
+            Assert.assertEquals(16, map.getStripeNumber());
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final long thread = t;
+                futures.add(executor.submit(() -> {
+                    for (long i = 0; i < 10_000; i++) {
+                        map.put(thread * 10_000 + i, i);
+                        map.merge(-1L, 1L, Long::sum);
+                        Assert.assertEquals(Long.valueOf(i), map.get(thread * 10_000 + i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            Assert.assertEquals(80_001, map.size());
+            Assert.assertEquals(Long.valueOf(80_000), map.get(-1L));
+
+            Map<Long, Long> copy = new HashMap<>(map);
+            Assert.assertEquals(copy, map);
+            Assert.assertNull(map.putIfAbsent(-2L, 1L));
+            Assert.assertEquals(Long.valueOf(1), map.putIfAbsent(-2L, 2L));
+            Assert.assertFalse(map.replace(-2L, 2L, 3L));
+            Assert.assertTrue(map.replace(-2L, 1L, 3L));
+            Assert.assertFalse(map.remove(-2L, 1L));
+            Assert.assertTrue(map.remove(-2L, 3L));
+            Assert.assertNull(map.replace(-2L, 4L));
+
+            map.entrySet().removeIf(entry -> entry.getKey() >= 0);
+            Assert.assertEquals(1, map.size());
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+        }
+        finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test
+    public void poolWaitNotHoldStripeLock()
+            throws Exception
+    {
+        MemoryManager.removePool("concurrentMapBlocking");
+        //the slot table and one arena chunk
+        MemoryPool pool = MemoryManager.createPool("concurrentMapBlocking", 32 * 16 + 256 * 1024, MemoryPool.Policy.BLOCK);
+        pool.setMaxWaitMillis(10_000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ConcurrentOffHeapHashMap<String, byte[]> map = new ConcurrentOffHeapHashMap<>(String::getBytes, String::new, v -> v, v -> v, 1, pool);
+        try {
+            map.put("a", new byte[8]);
+            Future<byte[]> waiting = executor.submit(() -> map.put("b", new byte[100_000]));
+            TimeUnit.MILLISECONDS.sleep(100);
+            Assert.assertFalse(waiting.isDone());
+
+            long start = System.nanoTime();
+            Assert.assertEquals(8, map.get("a").length);
+            Assert.assertNull(map.putIfAbsent("c", new byte[8]));
+            map.close();
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(0, pool.getUsedBytes());
+        }
+        finally {
+            executor.shutdownNow();
+            map.close();
+            MemoryManager.removePool("concurrentMapBlocking");
+        }
+    }
+}
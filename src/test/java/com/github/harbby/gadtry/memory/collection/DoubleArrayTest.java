@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DoubleArrayTest
+{
+    @Test
+    public void doubleArrayTest()
+    {
+        try (DoubleArray array = new DoubleArray(4)) {
+            array.addAll(new double[] {-1.5, 0.0, 2.5, Double.NaN});
+            Assert.assertEquals(2, array.binarySearch(2.5));
+            Assert.assertEquals(3, array.binarySearch(Double.NaN));
+            Assert.assertEquals(-3, array.binarySearch(1.0));
+            array.set(0, 9.0);
+            double[] values = new double[2];
+            array.copyTo(0, values, 0, 2);
+            Assert.assertArrayEquals(new double[] {9.0, 0.0}, values, 0);
+            Assert.assertEquals(9.0 + 0.0 + 2.5, array.iterator().nextDouble() + array.get(1) + array.get(2), 0);
+        }
+    }
+}
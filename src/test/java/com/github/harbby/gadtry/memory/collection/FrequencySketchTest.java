@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrequencySketchTest
+{
+    @Test
+    public void incrementAndGrowTest()
+    {
+        try (FrequencySketch sketch = new FrequencySketch(MemoryManager.getDefaultPool(), 16)) {
+            for (int i = 0; i < 20; i++) {
+                sketch.increment(1);
+            }
+            sketch.increment(2);
+            Assert.assertEquals(15, sketch.frequency(1));
+            Assert.assertEquals(1, sketch.frequency(2));
+            Assert.assertEquals(0, sketch.frequency(3));
+
+            sketch.ensureCapacity(4096);
+            Assert.assertEquals(15, sketch.frequency(1));
+            Assert.assertEquals(1, sketch.frequency(2));
+        }
+    }
+
+    @Test
+    public void resetTest()
+    {
+        try (FrequencySketch sketch = new FrequencySketch(MemoryManager.getDefaultPool(), 64)) {
+            for (int i = 0; i < 8; i++) {
+                sketch.increment(-1);
+            }
+            //10 * 64 additions halve every counter
+            for (int i = 0; i < 640; i++) {
+                sketch.increment(i);
+            }
+            Assert.assertEquals(4, sketch.frequency(-1));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.PrimitiveIterator;
+
+public class IntArrayTest
+{
+    @Test
+    public void intArrayTest()
+    {
+        try (IntArray array = new IntArray()) {
+            for (int i = 0; i < 1000; i++) {
+                array.add(i);
+            }
+            Assert.assertEquals(500, array.binarySearch(500));
+            array.fill(0, 10, 7);
+            Assert.assertEquals(7, array.get(9));
+            int sum = 0;
+            PrimitiveIterator.OfInt iterator = array.iterator();
+            while (iterator.hasNext()) {
+                sum += iterator.nextInt();
+            }
+            Assert.assertEquals(499500 - 45 + 70, sum);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.PrimitiveIterator;
+
+public class LongArrayTest
+{
+    @Test
+    public void growTest()
+    {
+        MemoryManager.removePool("longArray");
+        MemoryPool pool = MemoryManager.createPool("longArray", Long.MAX_VALUE, MemoryPool.Policy.FAIL_FAST);
+        try (LongArray array = new LongArray(0, pool)) {
+            for (long i = 0; i < 100_000; i++) {
+                array.add(i * 2);
+            }
+            Assert.assertEquals(100_000, array.size());
+            Assert.assertTrue(array.capacity() >= 100_000);
+            Assert.assertEquals(array.capacity() * 8, pool.getReservedBytes());
+            Assert.assertEquals(199_998, array.get(99_999));
+            array.set(5, -1);
+            Assert.assertEquals(-1, array.get(5));
+
+            array.resize(100_010);
+            Assert.assertEquals(0, array.get(100_009));
+            array.resize(10);
+            Assert.assertEquals(10, array.size());
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test
+    public void bulkTest()
+    {
+        try (LongArray array = new LongArray(); LongArray dest = new LongArray()) {
+            array.addAll(new long[] {1, 3, 5, 7, 9});
+            Assert.assertEquals(2, array.binarySearch(5));
+            Assert.assertEquals(-1, array.binarySearch(0));
+            Assert.assertEquals(-4, array.binarySearch(6));
+            Assert.assertEquals(-6, array.binarySearch(10));
+
+            //overlapping copy
+            array.copy(0, array, 1, 4);
+            long[] values = new long[5];
+            array.copyTo(0, values, 0, 5);
+            Assert.assertArrayEquals(new long[] {1, 1, 3, 5, 7}, values);
+
+            dest.resize(3);
+            array.copy(2, dest, 0, 3);
+            dest.fill(1, 3, 42);
+            PrimitiveIterator.OfLong iterator = dest.iterator();
+            Assert.assertEquals(3, iterator.nextLong());
+            Assert.assertEquals(42, iterator.nextLong());
+            Assert.assertEquals(42, iterator.nextLong());
+            Assert.assertFalse(iterator.hasNext());
+            try {
+                dest.fill(0, 4, 1);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException e) {
+                Assert.assertEquals("range [0, 4) out of bounds 3", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void snapshotRestoreTest()
+            throws IOException
+    {
+        Path path = Files.createTempFile("gadtry-longArray", ".snapshot");
+        try (LongArray array = new LongArray(); LongArray restored = new LongArray()) {
+            for (long i = 0; i < 100_000; i++) {
+                array.add(i * 7);
+            }
+            array.snapshot(path);
+            restored.add(-1);
+            restored.restore(path);
+            Assert.assertEquals(array.size(), restored.size());
+            for (long i = 0; i < restored.size(); i++) {
+                Assert.assertEquals(i * 7, restored.get(i));
+            }
+            try (DoubleArray doubles = new DoubleArray()) {
+                doubles.restore(path);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals("snapshot type 3 does not match 5", e.getMessage());
+            }
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.LongStream;
+
+public class LongBitSetTest
+{
+    @Test
+    public void setGetTest()
+    {
+        try (LongBitSet bitSet = new LongBitSet(1000)) {
+            Assert.assertTrue(bitSet.set(0));
+            Assert.assertFalse(bitSet.set(0));
+            Assert.assertTrue(bitSet.set(999));
+            Assert.assertTrue(bitSet.get(999));
+            Assert.assertFalse(bitSet.get(998));
+            Assert.assertEquals(2, bitSet.cardinality());
+            Assert.assertEquals(999, bitSet.nextSetBit(1));
+            Assert.assertEquals(-1, bitSet.nextSetBit(1000));
+            Assert.assertTrue(bitSet.clear(0));
+            Assert.assertFalse(bitSet.clear(0));
+            Assert.assertEquals(1, bitSet.cardinality());
+            try {
+                bitSet.set(1000);
+                Assert.fail();
+            }
+            catch (IndexOutOfBoundsException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void largerThanIntTest()
+    {
+        long numBits = (1L << 31) + 100;
+        try (LongBitSet bitSet = new LongBitSet(numBits)) {
+            Assert.assertEquals((numBits + 63) / 64 * 8, bitSet.getMemorySize());
+            bitSet.set(numBits - 1);
+            bitSet.set(Integer.MAX_VALUE + 1L);
+            Assert.assertTrue(bitSet.get(numBits - 1));
+            Assert.assertFalse(bitSet.get(numBits - 2));
+            Assert.assertEquals(2, bitSet.cardinality());
+            Assert.assertEquals(Integer.MAX_VALUE + 1L, bitSet.nextSetBit(0));
+        }
+    }
+
+    @Test
+    public void concurrentSetTest()
+    {
+        try (LongBitSet bitSet = new LongBitSet(100_000)) {
+            LongStream.range(0, 100_000).parallel().forEach(bitSet::set);
+            Assert.assertEquals(100_000, bitSet.cardinality());
+        }
+    }
+
+    @Test
+    public void orAndTest()
+    {
+        try (LongBitSet a = new LongBitSet(200); LongBitSet b = new LongBitSet(200)) {
+            a.set(1);
+            a.set(100);
+            b.set(100);
+            b.set(150);
+            a.or(b);
+            Assert.assertEquals(3, a.cardinality());
+            a.and(b);
+            Assert.assertEquals(2, a.cardinality());
+            Assert.assertFalse(a.get(1));
+        }
+    }
+
+    @Test
+    public void fileChannelTest()
+            throws IOException
+    {
+        File file = File.createTempFile("gadtry-bitset", ".bin");
+        try (LongBitSet bitSet = new LongBitSet(10_000)) {
+            for (long i = 0; i < 10_000; i += 7) {
+                bitSet.set(i);
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                bitSet.writeTo(channel);
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    LongBitSet copy = LongBitSet.readFrom(channel)) {
+                Assert.assertEquals(10_000, copy.length());
+                Assert.assertEquals(bitSet.cardinality(), copy.cardinality());
+                Assert.assertTrue(copy.get(7));
+                Assert.assertFalse(copy.get(8));
+            }
+        }
+        finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+}
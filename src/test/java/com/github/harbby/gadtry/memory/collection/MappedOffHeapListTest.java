@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MappedOffHeapListTest
+{
+    private static MappedOffHeapList<String> open(File file)
+    {
+        return new MappedOffHeapList<>(file, String::getBytes, bytes -> new String(bytes, StandardCharsets.UTF_8), 4096);
+    }
+
+    @Test
+    public void reopenTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("gadtry-mapped").toFile();
+        File file = new File(dir, "list.data");
+        List<String> expected = new ArrayList<>();
+        try (MappedOffHeapList<String> list = open(file)) {
+            for (int i = 0; i < 10_000; i++) {
+                String value = "value_" + i;
+                list.add(value);
+                expected.add(value);
+            }
+            Assert.assertEquals(expected, list);
+        }
+
+        try (MappedOffHeapList<String> list = open(file)) {
+            Assert.assertEquals(10_000, list.size());
+            Assert.assertEquals(expected, list);
+            list.add("last");
+            expected.add("last");
+            list.flush();
+        }
+        try (MappedOffHeapList<String> list = open(file)) {
+            Assert.assertEquals(expected, list);
+            list.clear();
+            Assert.assertTrue(list.isEmpty());
+        }
+        try (MappedOffHeapList<String> list = open(file)) {
+            Assert.assertTrue(list.isEmpty());
+        }
+        Assert.assertEquals(0, file.length());
+        Assert.assertTrue(file.delete() && new File(dir, "list.data.index").delete() && dir.delete());
+    }
+
+    @Test
+    public void regionBoundaryTest()
+            throws IOException
+    {
+        File file = File.createTempFile("gadtry-mapped", ".data");
+        try (MappedOffHeapList<String> list = open(file)) {
+            char[] chars = new char[3000];
+            for (int i = 0; i < 10; i++) {
+                Arrays.fill(chars, (char) ('a' + i));
+                list.add(new String(chars));
+            }
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(3000, list.get(i).length());
+                Assert.assertEquals('a' + i, list.get(i).charAt(2999));
+            }
+            try {
+                list.add(new String(new char[4093]));
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("value size 4093 exceeds region size 4096", e.getMessage());
+            }
+            try {
+                list.set(0, "a");
+                Assert.fail();
+            }
+            catch (UnsupportedOperationException ignored) {
+            }
+        }
+        finally {
+            Assert.assertTrue(file.delete() && new File(file.getPath() + ".index").delete());
+        }
+    }
+
+    @Test
+    public void badHeaderTest()
+            throws IOException
+    {
+        File file = File.createTempFile("gadtry-mapped", ".data");
+        File index = new File(file.getPath() + ".index");
+        byte[] data = "not a list".getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), data);
+        ByteBuffer header = ByteBuffer.allocate(48).order(ByteOrder.nativeOrder());
+        header.putInt(0x47444C31).putInt(1).putInt(3000).putInt(0).putLong(1).putLong(data.length);
+        Files.write(index.toPath(), header.array());
+        try {
+            open(file);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("has a bad region size 3000"));
+        }
+        finally {
+            //nothing was truncated or rewritten
+            Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+            Assert.assertArrayEquals(header.array(), Files.readAllBytes(index.toPath()));
+            Assert.assertTrue(file.delete() && index.delete());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serdes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OffHeapCacheTest
+{
+    private static final String POOL_NAME = "OffHeapCacheTest";
+    private MemoryPool pool;
+
+    @Before
+    public void before()
+    {
+        MemoryManager.removePool(POOL_NAME);
+        this.pool = MemoryManager.createPool(POOL_NAME, 16 << 20, MemoryPool.Policy.FAIL_FAST);
+    }
+
+    @After
+    public void after()
+    {
+        MemoryManager.removePool(POOL_NAME);
+    }
+
+    @Test
+    public void getPutRemoveTest()
+    {
+        try (OffHeapCache<String, String> cache = OffHeapCache.<String, String>builder(Serdes.stringSerde()).memoryPool(pool).build()) {
+            Assert.assertNull(cache.get("a"));
+            cache.put("a", "value_a");
+            cache.put("b", "value_b");
+            Assert.assertEquals("value_a", cache.get("a"));
+            Assert.assertEquals(2, cache.size());
+            Assert.assertEquals(1, cache.getHitCount());
+            Assert.assertEquals(1, cache.getMissCount());
+            Assert.assertEquals(0.5D, cache.getHitRate(), 0D);
+
+            cache.put("a", "a2");
+            Assert.assertEquals("a2", cache.get("a"));
+            Assert.assertTrue(cache.remove("a"));
+            Assert.assertFalse(cache.remove("a"));
+            Assert.assertFalse(cache.containsKey("a"));
+            Assert.assertEquals("x", cache.get("x", key -> key));
+            Assert.assertTrue(cache.containsKey("x"));
+            cache.clear();
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(0, cache.getUsedBytes());
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void sizeEvictionTest()
+    {
+        List<String> removed = new ArrayList<>();
+        //every long value is 8 bytes
+        try (OffHeapCache<Integer, Long> cache = OffHeapCache.<Integer, Long>builder(Serdes.longSerde())
+                .memoryPool(pool)
+                .maximumBytes(8 * 4)
+                .removalListener((key, value, cause) -> removed.add(key + "=" + value + ":" + cause))
+                .build()) {
+            for (int i = 0; i < 4; i++) {
+                cache.put(i, (long) i);
+            }
+            Assert.assertEquals(32, cache.getUsedBytes());
+            //hot keys get a second chance
+            cache.get(0);
+            cache.get(1);
+            cache.put(4, 4L);
+            Assert.assertEquals(Arrays.asList("2=2:SIZE"), removed);
+            cache.put(5, 5L);
+            Assert.assertEquals(Arrays.asList("2=2:SIZE", "3=3:SIZE"), removed);
+            Assert.assertEquals(4, cache.size());
+            Assert.assertEquals(2, cache.getEvictionCount());
+            Assert.assertTrue(cache.getUsedBytes() <= cache.getMaximumBytes());
+
+            cache.put(5, 6L);
+            Assert.assertEquals("5=5:REPLACED", removed.get(2));
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void scanResistanceTest()
+    {
+        try (OffHeapCache<Integer, Long> cache = OffHeapCache.<Integer, Long>builder(Serdes.longSerde())
+                .memoryPool(pool)
+                .maximumBytes(8 * 100)
+                .build()) {
+            for (int i = 0; i < 50; i++) {
+                cache.put(i, (long) i);
+                cache.get(i);
+            }
+            //one pass over cold keys
+            for (int i = 1000; i < 1200; i++) {
+                cache.put(i, (long) i);
+            }
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals(Long.valueOf(i), cache.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void expireAfterWriteTest()
+    {
+        AtomicLong now = new AtomicLong(0);
+        List<String> removed = new ArrayList<>();
+        try (OffHeapCache<String, String> cache = OffHeapCache.<String, String>builder(Serdes.stringSerde())
+                .memoryPool(pool)
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .ticker(now::get)
+                .removalListener((key, value, cause) -> removed.add(key + ":" + cause))
+                .build()) {
+            cache.put("a", "1");
+            now.set(TimeUnit.SECONDS.toNanos(5));
+            cache.put("b", "2");
+            Assert.assertEquals("1", cache.get("a"));
+            now.set(TimeUnit.SECONDS.toNanos(10));
+            Assert.assertNull(cache.get("a"));
+            Assert.assertTrue(cache.containsKey("b"));
+            Assert.assertEquals(Arrays.asList("a:EXPIRED"), removed);
+
+            now.set(TimeUnit.SECONDS.toNanos(20));
+            cache.cleanUp();
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(2, cache.getExpiredCount());
+            Assert.assertEquals(0, cache.getEvictionCount());
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void admissionTest()
+    {
+        List<String> removed = new ArrayList<>();
+        try (OffHeapCache<Integer, Long> cache = OffHeapCache.<Integer, Long>builder(Serdes.longSerde())
+                .memoryPool(pool)
+                .maximumBytes(8 * 2)
+                .removalListener((key, value, cause) -> removed.add(key + "=" + value + ":" + cause))
+                .build()) {
+            cache.put(1, 1L);
+            cache.put(2, 2L);
+            for (int i = 0; i < 3; i++) {
+                cache.get(1);
+                cache.get(2);
+            }
+            //the clock clears the reference bits, then the popular victim rejects the new key
+            cache.put(3, 3L);
+            Assert.assertEquals(Arrays.asList("3=3:SIZE"), removed);
+            Assert.assertNull(cache.get(3));
+            Assert.assertEquals(Long.valueOf(1), cache.get(1));
+            Assert.assertEquals(Long.valueOf(2), cache.get(2));
+        }
+    }
+
+    @Test
+    public void admissionByFirstVictimTest()
+    {
+        List<String> removed = new ArrayList<>();
+        try (OffHeapCache<Integer, byte[]> cache = OffHeapCache.<Integer, byte[]>builder(Serdes.byteArraySerde())
+                .memoryPool(pool)
+                .maximumBytes(8 * 3)
+                .removalListener((key, value, cause) -> removed.add(key + ":" + cause))
+                .build()) {
+            cache.put(1, new byte[8]);
+            cache.put(2, new byte[8]);
+            cache.put(3, new byte[8]);
+            for (int i = 0; i < 3; i++) {
+                cache.get(2);
+                cache.get(3);
+            }
+            //the new key needs two victims, it wins against the cold first one and evicts the hot second one too
+            cache.put(4, new byte[16]);
+            Assert.assertEquals(Arrays.asList("1:SIZE", "2:SIZE"), removed);
+            Assert.assertEquals(16, cache.get(4).length);
+            Assert.assertEquals(8, cache.get(3).length);
+            Assert.assertEquals(24, cache.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void putFailureReleasesValueTest()
+    {
+        MemoryManager.removePool(POOL_NAME + "Small");
+        //the slot table of 16 entries can not grow under this budget
+        MemoryPool smallPool = MemoryManager.createPool(POOL_NAME + "Small", 1100, MemoryPool.Policy.FAIL_FAST);
+        try (OffHeapCache<Integer, Long> cache = OffHeapCache.<Integer, Long>builder(Serdes.longSerde())
+                .memoryPool(smallPool)
+                .build()) {
+            for (int i = 0; i < 16; i++) {
+                cache.put(i, (long) i);
+            }
+            long reserved = smallPool.getReservedBytes();
+            try {
+                cache.put(16, 16L);
+                Assert.fail();
+            }
+            catch (MemoryBudgetException ignored) {
+            }
+            Assert.assertEquals(reserved, smallPool.getReservedBytes());
+            Assert.assertEquals(16, cache.size());
+            Assert.assertEquals(Long.valueOf(15), cache.get(15));
+        }
+        Assert.assertEquals(0, smallPool.getReservedBytes());
+        MemoryManager.removePool(POOL_NAME + "Small");
+    }
+
+    @Test
+    public void tooBigValueTest()
+    {
+        try (OffHeapCache<String, byte[]> cache = OffHeapCache.<String, byte[]>builder(Serdes.byteArraySerde())
+                .memoryPool(pool)
+                .maximumBytes(100)
+                .build()) {
+            cache.put("a", new byte[10]);
+            cache.put("a", new byte[200]);
+            Assert.assertNull(cache.get("a"));
+            Assert.assertEquals(0, cache.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void manyEntriesTest()
+    {
+        try (OffHeapCache<Integer, Long> cache = OffHeapCache.<Integer, Long>builder(Serdes.longSerde())
+                .memoryPool(pool)
+                .maximumBytes(8 * 1000)
+                .build()) {
+            for (int i = 0; i < 10_000; i++) {
+                cache.put(i, (long) i * 3);
+            }
+            Assert.assertEquals(1000, cache.size());
+            Assert.assertEquals(9000, cache.getEvictionCount());
+            int hits = 0;
+            for (int i = 0; i < 10_000; i++) {
+                Long value = cache.get(i);
+                if (value != null) {
+                    Assert.assertEquals(i * 3L, (long) value);
+                    hits++;
+                }
+            }
+            Assert.assertEquals(1000, hits);
+        }
+        Assert.assertEquals(0, pool.getUsedBytes());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class OffHeapHashMapTest
+{
+    private static OffHeapHashMap<String, String> createStringMap()
+    {
+        return createStringMap(16);
+    }
+
+    private static OffHeapHashMap<String, String> createStringMap(int initialCapacity)
+    {
+        return new OffHeapHashMap<>(
+                (String str) -> str.getBytes(UTF_8),
+                (byte[] bytes) -> new String(bytes, UTF_8),
+                (String str) -> str.getBytes(UTF_8),
+                (byte[] bytes) -> new String(bytes, UTF_8),
+                initialCapacity);
+    }
+
+    @Test
+    public void putGetRemove()
+    {
+        try (OffHeapHashMap<String, String> map = createStringMap()) {
+            Assert.assertNull(map.put("a1", "harbby"));
+            Assert.assertEquals("harbby", map.put("a1", "gadtry"));
+            Assert.assertEquals("gadtry", map.get("a1"));
+            Assert.assertNull(map.get("a2"));
+            Assert.assertTrue(map.containsKey("a1"));
+            Assert.assertEquals(1, map.size());
+
+            Assert.assertEquals("gadtry", map.remove("a1"));
+            Assert.assertNull(map.remove("a1"));
+            Assert.assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void resizeAndCompareWithHashMap()
+    {
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(0);
+        try (OffHeapHashMap<String, String> map = createStringMap()) {
+            for (int i = 0; i < 20_000; i++) {
+                String key = "key" + random.nextInt(5000);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        Assert.assertEquals(expected.remove(key), map.remove(key));
+                        break;
+                    default:
+                        String value = key + "_" + i;
+                        Assert.assertEquals(expected.put(key, value), map.put(key, value));
+                }
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(map, expected);
+        }
+    }
+
+    @Test
+    public void iteratorRemove()
+    {
+        Map<String, String> expected = new HashMap<>();
+        try (OffHeapHashMap<String, String> map = createStringMap()) {
+            for (int i = 0; i < 10_000; i++) {
+                expected.put("k" + i, "v" + i);
+                map.put("k" + i, "v" + i);
+            }
+            expected.entrySet().removeIf(entry -> entry.getKey().hashCode() % 3 == 0);
+            map.entrySet().removeIf(entry -> entry.getKey().hashCode() % 3 == 0);
+            Assert.assertEquals(expected, map);
+
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+            Assert.assertNull(map.get("k1"));
+        }
+    }
+
+    @Test
+    public void iteratorRemoveAfterHasNextOnWrappedProbeRun()
+    {
+        //table capacity is 16, all keys have their home slot at the end so the probe run wraps around
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < 8; i++) {
+            byte[] bytes = ("k" + i).getBytes(UTF_8);
+            if ((OffHeapHashMap.hash(bytes, BYTE_ARRAY_OFFSET, bytes.length) & 15) >= 13) {
+                keys.add("k" + i);
+            }
+        }
+        //remove every subset of the keys, hasNext() always runs before remove()
+        for (int removeMask = 0; removeMask < 1 << keys.size(); removeMask++) {
+            Map<String, String> expected = new HashMap<>();
+            try (OffHeapHashMap<String, String> map = createStringMap(12)) {
+                for (String key : keys) {
+                    map.put(key, key);
+                    expected.put(key, key);
+                }
+                List<String> visited = new ArrayList<>();
+                Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    String key = iterator.next().getKey();
+                    visited.add(key);
+                    iterator.hasNext();
+                    if ((removeMask >> keys.indexOf(key) & 1) == 1) {
+                        iterator.remove();
+                        expected.remove(key);
+                    }
+                }
+                visited.sort(String::compareTo);
+                Assert.assertEquals(keys.stream().sorted().collect(Collectors.toList()), visited);
+                Assert.assertEquals(expected, map);
+            }
+        }
+    }
+
+    @Test
+    public void closeTest()
+    {
+        OffHeapHashMap<String, String> map = createStringMap();
+        map.put("a1", "harbby");
+        map.close();
+        try {
+            map.get("a1");
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("map is closed", e.getMessage());
+        }
+    }
+}
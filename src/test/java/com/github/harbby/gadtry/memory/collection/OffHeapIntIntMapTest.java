@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class OffHeapIntIntMapTest
+{
+    @Test
+    public void compareWithHashMap()
+    {
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+        try (OffHeapIntIntMap map = new OffHeapIntIntMap()) {
+            for (int i = 0; i < 100_000; i++) {
+                int key = random.nextInt();
+                if (random.nextInt(3) == 0 && !expected.isEmpty()) {
+                    key = expected.keySet().iterator().next();
+                    Assert.assertEquals((int) expected.remove(key), map.remove(key));
+                }
+                else {
+                    Assert.assertEquals((int) expected.getOrDefault(key, 0), map.put(key, i));
+                    expected.put(key, i);
+                }
+            }
+            Map<Integer, Integer> actual = new HashMap<>();
+            map.forEach(actual::put);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void closeTest()
+    {
+        OffHeapIntIntMap map = new OffHeapIntIntMap();
+        map.put(1, 1);
+        map.close();
+        try {
+            map.get(1);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("map is closed", e.getMessage());
+        }
+    }
+}
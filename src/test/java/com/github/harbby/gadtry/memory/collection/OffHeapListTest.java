@@ -15,9 +15,18 @@
  */
 package com.github.harbby.gadtry.memory.collection;
 
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.Serdes;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 
@@ -63,4 +72,84 @@ public class OffHeapListTest
 
         Assert.assertEquals(list.size(), 2);
     }
+
+    @Test
+    public void arenaListTest()
+    {
+        try (MemoryArena arena = new MemoryArena()) {
+            List<String> list = new OffHeapList<>(String::getBytes, String::new, arena);
+            list.add("2019-06-01 harbby");
+            list.add("001");
+            Assert.assertEquals(list.remove(0), "2019-06-01 harbby");
+            Assert.assertEquals(list, Arrays.asList("001"));
+        }
+    }
+
+    @Test
+    public void serdeListTest()
+    {
+        List<Tuple2<String, Long>> list = new OffHeapList<>(Serdes.tuple2Serde(Serdes.stringSerde(), Serdes.longSerde()));
+        list.add(Tuple2.of("a", 1L));
+        list.add(Tuple2.of("世界", 2L));
+        Assert.assertEquals(Tuple2.of("a", 1L), list.set(0, Tuple2.of("b", 3L)));
+        Assert.assertEquals(Arrays.asList(Tuple2.of("b", 3L), Tuple2.of("世界", 2L)), list);
+    }
+
+    @Test
+    public void snapshotRestoreTest()
+            throws IOException
+    {
+        Path path = Files.createTempFile("gadtry-list", ".snapshot");
+        try {
+            OffHeapList<String> list = new OffHeapList<>(Serdes.stringSerde());
+            StringBuilder big = new StringBuilder();
+            for (int i = 0; i < 100_000; i++) {
+                big.append(i % 10);
+            }
+            for (int i = 0; i < 10_000; i++) {
+                list.add("value" + i);
+            }
+            list.add(big.toString());
+            list.add("");
+            list.snapshot(path);
+            Assert.assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+
+            OffHeapList<String> restored = new OffHeapList<>(Serdes.stringSerde());
+            restored.add("dropped");
+            restored.restore(path);
+            Assert.assertEquals(list, restored);
+
+            //flip one payload byte
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1);
+                channel.read(buffer, 1000);
+                buffer.put(0, (byte) (buffer.get(0) ^ 1));
+                buffer.rewind();
+                channel.write(buffer, 1000);
+            }
+            try {
+                restored.restore(path);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertTrue(e.getMessage().endsWith("checksum mismatch"));
+                Assert.assertTrue(restored.isEmpty());
+            }
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 1);
+            }
+            try {
+                restored.restore(path);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertTrue(e.getMessage().endsWith("is truncated"));
+            }
+            list.clear();
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
 }
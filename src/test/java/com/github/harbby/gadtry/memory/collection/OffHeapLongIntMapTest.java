@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapLongIntMapTest
+{
+    @Test
+    public void addToCounter()
+    {
+        try (OffHeapLongIntMap map = new OffHeapLongIntMap()) {
+            for (long i = 0; i < 10_000; i++) {
+                map.addTo(i % 100 + Long.MAX_VALUE / 2, 1);
+            }
+            Assert.assertEquals(100, map.size());
+            for (long i = 0; i < 100; i++) {
+                Assert.assertEquals(100, map.get(i + Long.MAX_VALUE / 2));
+            }
+            Assert.assertEquals(0, map.get(1L));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class OffHeapLongLongMapTest
+{
+    @Test
+    public void putGetAddTo()
+    {
+        try (OffHeapLongLongMap map = new OffHeapLongLongMap()) {
+            Assert.assertEquals(0, map.put(1L, 10L));
+            Assert.assertEquals(10, map.put(1L, 11L));
+            Assert.assertEquals(11, map.addTo(1L, 5L));
+            Assert.assertEquals(16, map.get(1L));
+            Assert.assertEquals(0, map.addTo(2L, 5L));
+            Assert.assertEquals(5, map.get(2L));
+            Assert.assertEquals(-1, map.getOrDefault(3L, -1L));
+            Assert.assertEquals(2, map.size());
+        }
+    }
+
+    @Test
+    public void zeroKeyAndNoEntryValue()
+    {
+        try (OffHeapLongLongMap map = new OffHeapLongLongMap(16, -1L)) {
+            Assert.assertEquals(-1, map.get(0L));
+            Assert.assertFalse(map.containsKey(0L));
+            Assert.assertEquals(-1, map.put(0L, 7L));
+            Assert.assertTrue(map.containsKey(0L));
+            Assert.assertEquals(7, map.get(0L));
+            Assert.assertEquals(1, map.size());
+            Assert.assertEquals(7, map.remove(0L));
+            Assert.assertEquals(-1, map.remove(0L));
+            Assert.assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void compareWithHashMap()
+    {
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(0);
+        try (OffHeapLongLongMap map = new OffHeapLongLongMap()) {
+            for (int i = 0; i < 100_000; i++) {
+                long key = random.nextInt(10_000) - 5000;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        Assert.assertEquals((long) expected.getOrDefault(key, 0L), map.remove(key));
+                        expected.remove(key);
+                        break;
+                    default:
+                        Assert.assertEquals((long) expected.getOrDefault(key, 0L), map.addTo(key, i));
+                        expected.merge(key, (long) i, Long::sum);
+                }
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Map<Long, Long> actual = new HashMap<>();
+            map.forEach(actual::put);
+            Assert.assertEquals(expected, actual);
+
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void snapshotRestoreTest()
+            throws IOException
+    {
+        Path path = Files.createTempFile("gadtry-longLongMap", ".snapshot");
+        try (OffHeapLongLongMap map = new OffHeapLongLongMap(); OffHeapLongLongMap restored = new OffHeapLongLongMap()) {
+            for (long i = 0; i < 50_000; i++) {
+                map.put(i * 31, i);
+            }
+            map.snapshot(path);
+            restored.put(-5L, 5L);
+            restored.restore(path);
+            Assert.assertEquals(map.size(), restored.size());
+            Assert.assertFalse(restored.containsKey(-5L));
+            for (long i = 0; i < 50_000; i++) {
+                Assert.assertEquals(i, restored.get(i * 31));
+            }
+            Assert.assertEquals(0L, restored.get(0L));
+            Assert.assertTrue(restored.containsKey(0L));
+            restored.put(1L, 1L);
+            Assert.assertEquals(50_001, restored.size());
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class OffHeapLongObjectMapTest
+{
+    @Test
+    public void putGetRemove()
+    {
+        try (OffHeapLongObjectMap<String> map = new OffHeapLongObjectMap<>(
+                (String str) -> str.getBytes(UTF_8),
+                (byte[] bytes) -> new String(bytes, UTF_8))) {
+            for (long i = 0; i < 1000; i++) {
+                Assert.assertNull(map.put(i, "value" + i));
+            }
+            Assert.assertEquals("value0", map.put(0L, "zero"));
+            Assert.assertEquals("zero", map.get(0L));
+            Assert.assertEquals("value999", map.remove(999L));
+            Assert.assertNull(map.get(999L));
+            Assert.assertEquals(999, map.size());
+
+            Map<Long, String> actual = new HashMap<>();
+            map.forEach(actual::put);
+            Assert.assertEquals(999, actual.size());
+            Assert.assertEquals("value998", actual.get(998L));
+
+            map.clear();
+            Assert.assertNull(map.get(1L));
+        }
+    }
+
+    @Test
+    public void putFailureReleasesValue()
+    {
+        MemoryManager.removePool("longObjectMapSmall");
+        //one arena chunk, the slot table can not grow past 2048 bytes
+        MemoryPool pool = MemoryManager.createPool("longObjectMapSmall", MemoryArena.DEFAULT_CHUNK_SIZE + 4096, MemoryPool.Policy.FAIL_FAST);
+        try (OffHeapLongObjectMap<String> map = new OffHeapLongObjectMap<>(
+                (String str) -> str.getBytes(UTF_8),
+                (byte[] bytes) -> new String(bytes, UTF_8), 8, pool)) {
+            long key = 0;
+            while (true) {
+                long used = pool.getUsedBytes();
+                try {
+                    map.put(key, "value" + key);
+                }
+                catch (MemoryBudgetException e) {
+                    Assert.assertEquals(used, pool.getUsedBytes());
+                    break;
+                }
+                key++;
+            }
+            Assert.assertEquals(key, map.size());
+            Assert.assertEquals("value0", map.get(0L));
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+        MemoryManager.removePool("longObjectMapSmall");
+    }
+}
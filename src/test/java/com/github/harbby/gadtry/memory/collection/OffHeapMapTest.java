@@ -17,11 +17,22 @@ package com.github.harbby.gadtry.memory.collection;
 
 import com.github.harbby.gadtry.collection.mutable.MutableMap;
 import com.github.harbby.gadtry.collection.mutable.MutableSet;
+import com.github.harbby.gadtry.memory.MemoryArena;
+import com.github.harbby.gadtry.memory.Serdes;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -103,7 +114,130 @@ public class OffHeapMapTest
         );
         offHeapMap.put("a1", 123);
         offHeapMap.put("a1", 456);
-        Assert.assertEquals(offHeapMap.values(), Arrays.asList(456));
+        Assert.assertEquals(new ArrayList<>(offHeapMap.values()), Arrays.asList(456));
         Assert.assertEquals(offHeapMap.keySet(), MutableSet.of("a1"));
     }
+
+    @Test
+    public void arenaMapTest()
+    {
+        try (MemoryArena arena = new MemoryArena()) {
+            final Map<String, String> offHeapMap = new OffHeapMap<>(
+                    (String str) -> str.getBytes(UTF_8),
+                    (byte[] bytes) -> new String(bytes, UTF_8),
+                    arena);
+            offHeapMap.put("a1", msg);
+            Assert.assertEquals(offHeapMap.put("a1", "a1"), msg);
+            Assert.assertEquals(offHeapMap.get("a1"), "a1");
+            offHeapMap.clear();
+        }
+    }
+
+    @Test
+    public void serdeMapTest()
+    {
+        try (MemoryArena arena = new MemoryArena()) {
+            final Map<String, String> offHeapMap = new OffHeapMap<>(Serdes.stringSerde(), arena);
+            offHeapMap.put("a1", msg);
+            Assert.assertEquals(offHeapMap.put("a1", "a1"), msg);
+            Assert.assertEquals(offHeapMap.get("a1"), "a1");
+            Assert.assertEquals(offHeapMap.remove("a1"), "a1");
+            Assert.assertTrue(offHeapMap.isEmpty());
+        }
+    }
+
+    @Test
+    public void lazyViewsTest()
+    {
+        Map<Integer, Long> offHeapMap = new OffHeapMap<>(Serdes.longSerde());
+        for (int i = 0; i < 10_000; i++) {
+            offHeapMap.put(i, (long) i);
+        }
+        Assert.assertEquals(49995000L, offHeapMap.entrySet().parallelStream().mapToLong(Map.Entry::getValue).sum());
+        Assert.assertEquals(49995000L, offHeapMap.values().parallelStream().mapToLong(Long::longValue).sum());
+        Assert.assertEquals(10_000, offHeapMap.entrySet().spliterator().getExactSizeIfKnown());
+        Assert.assertNotNull(offHeapMap.entrySet().spliterator().trySplit());
+
+        Iterator<Map.Entry<Integer, Long>> iterator = offHeapMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Long> entry = iterator.next();
+            if (entry.getKey() % 2 == 0) {
+                iterator.remove();
+            }
+            else {
+                entry.setValue(-entry.getValue());
+            }
+        }
+        Assert.assertEquals(5_000, offHeapMap.size());
+        Assert.assertEquals(Long.valueOf(-1L), offHeapMap.get(1));
+        Assert.assertTrue(offHeapMap.entrySet().contains(new AbstractMap.SimpleEntry<>(3, -3L)));
+        Assert.assertTrue(offHeapMap.keySet().remove(3));
+        Assert.assertFalse(offHeapMap.containsKey(3));
+
+        offHeapMap.clear();
+        Assert.assertTrue(offHeapMap.isEmpty());
+    }
+
+    @Test
+    public void snapshotRestoreTest()
+            throws IOException
+    {
+        Path path = Files.createTempFile("gadtry-map", ".snapshot");
+        try {
+            OffHeapMap<Integer, String> map = new OffHeapMap<>(Serdes.stringSerde());
+            Map<Integer, String> expected = new HashMap<>();
+            for (int i = 0; i < 10_000; i++) {
+                map.put(i, "value" + i);
+                expected.put(i, "value" + i);
+            }
+            map.snapshot(path, Serdes.intSerde());
+
+            OffHeapMap<Integer, String> restored = new OffHeapMap<>(Serdes.stringSerde(), new MemoryArena());
+            restored.put(-1, "dropped");
+            restored.restore(path, Serdes.intSerde());
+            Assert.assertEquals(expected, restored);
+            try {
+                new OffHeapList<>(Serdes.stringSerde()).restore(path);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals("snapshot type 2 does not match 1", e.getMessage());
+            }
+            map.clear();
+            restored.clear();
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void restoreBadRecordSizeTest()
+            throws IOException
+    {
+        Path path = Files.createTempFile("gadtry-map", ".snapshot");
+        try {
+            OffHeapMap<Integer, String> map = new OffHeapMap<>(Serdes.stringSerde());
+            map.put(1, "value");
+            map.snapshot(path, Serdes.intSerde());
+            map.clear();
+            //the size of the first key follows the header
+            byte[] bytes = Files.readAllBytes(path);
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).putInt(SnapshotWriter.HEADER_SIZE, Integer.MAX_VALUE);
+            Files.write(path, bytes);
+
+            OffHeapMap<Integer, String> restored = new OffHeapMap<>(Serdes.stringSerde());
+            try {
+                restored.restore(path, Serdes.intSerde());
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals("snapshot " + path + " has a bad record size " + Integer.MAX_VALUE, e.getMessage());
+            }
+            Assert.assertTrue(restored.isEmpty());
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
 }
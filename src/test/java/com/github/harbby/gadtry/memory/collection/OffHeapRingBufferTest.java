@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.UnsafeHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.harbby.gadtry.memory.UnsafeHelper.BYTE_ARRAY_OFFSET;
+
+public class OffHeapRingBufferTest
+{
+    private static String read(long address, int length)
+    {
+        byte[] bytes = new byte[length];
+        UnsafeHelper.copyMemory(null, address, bytes, BYTE_ARRAY_OFFSET, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void wrapAroundTest()
+    {
+        try (OffHeapRingBuffer ringBuffer = new OffHeapRingBuffer(128)) {
+            Assert.assertEquals(16, ringBuffer.maxRecordLength());
+            List<String> records = new ArrayList<>();
+            for (int round = 0; round < 100; round++) {
+                //13 bytes + 8 header = 24 aligned, the fifth record forces padding at the end
+                for (int i = 0; i < 5; i++) {
+                    Assert.assertTrue(ringBuffer.offer(("record-" + round + "-" + i % 10).getBytes(StandardCharsets.UTF_8)));
+                }
+                Assert.assertFalse(ringBuffer.offer(new byte[16]));
+                Assert.assertEquals(2, ringBuffer.drain((address, length) -> records.add(read(address, length)), 2));
+                Assert.assertEquals(3, ringBuffer.drain((address, length) -> records.add(read(address, length))));
+                Assert.assertTrue(ringBuffer.isEmpty());
+                Assert.assertEquals(0, ringBuffer.drain((address, length) -> Assert.fail()));
+            }
+            Assert.assertEquals(500, records.size());
+            Assert.assertEquals("record-99-4", records.get(499));
+            try {
+                ringBuffer.offer(new byte[17]);
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("record length 17 exceeds max record length 16", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void failedHandlerKeepsRecord()
+    {
+        try (OffHeapRingBuffer ringBuffer = new OffHeapRingBuffer(128)) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(ringBuffer.offer(("record-" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            List<String> records = new ArrayList<>();
+            try {
+                ringBuffer.drain((address, length) -> {
+                    String record = read(address, length);
+                    if (record.equals("record-1")) {
+                        throw new IllegalStateException("handler failed");
+                    }
+                    records.add(record);
+                });
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("handler failed", e.getMessage());
+            }
+            Assert.assertEquals(2, ringBuffer.drain((address, length) -> records.add(read(address, length))));
+            Assert.assertEquals(Arrays.asList("record-0", "record-1", "record-2"), records);
+            Assert.assertTrue(ringBuffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void multiProducerTest()
+            throws Exception
+    {
+        final int producers = 4;
+        final int number = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try (OffHeapRingBuffer ringBuffer = new OffHeapRingBuffer(4096)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                final long producer = p;
+                futures.add(executor.submit(() -> {
+                    long[] record = new long[2];
+                    for (int i = 0; i < number; i++) {
+                        record[0] = producer;
+                        record[1] = i;
+                        while (!ringBuffer.offer(record, UnsafeHelper.LONG_ARRAY_OFFSET, 16)) {
+                            Thread.yield();
+                        }
+                    }
+                }));
+            }
+            long[] expected = new long[producers];
+            int received = 0;
+            while (received < producers * number) {
+                received += ringBuffer.drain((address, length) -> {
+                    Assert.assertEquals(16, length);
+                    int producer = (int) UnsafeHelper.getUnsafe().getLong(address);
+                    Assert.assertEquals(expected[producer]++, UnsafeHelper.getUnsafe().getLong(address + 8));
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            for (long count : expected) {
+                Assert.assertEquals(number, count);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import com.github.harbby.gadtry.memory.Serde;
+import com.github.harbby.gadtry.memory.Serdes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class OffHeapSorterTest
+{
+    private static final Serde<Tuple2<Long, String>> SERDE = Serdes.tuple2Serde(Serdes.longSerde(), Serdes.stringSerde());
+    private static final Comparator<Tuple2<Long, String>> COMPARATOR = Comparator.comparing((Tuple2<Long, String> t) -> t.f1())
+            .thenComparing(Tuple2::f2);
+
+    private static List<Tuple2<Long, String>> randomRecords(int number)
+    {
+        Random random = new Random(0);
+        List<Tuple2<Long, String>> records = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            //few distinct keys, so many prefixes tie and the comparator decides
+            records.add(Tuple2.of((long) random.nextInt(1000) - 500, "v" + random.nextInt()));
+        }
+        return records;
+    }
+
+    private static void check(List<Tuple2<Long, String>> records, Iterator<Tuple2<Long, String>> iterator)
+    {
+        records.sort(COMPARATOR);
+        for (Tuple2<Long, String> record : records) {
+            Assert.assertEquals(record, iterator.next());
+        }
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void inMemorySortTest()
+    {
+        List<Tuple2<Long, String>> records = randomRecords(10_000);
+        try (OffHeapSorter<Tuple2<Long, String>> sorter = new OffHeapSorter<>(SERDE, Tuple2::f1, COMPARATOR, 64 * 1024 * 1024)) {
+            records.forEach(sorter::insert);
+            Iterator<Tuple2<Long, String>> iterator = sorter.sortedIterator();
+            Assert.assertEquals(0, sorter.getSpillCount());
+            check(records, iterator);
+        }
+    }
+
+    @Test
+    public void externalSortTest()
+    {
+        List<Tuple2<Long, String>> records = randomRecords(100_000);
+        try (OffHeapSorter<Tuple2<Long, String>> sorter = new OffHeapSorter<>(SERDE, Tuple2::f1, COMPARATOR, 256 * 1024)) {
+            records.forEach(sorter::insert);
+            Iterator<Tuple2<Long, String>> iterator = sorter.sortedIterator();
+            Assert.assertTrue(sorter.getSpillCount() > 1);
+            Assert.assertEquals(100_000, sorter.getRecordNumber());
+            check(records, iterator);
+        }
+    }
+
+    @Test
+    public void prefixOnlyTest()
+    {
+        Random random = new Random(1);
+        OffHeapList<Long> list = new OffHeapList<>(Serdes.longSerde());
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextLong();
+            list.add(value);
+            expected.add(value);
+        }
+        List<Long> sorted = OffHeapSorter.sort(list, Serdes.longSerde(), Long::longValue, null, 32 * 1024);
+        expected.sort(Long::compare);
+        Assert.assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void spillOnPoolBudgetTest()
+    {
+        MemoryManager.removePool("sorterSmall");
+        //smaller than maxMemoryBytes, so the pool budget forces the spills
+        MemoryPool pool = MemoryManager.createPool("sorterSmall", 48 * 1024, MemoryPool.Policy.FAIL_FAST);
+        List<Tuple2<Long, String>> records = randomRecords(20_000);
+        try (OffHeapSorter<Tuple2<Long, String>> sorter = new OffHeapSorter<>(SERDE, Tuple2::f1, COMPARATOR, 64 * 1024, pool, null)) {
+            records.forEach(sorter::insert);
+            Assert.assertTrue(sorter.getSpillCount() > 1);
+            check(records, sorter.sortedIterator());
+        }
+        finally {
+            Assert.assertEquals(0, pool.getUsedBytes());
+            MemoryManager.removePool("sorterSmall");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryBudgetException;
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SpillableOffHeapListTest
+{
+    private static MemoryPool createPool(String name, long budget, MemoryPool.Policy policy)
+    {
+        MemoryManager.removePool(name);
+        return MemoryManager.createPool(name, budget, policy);
+    }
+
+    private static String value(int i)
+    {
+        return "value-" + i + "-abcdefghijklmnopqrstuvwxyz";
+    }
+
+    @Test
+    public void spillAndPageIn()
+    {
+        MemoryPool pool = createPool("spillList", 4096, MemoryPool.Policy.FAIL_FAST);
+        List<String> expected = new ArrayList<>();
+        try (SpillableOffHeapList<String> list = new SpillableOffHeapList<>(
+                String::getBytes, bytes -> new String(bytes, StandardCharsets.UTF_8), pool, null, 1024)) {
+            for (int i = 0; i < 1000; i++) {
+                list.add(value(i));
+                expected.add(value(i));
+            }
+            Assert.assertTrue(list.getSpillCount() > 0);
+            Assert.assertTrue(list.getSpilledBytes() > 0);
+            Assert.assertTrue(pool.getReservedBytes() <= 4096);
+            Assert.assertEquals(expected, list);
+
+            list.set(10, "update");
+            expected.set(10, "update");
+            Assert.assertEquals(value(500), list.remove(500));
+            expected.remove(500);
+            list.add(0, "first");
+            expected.add(0, "first");
+            Assert.assertEquals(expected, new ArrayList<>(list));
+
+            list.clear();
+            Assert.assertTrue(list.isEmpty());
+            Assert.assertEquals(0, list.getSpilledBytes());
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test
+    public void spillByOtherConsumer()
+    {
+        MemoryPool pool = createPool("spillListPolicy", 4096, MemoryPool.Policy.SPILL);
+        try (SpillableOffHeapList<String> list = new SpillableOffHeapList<>(
+                String::getBytes, bytes -> new String(bytes, StandardCharsets.UTF_8), pool)) {
+            for (int i = 0; i < 100; i++) {
+                list.add(value(i));
+            }
+            long address = pool.allocateMemory(3000);
+            Assert.assertTrue(list.getResidentBytes() <= 1096);
+            Assert.assertEquals(value(99), list.get(99));
+            pool.freeMemory(address, 3000);
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test
+    public void spillByOtherThread()
+            throws Exception
+    {
+        MemoryPool pool = createPool("spillListThreads", 16384, MemoryPool.Policy.SPILL);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (SpillableOffHeapList<String> list = new SpillableOffHeapList<>(
+                String::getBytes, bytes -> new String(bytes, StandardCharsets.UTF_8), pool, null, 4096)) {
+            //the other thread spills the list while it is in use
+            AtomicBoolean done = new AtomicBoolean(false);
+            Future<Long> allocations = executor.submit(() -> {
+                long count = 0;
+                while (!done.get()) {
+                    long address = pool.allocateMemory(3000);
+                    pool.freeMemory(address, 3000);
+                    count++;
+                }
+                return count;
+            });
+            for (int i = 0; i < 20_000; i++) {
+                list.add(value(i));
+                Assert.assertEquals(value(i / 2), list.get(i / 2));
+            }
+            done.set(true);
+            Assert.assertTrue(allocations.get() > 0);
+            for (int i = 0; i < list.size(); i++) {
+                Assert.assertEquals(value(i), list.get(i));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test
+    public void valueLargerThanBudget()
+    {
+        MemoryPool pool = createPool("spillListHuge", 16, MemoryPool.Policy.FAIL_FAST);
+        try (SpillableOffHeapList<String> list = new SpillableOffHeapList<>(
+                String::getBytes, bytes -> new String(bytes, StandardCharsets.UTF_8), pool)) {
+            list.add(value(1));
+            Assert.fail();
+        }
+        catch (MemoryBudgetException ignored) {
+        }
+    }
+}
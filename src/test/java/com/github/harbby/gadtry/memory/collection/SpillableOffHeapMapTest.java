@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 The GadTry Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.gadtry.memory.collection;
+
+import com.github.harbby.gadtry.memory.MemoryManager;
+import com.github.harbby.gadtry.memory.MemoryPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class SpillableOffHeapMapTest
+{
+    @Test
+    public void spillAndPageIn()
+    {
+        MemoryManager.removePool("spillMap");
+        MemoryPool pool = MemoryManager.createPool("spillMap", 8192, MemoryPool.Policy.FAIL_FAST);
+        Map<Integer, Long> expected = new HashMap<>();
+        try (SpillableOffHeapMap<Integer, Long> map = new SpillableOffHeapMap<>(
+                value -> ByteBuffer.allocate(8).putLong(value).array(), bytes -> ByteBuffer.wrap(bytes).getLong(), pool, null, 4096)) {
+            for (int i = 0; i < 10_000; i++) {
+                map.put(i, i * 7L);
+                expected.put(i, i * 7L);
+            }
+            Assert.assertTrue(map.getSpillCount() > 0);
+            Assert.assertEquals(expected, map);
+
+            for (int i = 0; i < 10_000; i += 2) {
+                Assert.assertEquals(Long.valueOf(i * 7L), map.put(i, -1L));
+                expected.put(i, -1L);
+            }
+            Iterator<Map.Entry<Integer, Long>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Long> entry = iterator.next();
+                if (entry.getKey() % 3 == 0) {
+                    iterator.remove();
+                    expected.remove(entry.getKey());
+                }
+            }
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(Long.valueOf(7L), map.remove(1));
+            Assert.assertNull(map.get(1));
+        }
+        Assert.assertEquals(0, pool.getReservedBytes());
+    }
+}